@@ -327,6 +327,34 @@ public class Constants {
         return code.substring(0, index).split("\n").length - 1;
     }
 
+    // Where every line after the first starts, for indexToLine(code, lineStarts, index)
+    public static int[] lineStarts(String code) {
+        int count = 0;
+        for (int i = 0; i < code.length(); i++)
+            if (code.charAt(i) == '\n') count++;
+        int[] starts = new int[count];
+        count = 0;
+        for (int i = 0; i < code.length(); i++)
+            if (code.charAt(i) == '\n') starts[count++] = i + 1;
+        return starts;
+    }
+
+    // Same answer as indexToLine(code, index), found by binary search over lineStarts(code)
+    public static int indexToLine(String code, int[] lineStarts, int index) {
+        // split() drops the newlines the prefix ends with, so they don't count
+        int end = index;
+        while (end > 0 && code.charAt(end - 1) == '\n') end--;
+        if (end == 0) return index == 0 ? 0 : -1;
+
+        int lo = 0, hi = lineStarts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lineStarts[mid] <= end) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
     public static int leftPadding(String str) {
         int tabs = 0;
         while (tabs < str.length() && Character.isWhitespace(str.charAt(tabs))) {
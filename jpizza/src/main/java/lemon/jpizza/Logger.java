@@ -29,7 +29,7 @@ public class Logger {
     public String ots(Object text, boolean stringInner) {
         if (text instanceof Value) {
             Value val = (Value) text;
-            if (val.isList) {
+            if (val.isList()) {
                 StringBuilder sb = new StringBuilder();
                 List<Value> l = val.asList();
 
@@ -41,7 +41,7 @@ public class Logger {
 
                 return "[ " + sb + "len=" + l.size() + " ]";
             }
-            else if (val.isMap) {
+            else if (val.isMap()) {
                 StringBuilder sb = new StringBuilder();
                 Map<Value, Value> d = val.asMap();
 
@@ -55,10 +55,10 @@ public class Logger {
 
                 return "{ " + sb + "len=" + keys.length + " }";
             }
-            else if (val.isNull) {
+            else if (val.isNull()) {
                 return "null";
             }
-            else if (val.isString && stringInner) {
+            else if (val.isString() && stringInner) {
                 return "\"" + val.asString() + "\"";
             }
             return val.asString();
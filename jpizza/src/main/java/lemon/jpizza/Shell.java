@@ -1,14 +1,20 @@
 package lemon.jpizza;
 
 import lemon.jpizza.compiler.ChunkBuilder;
+import lemon.jpizza.compiler.ClosureCompiler;
+import lemon.jpizza.compiler.ChunkOptimizer;
+import lemon.jpizza.compiler.RegisterCompiler;
 import lemon.jpizza.compiler.Compiler;
 import lemon.jpizza.compiler.FunctionType;
 import lemon.jpizza.compiler.types.GenericType;
 import lemon.jpizza.compiler.types.Type;
 import lemon.jpizza.compiler.types.Types;
 import lemon.jpizza.compiler.types.objects.FuncType;
-import lemon.jpizza.compiler.values.Var;
 import lemon.jpizza.compiler.values.functions.JFunc;
+import lemon.jpizza.compiler.vm.AsyncPool;
+import lemon.jpizza.compiler.vm.Globals;
+import lemon.jpizza.compiler.vm.JitCompiler;
+import lemon.jpizza.compiler.vm.LibraryManager;
 import lemon.jpizza.compiler.vm.VM;
 import lemon.jpizza.compiler.vm.VMResult;
 import lemon.jpizza.errors.Error;
@@ -35,8 +41,8 @@ public class Shell {
     public static String root;
     public static VM vm;
     public static final Map<String, Type> globals = new HashMap<>();
-    public static final Map<String, Type> libraries = new HashMap<>();
-    public static final HashMap<String, Var> shellMap = new HashMap<>();
+    public static final Map<String, Type> libraries = LibraryManager.libraryTypes();
+    public static final Globals shellMap = new Globals();
     public static final String fileEncoding = System.getProperty("file.encoding");
 
     static class Flags {
@@ -122,6 +128,36 @@ public class Shell {
                         flags |= Flags.DOCS;
                     break;
 
+                    case "no-optimize":
+                        ChunkOptimizer.enabled = false;
+                    break;
+
+                    case "registers":
+                        RegisterCompiler.enabled = true;
+                    break;
+
+                    case "closures":
+                        ClosureCompiler.enabled = true;
+                    break;
+
+                    case "no-jit":
+                        JitCompiler.enabled = false;
+                    break;
+
+                    case "async-threads":
+                        if (i + 1 < args.length && args[i + 1].matches("[1-9]\\d*")) {
+                            AsyncPool.threads = Integer.parseInt(args[i + 1]);
+                            i++;
+                        }
+                        else {
+                            Shell.logger.fail("--async-threads requires a positive number");
+                        }
+                    break;
+
+                    case "virtual-threads":
+                        AsyncPool.virtual = true;
+                    break;
+
                     case "output":
                         if (i + 1 < args.length) {
                             to = args[i + 1];
@@ -231,6 +267,12 @@ public class Shell {
             Shell.logger.outln("  -h, --help\t\tPrint this help message");
             Shell.logger.outln("  -v, --version\t\tPrint version");
             Shell.logger.outln("  --docs\t\tPrint link to documentation");
+            Shell.logger.outln("  --no-optimize\t\tSkip the bytecode optimizer");
+            Shell.logger.outln("  --registers\t\tRun supported functions on the register VM");
+            Shell.logger.outln("  --closures\t\tRun supported functions on the closure engine (source files only)");
+            Shell.logger.outln("  --no-jit\t\tKeep hot functions in the interpreter");
+            Shell.logger.outln("  --async-threads [count]\tRun async functions on this many threads");
+            Shell.logger.outln("  --virtual-threads\tRun each async function on a virtual thread where available");
             Shell.logger.outln("You can pass in a single compiled file as an argument to run it.");
         }
         if (hasFlag(flags, Flags.VERSION)) {
@@ -251,14 +293,26 @@ public class Shell {
         }
         if (hasFlag(flags, Flags.RUN)) {
             if (Files.exists(Paths.get(run))) {
-                String[] data = extractData(run, false);
+                // Closure trees are built from the AST, which .jbox files do not carry
+                boolean source = ClosureCompiler.enabled && run.endsWith(".devp");
+                String[] data = extractData(run, source);
                 System.setProperty("user.dir", data[1]);
-                runCompiled(data[0], data[1], args);
+                if (source) {
+                    Pair<JFunc, Error> compiled = compile(data[0], data[2]);
+                    if (compiled.b != null)
+                        Shell.logger.fail(compiled.b.asString());
+                    else
+                        runCompiled(data[0], compiled.a, args);
+                }
+                else {
+                    runCompiled(data[0], data[1], args);
+                }
             }
             else {
                 Shell.logger.fail("File does not exist.");
             }
         }
+        AsyncPool.finish();
     }
 
     public static String[] extractData(String path, boolean read) {
@@ -374,6 +428,8 @@ public class Shell {
             }
             byte[] arr = Files.readAllBytes(path);
             return ChunkBuilder.Build(arr);
+        } catch (ChunkBuilder.VersionMismatch e) {
+            Shell.logger.fail(e.getMessage());
         } catch (IOException e) {
             Shell.logger.fail("File is not readable!");
         }
@@ -381,10 +437,10 @@ public class Shell {
     }
 
     public static void runCompiled(String fn, JFunc func, String[] args) {
-        runCompiled(fn, func, args, new HashMap<>());
+        runCompiled(fn, func, args, new Globals());
     }
 
-    public static void runCompiled(String fn, JFunc func, String[] args, Map<String, Var> globals) {
+    public static void runCompiled(String fn, JFunc func, String[] args, Globals globals) {
         vm = new VM(func, globals).trace(fn);
         VMResult res = vm.run();
         if (res == VMResult.ERROR) return;
@@ -405,6 +461,8 @@ public class Shell {
             VMResult res = vm.run();
             if (res == VMResult.ERROR) return;
             vm.finish(args);
+        } catch (ChunkBuilder.VersionMismatch e) {
+            Shell.logger.fail(e.getMessage());
         } catch (IOException e) {
             e.printStackTrace();
             Shell.logger.fail("File is not readable.");
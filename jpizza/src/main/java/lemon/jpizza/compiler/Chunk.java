@@ -4,6 +4,7 @@ import lemon.jpizza.Constants;
 import lemon.jpizza.compiler.types.Type;
 import lemon.jpizza.compiler.values.Value;
 import lemon.jpizza.compiler.values.ValueArray;
+import lemon.jpizza.compiler.vm.Globals;
 
 import java.util.*;
 
@@ -14,8 +15,17 @@ public class Chunk {
     public String target;
     ValueArray constants;
     public List<FlatPosition> positions;
+    // positions once the code is final: the offset each run ends at, for binary search
+    public int[] positionEnds;
+    public FlatPosition[] positionRuns;
+    // Where each line of the source starts, see Constants.lineStarts
+    public int[] lines;
     final String source;
+    // Name the chunk was run under, set on the top level chunk of a VM by VM.trace()
+    public String filename;
     public Map<String, Type> globals;
+    // Global slot of each name constant used by a global instruction, -1 for other constants
+    public int[] globalSlots;
 
     public Chunk(String source) {
         this.code = new ArrayList<>();
@@ -42,6 +52,17 @@ public class Chunk {
     }
 
     public FlatPosition getPosition(int offset) {
+        if (positionEnds != null) {
+            // First run that ends at or after offset
+            int lo = 0, hi = positionEnds.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (positionEnds[mid] < offset) lo = mid + 1;
+                else hi = mid;
+            }
+            return positionRuns[Math.min(lo, positionRuns.length - 1)];
+        }
+
         int i = 0;
         for (FlatPosition pos : positions) {
             if (i + pos.span >= offset) {
@@ -58,10 +79,56 @@ public class Chunk {
             codeArray[i] = code.get(i);
         }
         constants.compile();
+        link();
+        indexPositions();
+    }
+
+    public void indexPositions() {
+        positionRuns = positions.toArray(new FlatPosition[0]);
+        positionEnds = new int[positionRuns.length];
+        int end = 0;
+        for (int i = 0; i < positionRuns.length; i++) {
+            end += positionRuns[i].span;
+            positionEnds[i] = end;
+        }
+    }
+
+    // Lets a chunk compiled from the same source use this chunk's line index
+    public void shareLines(Chunk chunk) {
+        if (chunk.source == source)
+            lines = chunk.lines();
+    }
+
+    public int[] lines() {
+        if (lines == null)
+            lines = Constants.lineStarts(source);
+        return lines;
+    }
+
+    public int indexToLine(int index) {
+        return Constants.indexToLine(source, lines(), index);
+    }
+
+    // Resolves the names of global instructions to their slots in Globals
+    public void link() {
+        Value[] values = constants.valuesArray;
+        globalSlots = new int[values.length];
+        Arrays.fill(globalSlots, -1);
+        for (int offset = 0; offset < codeArray.length; offset += ChunkOptimizer.length(codeArray, values, offset)) {
+            switch (codeArray[offset]) {
+                case OpCode.DefineGlobal:
+                case OpCode.GetGlobal:
+                case OpCode.SetGlobal:
+                case OpCode.DropGlobal:
+                    int constant = codeArray[offset + 1];
+                    globalSlots[constant] = Globals.slot(values[constant].asString());
+                    break;
+            }
+        }
     }
 
     public int getLine(int offset) {
-        return Constants.indexToLine(source, getPosition(offset).index);
+        return indexToLine(getPosition(offset).index);
     }
 
     public int addConstant(Value value) {
@@ -110,6 +177,11 @@ public class Chunk {
         list.add(codeArray.length);
         for (int i : codeArray)
             list.add(i);
+        int[] lines = lines();
+        list.add(ChunkCode.Lines);
+        list.add(lines.length);
+        for (int i : lines)
+            list.add(i);
         return list.stream().mapToInt(Integer::intValue).toArray();
     }
 
@@ -231,6 +231,15 @@ public class ChunkBuilder {
         return code[i++] != 0;
     }
 
+    private long readLong() throws IOException {
+        if (code[i] != ChunkCode.Int)
+            throw new IOException("not int");
+        i++;
+        long a = code[i++];
+        long b = code[i++];
+        return (a << 32) | (b & 0xFFFFFFFFL);
+    }
+
     private double readDouble() throws IOException {
         if (code[i] != ChunkCode.Number)
             throw new IOException("not double");
@@ -301,13 +310,45 @@ public class ChunkBuilder {
         func.varargs = varargs;
         func.kwargs = kwargs;
         func.chunk = chunk;
+
+        if (i < code.length && code[i] == ChunkCode.Registers) {
+            RegisterChunk registers = readRegisters();
+            // The stack chunk may have been optimized differently on load, so sites are found again
+            if (RegisterCompiler.enabled && registers.link(chunk))
+                func.registers = registers;
+        }
         return func;
     }
 
+    private RegisterChunk readRegisters() throws IOException {
+        i++;
+        int registerCount = code[i++];
+
+        int constantCount = code[i++];
+        Value[] constants = new Value[constantCount];
+        for (int j = 0; j < constantCount; j++) {
+            if (code[i++] == 0)
+                constants[j] = Value.NULL;
+            else
+                constants[j] = readValue();
+        }
+
+        int length = code[i++];
+        int[] registerCode = new int[length];
+        for (int j = 0; j < length; j++)
+            registerCode[j] = code[i++];
+        int[] spans = new int[length * 2];
+        for (int j = 0; j < spans.length; j++)
+            spans[j] = code[i++];
+
+        return new RegisterChunk(registerCode, spans, constants, registerCount);
+    }
+
     private Value readValue() throws IOException {
         switch (code[i]) {
             case ChunkCode.Boolean: return new Value(readBoolean());
             case ChunkCode.Number: return new Value(readDouble());
+            case ChunkCode.Int: return new Value(readLong());
             case ChunkCode.String: return new Value(readString());
             case ChunkCode.Enum: return new Value(readEnum());
             case ChunkCode.Func: return new Value(readFunc());
@@ -362,11 +403,18 @@ public class ChunkBuilder {
             bytecodes[j] = code[i++];
         }
 
+        int[] lines = null;
+        if (i < code.length && code[i] == ChunkCode.Lines) {
+            i++;
+            lines = new int[code[i++]];
+            for (int j = 0; j < lines.length; j++)
+                lines[j] = code[i++];
+        }
+
         Chunk chunk = new Chunk(source);
         chunk.packageName = packageName;
         chunk.target = target;
         chunk.positions = positions;
-        chunk.codeArray = bytecodes;
         List<Integer> code = new ArrayList<>();
         for (int j = 0; j < bytecodes.length; j++) {
             code.add(bytecodes[j]);
@@ -374,10 +422,33 @@ public class ChunkBuilder {
         chunk.code = code;
         chunk.constants = values;
         chunk.globals = globals;
+        chunk.lines = lines;
+
+        // Boxes written with --no-optimize are optimized on load
+        ChunkOptimizer.optimize(chunk);
+        chunk.codeArray = chunk.code.stream().mapToInt(Integer::intValue).toArray();
+        chunk.link();
+        chunk.indexPositions();
         return chunk;
     }
 
+    // Thrown for a box that was not written by this version of the compiler
+    public static class VersionMismatch extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        VersionMismatch(String message) {
+            super(message);
+        }
+    }
+
     public static JFunc Build(byte[] code) throws IOException {
-        return new ChunkBuilder(code).readFunc();
+        ChunkBuilder builder = new ChunkBuilder(code);
+        if (builder.code.length < 2 || builder.code[0] != ChunkCode.Magic)
+            throw new VersionMismatch("File was compiled by an older version of JPizza, recompile it");
+        if (builder.code[1] != ChunkCode.Version)
+            throw new VersionMismatch("File was compiled for box format " + builder.code[1] +
+                    " but this version reads format " + ChunkCode.Version + ", recompile it");
+        builder.i = 2;
+        return builder.readFunc();
     }
 }
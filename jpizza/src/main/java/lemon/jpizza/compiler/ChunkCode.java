@@ -1,6 +1,11 @@
 package lemon.jpizza.compiler;
 
 public class ChunkCode {
+    // Every box starts with these two words. The version goes up whenever the instruction set or
+    // the layout of a box changes, as boxes written by another version can't be read safely.
+    public static final int Magic = 0x4A50425A;
+    public static final int Version = 1;
+
     public static final int Number = 0;
     public static final int Boolean = 1;
     public static final int String = 2;
@@ -9,4 +14,10 @@ public class ChunkCode {
     public static final int Func = 5;
     public static final int Type = 6;
     public static final int Chunk = 7;
+    public static final int Int = 8;
+    // Optional trailer after a function's chunk. Negative so it can't be mistaken for
+    // the constant or count that follows a function in boxes without one
+    public static final int Registers = -1;
+    // Optional trailer after a chunk's code with its line index, rebuilt from the source when missing
+    public static final int Lines = -2;
 }
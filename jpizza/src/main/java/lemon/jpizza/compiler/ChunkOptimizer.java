@@ -0,0 +1,515 @@
+package lemon.jpizza.compiler;
+
+import lemon.jpizza.compiler.values.Value;
+
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.function.IntUnaryOperator;
+
+// Rewrites the bytecode of a finished chunk before Chunk.compile() freezes it
+// Instructions are decoded into a list, rewritten, and then encoded again with
+// their jump offsets and positions recalculated
+public class ChunkOptimizer {
+    static class Instruction {
+        // Opcode followed by its operands
+        final int[] code;
+        // The position each byte resolves to through Chunk.getPosition
+        final FlatPosition[] positions;
+        // Offset in the original chunk, used to resolve jumps
+        final int offset;
+        // Original offset this instruction jumps to, or -1
+        int target = -1;
+
+        Instruction(int[] code, FlatPosition[] positions, int offset) {
+            this.code = code;
+            this.positions = positions;
+            this.offset = offset;
+        }
+
+        Instruction(int[] code, FlatPosition position, int offset) {
+            this(code, new FlatPosition[code.length], offset);
+            Arrays.fill(positions, position);
+        }
+
+        int op() {
+            return code[0];
+        }
+
+        // Position of the byte the VM has just read when this instruction fails
+        FlatPosition position() {
+            return positions[positions.length - 1];
+        }
+    }
+
+    // Turned off with --no-optimize
+    public static boolean enabled = true;
+
+    public static void optimize(Chunk chunk) {
+        if (!enabled) return;
+
+        List<Instruction> instructions = decode(chunk);
+        if (instructions == null) return;
+
+        instructions = peephole(instructions);
+        instructions = fuse(instructions);
+
+        encode(chunk, instructions);
+    }
+
+    // Removes redundant instructions until nothing changes
+    //   Constant|Null; Pop          -> nothing
+    //   Jump to a Jump              -> Jump to its target (and the same for conditional jumps)
+    //   Jump to the next instruction -> nothing
+    //   code after Jump/Loop/Return that nothing jumps to -> nothing
+    static List<Instruction> peephole(List<Instruction> instructions) {
+        boolean changed = true;
+        while (changed) {
+            resolveTargets(instructions);
+            changed = threadJumps(instructions);
+
+            Set<Integer> targets = targets(instructions);
+            List<Instruction> out = new ArrayList<>();
+            boolean reachable = true;
+            for (int i = 0; i < instructions.size(); i++) {
+                Instruction ins = instructions.get(i);
+                if (targets.contains(ins.offset))
+                    reachable = true;
+                if (!reachable) {
+                    changed = true;
+                    continue;
+                }
+
+                Instruction next = i + 1 < instructions.size() ? instructions.get(i + 1) : null;
+                if ((ins.op() == OpCode.Constant || ins.op() == OpCode.Null) &&
+                        next != null && next.op() == OpCode.Pop && !targets.contains(next.offset)) {
+                    changed = true;
+                    i++;
+                    continue;
+                }
+                if (ins.op() == OpCode.Jump && next != null && ins.target == next.offset) {
+                    changed = true;
+                    continue;
+                }
+
+                out.add(ins);
+                reachable = ins.op() != OpCode.Jump && ins.op() != OpCode.Loop && ins.op() != OpCode.Return;
+            }
+            instructions = out;
+        }
+        resolveTargets(instructions);
+        return instructions;
+    }
+
+    static boolean threadJumps(List<Instruction> instructions) {
+        TreeMap<Integer, Integer> indices = new TreeMap<>();
+        for (int i = 0; i < instructions.size(); i++)
+            indices.put(instructions.get(i).offset, i);
+
+        boolean changed = false;
+        for (Instruction ins : instructions) {
+            int op = ins.op();
+            if (op != OpCode.Jump && op != OpCode.JumpIfFalse && op != OpCode.JumpIfTrue &&
+                    op != OpCode.Loop && op != OpCode.CompareJump)
+                continue;
+
+            // Bounded so a jump cycle cannot hang the compiler
+            for (int hops = 0; hops < 16; hops++) {
+                Integer index = indices.get(ins.target);
+                if (index == null || index == indices.get(ins.offset)) break;
+                Instruction dest = instructions.get(index);
+
+                int target;
+                if (dest.op() == OpCode.Jump) {
+                    target = dest.target;
+                }
+                else if ((op == OpCode.JumpIfFalse || op == OpCode.JumpIfTrue) && dest.op() == op) {
+                    // The condition is still on the stack and has the same truthiness
+                    target = dest.target;
+                }
+                else if ((op == OpCode.JumpIfFalse && dest.op() == OpCode.JumpIfTrue) ||
+                         (op == OpCode.JumpIfTrue && dest.op() == OpCode.JumpIfFalse)) {
+                    if (index + 1 >= instructions.size()) break;
+                    target = instructions.get(index + 1).offset;
+                }
+                else break;
+
+                if (target == ins.target) break;
+                ins.target = target;
+                changed = true;
+            }
+
+            if (op == OpCode.Loop && ins.target > ins.offset) {
+                ins.code[0] = OpCode.Jump;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // Points jumps whose target was removed at the next instruction that is left
+    static void resolveTargets(List<Instruction> instructions) {
+        TreeSet<Integer> offsets = new TreeSet<>();
+        for (Instruction ins : instructions)
+            offsets.add(ins.offset);
+
+        for (Instruction ins : instructions) {
+            if (ins.target == -1) continue;
+            Integer next = offsets.ceiling(ins.target);
+            if (next != null)
+                ins.target = next;
+        }
+    }
+
+    static Set<Integer> targets(List<Instruction> instructions) {
+        Set<Integer> targets = new HashSet<>();
+        for (Instruction ins : instructions)
+            if (ins.target != -1)
+                targets.add(ins.target);
+        return targets;
+    }
+
+    // Replaces common instruction sequences with single superinstructions
+    //   Equal; Not                -> NotEqual (same for LessThan/GreaterEqual and GreaterThan/LessEqual)
+    //   <compare>; JumpIfFalse; Pop -> CompareJump <compare>, when the jump lands on a Pop
+    //   GetLocal; Constant; <arith> -> LocalConstArith
+    // Nothing is fused across a jump target
+    static List<Instruction> fuse(List<Instruction> instructions) {
+        Set<Integer> targets = targets(instructions);
+
+        instructions = fuseNegations(instructions, targets);
+        instructions = fuseCompareJumps(instructions, targets);
+        instructions = fuseLocalArithmetic(instructions, targets);
+        return instructions;
+    }
+
+    static List<Instruction> fuseNegations(List<Instruction> instructions, Set<Integer> targets) {
+        List<Instruction> out = new ArrayList<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction ins = instructions.get(i);
+            if (i + 1 < instructions.size()) {
+                Instruction next = instructions.get(i + 1);
+                int negated = negation(ins.op());
+                if (negated != -1 && next.op() == OpCode.Not && !targets.contains(next.offset)) {
+                    out.add(new Instruction(new int[]{ negated }, ins.position(), ins.offset));
+                    i++;
+                    continue;
+                }
+            }
+            out.add(ins);
+        }
+        return out;
+    }
+
+    static List<Instruction> fuseCompareJumps(List<Instruction> instructions, Set<Integer> targets) {
+        Map<Integer, Integer> indices = new HashMap<>();
+        for (int i = 0; i < instructions.size(); i++)
+            indices.put(instructions.get(i).offset, i);
+
+        List<Instruction> out = new ArrayList<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction ins = instructions.get(i);
+            if (isComparison(ins.op()) && i + 2 < instructions.size()) {
+                Instruction jump = instructions.get(i + 1);
+                Instruction pop = instructions.get(i + 2);
+                Integer landing = jump.op() == OpCode.JumpIfFalse ? indices.get(jump.target) : null;
+                if (landing != null && instructions.get(landing).op() == OpCode.Pop && pop.op() == OpCode.Pop &&
+                        !targets.contains(jump.offset) && !targets.contains(pop.offset)) {
+                    // The comparison result is never pushed, so both paths skip their Pop
+                    Instruction fused = new Instruction(new int[]{ OpCode.CompareJump, ins.op(), 0xff }, ins.position(), ins.offset);
+                    fused.target = landing + 1 < instructions.size() ?
+                            instructions.get(landing + 1).offset :
+                            jump.target + 1;
+                    targets.add(fused.target);
+                    out.add(fused);
+                    i += 2;
+                    continue;
+                }
+            }
+            out.add(ins);
+        }
+        return out;
+    }
+
+    static List<Instruction> fuseLocalArithmetic(List<Instruction> instructions, Set<Integer> targets) {
+        List<Instruction> out = new ArrayList<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction ins = instructions.get(i);
+            if (ins.op() == OpCode.GetLocal && i + 2 < instructions.size()) {
+                Instruction constant = instructions.get(i + 1);
+                Instruction arith = instructions.get(i + 2);
+                if (constant.op() == OpCode.Constant && isArithmetic(arith.op()) &&
+                        !targets.contains(constant.offset) && !targets.contains(arith.offset)) {
+                    out.add(new Instruction(new int[]{
+                            OpCode.LocalConstArith, ins.code[1], constant.code[1], arith.op()
+                    }, arith.position(), ins.offset));
+                    i += 2;
+                    continue;
+                }
+            }
+            out.add(ins);
+        }
+        return out;
+    }
+
+    static int negation(int op) {
+        switch (op) {
+            case OpCode.Equal:
+            case OpCode.EqualNum:
+                return OpCode.NotEqual;
+            case OpCode.LessThan:
+            case OpCode.LessThanNum:
+                return OpCode.GreaterEqual;
+            case OpCode.GreaterThan:
+            case OpCode.GreaterThanNum:
+                return OpCode.LessEqual;
+            default:
+                return -1;
+        }
+    }
+
+    static boolean isComparison(int op) {
+        switch (op) {
+            case OpCode.Equal:
+            case OpCode.LessThan:
+            case OpCode.GreaterThan:
+            case OpCode.EqualNum:
+            case OpCode.LessThanNum:
+            case OpCode.GreaterThanNum:
+            case OpCode.NotEqual:
+            case OpCode.GreaterEqual:
+            case OpCode.LessEqual:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static boolean isArithmetic(int op) {
+        switch (op) {
+            case OpCode.Add:
+            case OpCode.Subtract:
+            case OpCode.Multiply:
+            case OpCode.Divide:
+            case OpCode.Modulo:
+            case OpCode.Power:
+            case OpCode.AddNum:
+            case OpCode.SubtractNum:
+            case OpCode.MultiplyNum:
+            case OpCode.DivideNum:
+            case OpCode.ModuloNum:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Total length of the instruction at offset, operands included
+    static int length(Chunk chunk, int offset) {
+        return length(chunk.code::get, chunk.constants.values::get, offset);
+    }
+
+    // Same as above on a frozen chunk
+    public static int length(int[] code, Value[] constants, int offset) {
+        return length(i -> code[i], i -> constants[i], offset);
+    }
+
+    private static int length(IntUnaryOperator code, IntFunction<Value> constants, int offset) {
+        switch (code.applyAsInt(offset)) {
+            case OpCode.Constant:
+            case OpCode.SetGlobal:
+            case OpCode.GetGlobal:
+            case OpCode.GetLocal:
+            case OpCode.SetLocal:
+            case OpCode.GetUpvalue:
+            case OpCode.SetUpvalue:
+            case OpCode.MakeArray:
+            case OpCode.MakeMap:
+            case OpCode.SetAttr:
+            case OpCode.GetAttr:
+            case OpCode.Access:
+            case OpCode.Extend:
+            case OpCode.PatternVars:
+            case OpCode.DropGlobal:
+            case OpCode.DropLocal:
+            case OpCode.DropUpvalue:
+            case OpCode.Jump:
+            case OpCode.JumpIfFalse:
+            case OpCode.JumpIfTrue:
+            case OpCode.Loop:
+                return 2;
+
+            case OpCode.For:
+            case OpCode.Import:
+            case OpCode.Enum:
+            case OpCode.CompareJump:
+            case OpCode.GetSlot:
+            case OpCode.SetSlot:
+            case OpCode.AccessSlot:
+                return 3;
+
+            case OpCode.Iter:
+            case OpCode.LocalConstArith:
+                return 4;
+
+            case OpCode.Method:
+                return 5;
+
+            case OpCode.DefineGlobal:
+                return code.applyAsInt(offset + 3) == 1 ? 6 : 4;
+            case OpCode.CheckAssign:
+                return code.applyAsInt(offset + 2) == 1 ? 5 : 3;
+
+            case OpCode.Pattern:
+                return 2 + code.applyAsInt(offset + 1);
+            case OpCode.Header:
+                return 3 + code.applyAsInt(offset + 2);
+            case OpCode.Destruct:
+                return 2 + Math.max(code.applyAsInt(offset + 1), 0);
+            case OpCode.Call:
+                return 3 + code.applyAsInt(offset + 2);
+            case OpCode.DefaultArgs:
+                return 3 + code.applyAsInt(offset + 2);
+
+            case OpCode.Closure: {
+                Value func = constants.apply(code.applyAsInt(offset + 1));
+                return 3 + 2 * func.asFunc().upvalueCount;
+            }
+
+            case OpCode.Class: {
+                // NAME HASSUPER ATTRCOUNT (NAME ISPRIVATE ISSTATIC)* GENERICCOUNT (NAME)*
+                int generics = offset + 4 + 3 * code.applyAsInt(offset + 3);
+                return generics - offset + 1 + code.applyAsInt(generics);
+            }
+
+            default:
+                return 1;
+        }
+    }
+
+    // Offset of the jump operand inside the instruction, or -1 if it does not jump
+    public static int jumpOperand(int op) {
+        switch (op) {
+            case OpCode.Jump:
+            case OpCode.JumpIfFalse:
+            case OpCode.JumpIfTrue:
+            case OpCode.Loop:
+                return 1;
+            case OpCode.For:
+            case OpCode.CompareJump:
+                return 2;
+            case OpCode.Iter:
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    static List<Instruction> decode(Chunk chunk) {
+        int size = chunk.code.size();
+        FlatPosition[] positions = expandPositions(chunk);
+
+        List<Instruction> instructions = new ArrayList<>();
+        Set<Integer> starts = new HashSet<>();
+        int offset = 0;
+        while (offset < size) {
+            int length = length(chunk, offset);
+            if (offset + length > size) return null;
+
+            int[] code = new int[length];
+            for (int i = 0; i < length; i++)
+                code[i] = chunk.code.get(offset + i);
+            Instruction instruction = new Instruction(code, Arrays.copyOfRange(positions, offset, offset + length), offset);
+
+            int operand = jumpOperand(code[0]);
+            if (operand != -1) {
+                int jump = code[operand];
+                instruction.target = code[0] == OpCode.Loop ? offset + length - jump : offset + length + jump;
+            }
+
+            instructions.add(instruction);
+            starts.add(offset);
+            offset += length;
+        }
+        starts.add(size);
+
+        // A jump into the middle of an instruction means the layout is not understood
+        for (Instruction instruction : instructions)
+            if (instruction.target != -1 && !starts.contains(instruction.target))
+                return null;
+
+        return instructions;
+    }
+
+    static void encode(Chunk chunk, List<Instruction> instructions) {
+        int oldSize = chunk.code.size();
+        int[] moved = new int[oldSize + 1];
+        Arrays.fill(moved, -1);
+
+        int offset = 0;
+        for (Instruction instruction : instructions) {
+            moved[instruction.offset] = offset;
+            offset += instruction.code.length;
+        }
+        moved[oldSize] = offset;
+        // Removed instructions hand their offset to whatever follows them
+        for (int i = oldSize - 1; i >= 0; i--)
+            if (moved[i] == -1)
+                moved[i] = moved[i + 1];
+
+        List<Integer> code = new ArrayList<>(offset);
+        List<FlatPosition> resolved = new ArrayList<>(offset);
+        for (Instruction instruction : instructions) {
+            int start = code.size();
+            int end = start + instruction.code.length;
+            int operand = jumpOperand(instruction.op());
+            if (operand != -1) {
+                int target = moved[instruction.target];
+                instruction.code[operand] = instruction.op() == OpCode.Loop ? end - target : target - end;
+            }
+            for (int i = 0; i < instruction.code.length; i++) {
+                code.add(instruction.code[i]);
+                resolved.add(instruction.positions[i]);
+            }
+        }
+
+        chunk.code = code;
+        chunk.positions = collapsePositions(resolved);
+    }
+
+    // Position of every byte, exactly as Chunk.getPosition reports it
+    static FlatPosition[] expandPositions(Chunk chunk) {
+        int size = chunk.code.size();
+        FlatPosition[] positions = new FlatPosition[size];
+        List<FlatPosition> spans = chunk.positions;
+        FlatPosition last = spans.get(spans.size() - 1);
+
+        int run = 0;
+        int covered = 0;
+        for (int offset = 0; offset < size; offset++) {
+            while (run < spans.size() && covered + spans.get(run).span < offset) {
+                covered += spans.get(run).span;
+                run++;
+            }
+            positions[offset] = run < spans.size() ? spans.get(run) : last;
+        }
+        return positions;
+    }
+
+    // Builds a span list that Chunk.getPosition resolves back to the given positions
+    // getPosition(offset) answers with the run covering offset - 1, so every byte
+    // stores the position wanted for the byte after it
+    static List<FlatPosition> collapsePositions(List<FlatPosition> resolved) {
+        List<FlatPosition> spans = new ArrayList<>(Collections.singletonList(new FlatPosition(0, 0, 0)));
+        for (int i = 0; i < resolved.size(); i++) {
+            FlatPosition pos = resolved.get(Math.min(i + 1, resolved.size() - 1));
+            FlatPosition last = spans.get(spans.size() - 1);
+            if (last.index == pos.index && last.len == pos.len) {
+                last.span++;
+            }
+            else {
+                spans.add(new FlatPosition(pos.index, pos.len, 1));
+            }
+        }
+        return spans;
+    }
+}
@@ -0,0 +1,329 @@
+package lemon.jpizza.compiler;
+
+import lemon.jpizza.JPType;
+import lemon.jpizza.TokenType;
+import lemon.jpizza.cases.Case;
+import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.vm.ClosureNodes;
+import lemon.jpizza.compiler.vm.ClosureNodes.Cond;
+import lemon.jpizza.compiler.vm.ClosureNodes.Expr;
+import lemon.jpizza.compiler.vm.ClosureNodes.Stmt;
+import lemon.jpizza.nodes.Node;
+import lemon.jpizza.nodes.definitions.FuncDefNode;
+import lemon.jpizza.nodes.definitions.VarAssignNode;
+import lemon.jpizza.nodes.expressions.*;
+import lemon.jpizza.nodes.operations.BinOpNode;
+import lemon.jpizza.nodes.operations.UnaryOpNode;
+import lemon.jpizza.nodes.values.BooleanNode;
+import lemon.jpizza.nodes.values.NumberNode;
+import lemon.jpizza.nodes.values.StringNode;
+import lemon.jpizza.nodes.variables.VarAccessNode;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Builds a closure tree for a function from the same optimized AST the stack chunk was compiled from.
+// It covers the same plain functions as RegisterCompiler; locals live in an array slot each, and
+// errors are reported at the stack instruction with the same source span.
+public class ClosureCompiler {
+    public static boolean enabled = false;
+
+    final Compiler compiler;
+    final Map<Long, Integer> stackSites;
+
+    final List<String> names = new ArrayList<>();
+    final Set<Integer> locked = new HashSet<>();
+    int slotCount = 0;
+
+    // Statements nested in an expression cannot return out of the function
+    int expressionDepth = 0;
+
+    ClosureCompiler(Compiler compiler) {
+        this.compiler = compiler;
+        this.stackSites = RegisterChunk.stackSites(compiler.chunk());
+    }
+
+    public static ClosureNodes.Tree compile(Compiler compiler, FuncDefNode node) {
+        if (node.async || node.catcher || node.defaultCount > 0 || node.argname != null ||
+                node.kwargname != null || !node.generic_toks.isEmpty())
+            return null;
+
+        int upvalueCount = compiler.function.upvalueCount;
+        try {
+            ClosureNodes.Tree tree = new ClosureCompiler(compiler).function(node);
+            if (compiler.function.upvalueCount == upvalueCount)
+                return tree;
+        } catch (RegisterCompiler.Unsupported ignored) {}
+
+        compiler.function.upvalueCount = upvalueCount;
+        return null;
+    }
+
+    ClosureNodes.Tree function(FuncDefNode node) {
+        for (int i = 0; i < node.arg_name_toks.size(); i++)
+            declare(node.arg_name_toks.get(i).value.toString(), false);
+
+        Stmt body;
+        if (node.body_node.jptype == JPType.Body)
+            body = ClosureNodes.block(new Stmt[]{ statement(node.body_node), ClosureNodes.ret(nullConstant()) });
+        else
+            body = ClosureNodes.ret(expression(node.body_node));
+
+        return new ClosureNodes.Tree(body, slotCount);
+    }
+
+    int site(long span) {
+        Integer site = stackSites.get(span);
+        if (site == null) throw new RegisterCompiler.Unsupported();
+        return site;
+    }
+
+    // Slots
+
+    int declare(String name, boolean constant) {
+        names.add(name);
+        int slot = names.size() - 1;
+        if (constant) locked.add(slot);
+        slotCount = Math.max(slotCount, names.size());
+        return slot;
+    }
+
+    void free(int mark) {
+        while (names.size() > mark) {
+            names.remove(names.size() - 1);
+            locked.remove(names.size());
+        }
+    }
+
+    int resolve(String name) {
+        for (int i = names.size() - 1; i >= 0; i--)
+            if (name.equals(names.get(i)))
+                return i;
+        return -1;
+    }
+
+    int upvalue(String name) {
+        if (compiler.macros.containsKey(name)) throw new RegisterCompiler.Unsupported();
+        int upvalue = compiler.resolveUpvalue(name);
+        if (upvalue == -1) throw new RegisterCompiler.Unsupported();
+        return upvalue;
+    }
+
+    static Expr nullConstant() {
+        return ClosureNodes.constant(Value.NULL);
+    }
+
+    // Statements
+
+    Stmt statement(Node node) {
+        switch (node.jptype) {
+            case VarAssign: {
+                VarAssignNode assign = (VarAssignNode) node;
+                String name = assign.var_name_tok.value.toString();
+                if (assign.defining) {
+                    if (assign.min != null || assign.max != null) throw new RegisterCompiler.Unsupported();
+                    Expr value = expression(assign.value_node);
+                    return ClosureNodes.setLocal(declare(name, assign.locked), value);
+                }
+
+                int local = resolve(name);
+                if (local != -1) {
+                    if (locked.contains(local)) throw new RegisterCompiler.Unsupported();
+                    return ClosureNodes.setLocal(local, expression(assign.value_node));
+                }
+                int upvalue = upvalue(name);
+                if (compiler.checksAssign(upvalue)) throw new RegisterCompiler.Unsupported();
+                return ClosureNodes.setUpvalue(upvalue, expression(assign.value_node), site(RegisterCompiler.span(node)));
+            }
+
+            case While:
+                return loop((WhileNode) node);
+            case For:
+                return loop((ForNode) node);
+            case Query:
+                return query((QueryNode) node);
+            case Return: {
+                if (expressionDepth > 0) throw new RegisterCompiler.Unsupported();
+                ReturnNode ret = (ReturnNode) node;
+                return ClosureNodes.ret(ret.nodeToReturn != null ? expression(ret.nodeToReturn) : nullConstant());
+            }
+            case Body: {
+                int mark = names.size();
+                List<Node> statements = ((BodyNode) node).statements;
+                Stmt[] compiled = new Stmt[statements.size()];
+                for (int i = 0; i < compiled.length; i++)
+                    compiled[i] = statement(statements.get(i));
+                free(mark);
+                return ClosureNodes.block(compiled);
+            }
+
+            default:
+                return ClosureNodes.evaluate(expression(node));
+        }
+    }
+
+    Stmt scoped(Node body) {
+        int mark = names.size();
+        Stmt statement = statement(body);
+        free(mark);
+        return statement;
+    }
+
+    Stmt loop(WhileNode node) {
+        if (!node.retnull) throw new RegisterCompiler.Unsupported();
+        Cond condition = condition(node.condition_node);
+        return ClosureNodes.whileLoop(condition, scoped(node.body_node), node.conLast);
+    }
+
+    Stmt loop(ForNode node) {
+        if (!node.retnull) throw new RegisterCompiler.Unsupported();
+        int mark = names.size();
+
+        Expr start = expression(node.start_value_node);
+        int var = declare(node.var_name_tok.value.toString(), false);
+        Expr end = expression(node.end_value_node);
+        Expr step = node.step_value_node != null ? expression(node.step_value_node) : ClosureNodes.constant(Value.of(1L));
+        Stmt body = scoped(node.body_node);
+        free(mark);
+
+        return ClosureNodes.block(new Stmt[]{
+                ClosureNodes.copyLocal(var, start),
+                ClosureNodes.forLoop(var, end, step, body)
+        });
+    }
+
+    Cond condition(Node node) {
+        if (node.jptype == JPType.BinOp) {
+            BinOpNode binOp = (BinOpNode) node;
+            int op = RegisterCompiler.comparison(binOp.op_tok);
+            if (op != -1) {
+                Expr a = expression(binOp.left_node);
+                Expr b = expression(binOp.right_node);
+                return ClosureNodes.comparison(op, a, b, site(RegisterCompiler.lastSpan(binOp.right_node)));
+            }
+        }
+        return ClosureNodes.truthy(expression(node));
+    }
+
+    Stmt query(QueryNode node) {
+        Cond[] conditions = new Cond[node.cases.size()];
+        Stmt[] branches = new Stmt[conditions.length];
+        for (int i = 0; i < conditions.length; i++) {
+            Case nodeCase = node.cases.get(i);
+            conditions[i] = condition(nodeCase.condition);
+            branches[i] = scoped(nodeCase.statements);
+        }
+        Stmt otherwise = node.else_case != null ? scoped(node.else_case.statements) : null;
+        return ClosureNodes.query(conditions, branches, otherwise);
+    }
+
+    Expr queryValue(QueryNode node) {
+        Cond[] conditions = new Cond[node.cases.size()];
+        Expr[] branches = new Expr[conditions.length];
+        for (int i = 0; i < conditions.length; i++) {
+            Case nodeCase = node.cases.get(i);
+            conditions[i] = condition(nodeCase.condition);
+            branches[i] = branch(nodeCase.statements, nodeCase.returnValue);
+        }
+        Expr otherwise = node.else_case != null
+                ? branch(node.else_case.statements, node.else_case.returnValue)
+                : nullConstant();
+        return ClosureNodes.query(conditions, branches, otherwise);
+    }
+
+    Expr branch(Node statements, boolean returnValue) {
+        if (returnValue) return expression(statements);
+        return ClosureNodes.valueOf(scoped(statements));
+    }
+
+    // Expressions
+
+    Expr expression(Node node) {
+        switch (node.jptype) {
+            case Number: {
+                double val = ((NumberNode) node).val;
+                if (Value.isIntegral(val))
+                    return ClosureNodes.constant(new Value((long) val));
+                return ClosureNodes.constant(new Value(val));
+            }
+            case String:
+                return ClosureNodes.constant(new Value(((StringNode) node).val));
+            case Boolean:
+                return ClosureNodes.constant(new Value(((BooleanNode) node).val));
+            case Null:
+            case Pass:
+                return nullConstant();
+
+            case VarAccess: {
+                String name = ((VarAccessNode) node).var_name_tok.value.toString();
+                int local = resolve(name);
+                if (local != -1) return ClosureNodes.local(local);
+                return ClosureNodes.upvalue(upvalue(name), site(RegisterCompiler.span(node)));
+            }
+
+            case BinOp:
+                return binOp((BinOpNode) node);
+
+            case UnaryOp: {
+                UnaryOpNode unary = (UnaryOpNode) node;
+                if (unary.op_tok == TokenType.Plus) return expression(unary.node);
+                if (unary.op_tok == TokenType.Minus) return ClosureNodes.negate(expression(unary.node));
+                if (unary.op_tok == TokenType.Bang) return ClosureNodes.not(expression(unary.node));
+                throw new RegisterCompiler.Unsupported();
+            }
+
+            case Call:
+                return call((CallNode) node);
+
+            case Query: {
+                expressionDepth++;
+                Expr value = queryValue((QueryNode) node);
+                expressionDepth--;
+                return value;
+            }
+
+            case Body:
+            case While:
+            case For: {
+                expressionDepth++;
+                Expr value = ClosureNodes.valueOf(statement(node));
+                expressionDepth--;
+                return value;
+            }
+
+            default:
+                throw new RegisterCompiler.Unsupported();
+        }
+    }
+
+    Expr binOp(BinOpNode node) {
+        if (node.op_tok == TokenType.Ampersand || node.op_tok == TokenType.Pipe) {
+            Expr a = expression(node.left_node);
+            Expr b = expression(node.right_node);
+            return node.op_tok == TokenType.Ampersand ? ClosureNodes.and(a, b) : ClosureNodes.or(a, b);
+        }
+
+        int op = RegisterCompiler.arithmetic(node.op_tok);
+        boolean arithmetic = op != -1;
+        if (!arithmetic) op = RegisterCompiler.comparison(node.op_tok);
+        if (op == -1) throw new RegisterCompiler.Unsupported();
+
+        Expr a = expression(node.left_node);
+        Expr b = expression(node.right_node);
+        int site = site(RegisterCompiler.lastSpan(node.right_node));
+        return arithmetic ? ClosureNodes.arithmetic(op, a, b, site) : ClosureNodes.comparison(op, a, b, site);
+    }
+
+    Expr call(CallNode node) {
+        if (!node.kwargs.isEmpty()) throw new RegisterCompiler.Unsupported();
+
+        Expr[] args = new Expr[node.argNodes.size()];
+        for (int i = 0; i < args.length; i++)
+            args[i] = expression(node.argNodes.get(i));
+        Expr callee = expression(node.nodeToCall);
+        return ClosureNodes.call(callee, args, site(RegisterCompiler.span(node)));
+    }
+}
@@ -56,6 +56,11 @@ public class Compiler {
         final Type type;
         int depth;
 
+        // Slots hold bare values, so assignments check these instead of a Var
+        boolean constant;
+        int min = Integer.MIN_VALUE;
+        int max = Integer.MAX_VALUE;
+
         Local(LocalToken name, Type type, int depth) {
             this.name = name;
             this.type = type;
@@ -72,6 +77,11 @@ public class Compiler {
         int index;
         final Type type;
 
+        // Carried over from the captured local; globals keep theirs in their Var
+        boolean constant;
+        int min = Integer.MIN_VALUE;
+        int max = Integer.MAX_VALUE;
+
         public Upvalue(int index, boolean isLocal, Type type) {
             this.index = index;
             this.isLocal = isLocal;
@@ -117,6 +127,10 @@ public class Compiler {
 
     Type enclosingType;
     boolean staticContext;
+    // The enclosing class's attributes in the order its shape lays them out, or null if unknown
+    List<String> enclosingSlots;
+    // Layouts of the classes compiled so far, which classes extending them start from
+    final Map<String, List<String>> classSlots;
     
     TypeLookup typeHandler;
 
@@ -137,9 +151,13 @@ public class Compiler {
 
         if (enclosing != null) {
             this.enclosingType = enclosing.enclosingType;
+            this.enclosingSlots = enclosing.enclosingSlots;
+            this.classSlots = enclosing.classSlots;
+            function.chunk.shareLines(enclosing.chunk());
         }
         else {
             this.enclosingType = Types.VOID;
+            this.classSlots = new HashMap<>();
         }
 
         this.locals = new Local[VM.MAX_STACK_SIZE];
@@ -152,6 +170,7 @@ public class Compiler {
         this.scopeDepth = 0;
 
         locals[localCount++] = new Local(new LocalToken(type == FunctionType.Method || type == FunctionType.Constructor ? "this" : "", 0, 0), this.enclosingType, 0);
+        locals[0].constant = true;
 
         this.enclosing = enclosing;
 
@@ -242,7 +261,20 @@ public class Compiler {
             }
         }
 
-        upvalues[upvalueCount] = new Upvalue(index, isLocal, type);
+        Upvalue upvalue = new Upvalue(index, isLocal, type);
+        if (isLocal) {
+            Local local = enclosing.locals[index];
+            upvalue.constant = local.constant;
+            upvalue.min = local.min;
+            upvalue.max = local.max;
+        }
+        else if (enclosing.upvalues[index] != null) {
+            Upvalue outer = enclosing.upvalues[index];
+            upvalue.constant = outer.constant;
+            upvalue.min = outer.min;
+            upvalue.max = outer.max;
+        }
+        upvalues[upvalueCount] = upvalue;
         return function.upvalueCount++;
     }
 
@@ -343,6 +375,16 @@ public class Compiler {
         return staticContext ? enclosingType.access(name) : enclosingType.accessInternal(name);
     }
 
+    // Gets or sets an attribute of the enclosing class or instance, by its slot if the layout is known
+    void attrOp(int op, String name, @NotNull Position start, @NotNull Position end) {
+        int constant = chunk().addConstant(new Value(name));
+        int slot = enclosingSlots != null ? enclosingSlots.indexOf(name) : -1;
+        if (slot != -1)
+            emit(new int[]{ op == OpCode.GetAttr ? OpCode.GetSlot : OpCode.SetSlot, slot, constant }, start, end);
+        else
+            emit(op, constant, start, end);
+    }
+
     public JFunc compileBlock(List<Node> statements) {
         for (Node statement : statements) {
             compile(statement);
@@ -355,6 +397,7 @@ public class Compiler {
     }
 
     public JFunc endCompiler() {
+        ChunkOptimizer.optimize(chunk());
         if (Shell.logger.debug)
             Disassembler.disassembleChunk(chunk(), function.name != null ? function.name : "<script>");
         function.chunk.compile();
@@ -454,21 +497,22 @@ public class Compiler {
                 compile(node.class_tok);
                 String attr = node.attr_name_tok.value.toString();
                 int constant = chunk().addConstant(new Value(attr));
-                emit(OpCode.Access, constant, node.pos_start, node.pos_end);
+                int slot = isThis(node.class_tok) && enclosingSlots != null ? enclosingSlots.indexOf(attr) : -1;
+                if (slot != -1)
+                    emit(new int[]{ OpCode.AccessSlot, slot, constant }, node.pos_start, node.pos_end);
+                else
+                    emit(OpCode.Access, constant, node.pos_start, node.pos_end);
                 break;
             }
             case AttrAssign: {
                 AttrAssignNode node = (AttrAssignNode) statement;
                 compile(node.value_node);
-                int constant = chunk().addConstant(new Value(node.var_name_tok.value.toString()));
-                emit(OpCode.SetAttr, constant, node.pos_start, node.pos_end);
+                attrOp(OpCode.SetAttr, node.var_name_tok.value.toString(), node.pos_start, node.pos_end);
                 break;
             }
             case AttrAccess: {
                 AttrAccessNode node = (AttrAccessNode) statement;
-                String attr = node.var_name_tok.value.toString();
-                int constant = chunk().addConstant(new Value(attr));
-                emit(OpCode.GetAttr, constant, node.pos_start, node.pos_end);
+                attrOp(OpCode.GetAttr, node.var_name_tok.value.toString(), node.pos_start, node.pos_end);
                 break;
             }
 
@@ -561,18 +605,7 @@ public class Compiler {
                 1, 0
         }, node.pos_start, node.pos_end);
         String name = node.name.value.toString();
-        int arg = resolveLocal(name);
-
-        if (arg != -1) {
-            emit(OpCode.SetLocal, arg, node.pos_start, node.pos_end);
-        }
-        else if ((arg = resolveUpvalue(name)) != -1) {
-            emit(OpCode.SetUpvalue, arg, node.pos_start, node.pos_end);
-        }
-        else {
-            arg = chunk().addConstant(new Value(name));
-            emit(OpCode.SetGlobal, arg, node.pos_start, node.pos_end);
-        }
+        setVariable(name, node.pos_start, node.pos_end);
     }
 
     void compile(PatternNode node) {
@@ -912,6 +945,7 @@ public class Compiler {
         }
         else {
             compileNull(node.pos_start, node.pos_end);
+            type = Shell.libraries.get(fn);
         }
 
         assert type != null;
@@ -946,12 +980,72 @@ public class Compiler {
         emit(OpCode.Return, node.pos_start, node.pos_end);
     }
 
+    // Keyword arguments to a callee whose parameters are known statically are passed as positional
+    // arguments in parameter order. Anything else keeps them as keyword arguments for the VM.
+    CallNode positionalCall(CallNode node) {
+        if (node.kwargs.isEmpty()) return node;
+        // A spread's length is only known at runtime, so the slots after it are too
+        for (Node arg : node.argNodes)
+            if (arg.jptype == JPType.Spread) return node;
+
+        FuncType type = keywordTarget(node.nodeToCall);
+        if (type == null) return node;
+
+        List<String> names = Arrays.asList(type.parameterNames);
+        Node[] args = node.argNodes.toArray(new Node[Math.max(node.argNodes.size(), names.size())]);
+        int argc = node.argNodes.size();
+        for (Map.Entry<String, Node> entry : node.kwargs.entrySet()) {
+            Node arg = entry.getValue();
+            int slot = names.indexOf(entry.getKey());
+            if (slot == -1)
+                error("Call", "No parameter named '" + entry.getKey() + "'", arg.pos_start, arg.pos_end);
+            else if (args[slot] != null)
+                error("Call", "Parameter '" + entry.getKey() + "' given twice", arg.pos_start, arg.pos_end);
+            args[slot] = arg;
+            argc = Math.max(argc, slot + 1);
+        }
+        // Parameters with defaults come last. Skipped ones are left null, for compile(CallNode) to
+        // fill in from the callee's defaults when the call runs.
+        int required = names.size() - type.defaultCount;
+        for (int i = 0; i < argc; i++) {
+            if (args[i] == null && i < required)
+                error("Call", "Missing argument for '" + names.get(i) + "'", node.pos_start, node.pos_end);
+        }
+
+        CallNode call = new CallNode(node.nodeToCall, Arrays.asList(args).subList(0, argc), node.generics, new HashMap<>());
+        call.pos_start = node.pos_start;
+        call.pos_end = node.pos_end;
+        return call;
+    }
+
+    // The function a call by keyword passes its arguments to, or null if its parameters are not known by name
+    FuncType keywordTarget(Node nodeToCall) {
+        Type type = typeHandler.resolve(nodeToCall);
+        if (type instanceof MethodType)
+            type = ((MethodType) type).funcType;
+        else if (type instanceof ClassType)
+            type = ((ClassType) type).constructor;
+        if (!(type instanceof FuncType) || ((FuncType) type).parameterNames == null)
+            return null;
+        return (FuncType) type;
+    }
+
     void compile(CallNode node) {
+        node = positionalCall(node);
         int argc = node.argNodes.size();
         int kwargc = node.kwargs.size();
         Type[] argTypes = new Type[argc];
+        List<Integer> skipped = new ArrayList<>();
         for (int i = 0; i < argc; i++) {
-            argTypes[i] = compile(node.argNodes.get(i));
+            Node arg = node.argNodes.get(i);
+            if (arg == null) {
+                compileNull(node.pos_start, node.pos_end);
+                argTypes[i] = keywordTarget(node.nodeToCall).parameterTypes[i];
+                skipped.add(i);
+            }
+            else {
+                argTypes[i] = compile(arg);
+            }
         }
         List<String> kwargNames = new ArrayList<>(node.kwargs.keySet());
         for (int i = kwargc - 1; i >= 0; i--) {
@@ -961,6 +1055,11 @@ public class Compiler {
         if (!function.callable()) {
             error("Type", "Can't call non-function", node.pos_start, node.pos_end);
         }
+        if (!skipped.isEmpty()) {
+            emit(new int[]{ OpCode.DefaultArgs, argc, skipped.size() }, node.pos_start, node.pos_end);
+            for (int slot : skipped)
+                emit(slot, node.pos_start, node.pos_end);
+        }
         emit(new int[]{
                 OpCode.Call,
                 argc, kwargc
@@ -1103,21 +1202,18 @@ public class Compiler {
             Token paramType = node.arg_type_toks.get(i);
 
             compiler.parseVariable(param, compiler.typeLookup(paramType), param.pos_start, param.pos_end);
-            compiler.makeVar(compiler.localCount - 1, false, param.pos_start, param.pos_end);
         }
 
         if (node.argname != null) {
             Token argNameToken = new Token(TokenType.Identifier, node.argname, node.pos_start, node.pos_end);
             compiler.function.totarity++;
             compiler.parseVariable(argNameToken, Types.LIST, argNameToken.pos_start, argNameToken.pos_end);
-            compiler.makeVar(compiler.localCount - 1, false, argNameToken.pos_start, argNameToken.pos_end);
         }
 
         if (node.kwargname != null) {
             Token kwargNameToken = new Token(TokenType.Identifier, node.kwargname, node.pos_start, node.pos_end);
             compiler.function.totarity++;
             compiler.parseVariable(kwargNameToken, Types.DICT, kwargNameToken.pos_start, kwargNameToken.pos_end);
-            compiler.makeVar(compiler.localCount - 1, false, kwargNameToken.pos_start, kwargNameToken.pos_end);
         }
 
         pre.compile(compiler);
@@ -1136,6 +1232,11 @@ public class Compiler {
         function.varargs = node.argname != null;
         function.kwargs = node.kwargname != null;
 
+        if (ClosureCompiler.enabled && type == FunctionType.Function)
+            function.closures = ClosureCompiler.compile(compiler, node);
+        else if (RegisterCompiler.enabled && type == FunctionType.Function)
+            function.registers = RegisterCompiler.compile(compiler, node);
+
         for (Node defaultValue : node.defaults) {
             if (defaultValue != null)
                 compile(defaultValue);
@@ -1169,7 +1270,9 @@ public class Compiler {
     }
 
     void compileNumber(double val, @NotNull Position start, @NotNull Position end) {
-        int constant = chunk().addConstant(new Value(val));
+        // Literals that TypeLookup types as INT become int values at runtime
+        Value value = Value.isIntegral(val) ? new Value((long) val) : new Value(val);
+        int constant = chunk().addConstant(value);
         emit(OpCode.Constant, constant, start, end);
     }
 
@@ -1178,6 +1281,10 @@ public class Compiler {
         emit(OpCode.Constant, constant, start, end);
     }
 
+    static boolean isNumeric(Type type) {
+        return type == Types.INT || type == Types.FLOAT;
+    }
+
     void compile(BinOpNode node) {
         if (node.op_tok == TokenType.Ampersand) {
             compile(node.left_node);
@@ -1210,45 +1317,49 @@ public class Compiler {
             return;
         }
 
-        compile(node.left_node);
-        compile(node.right_node);
+        Type leftType = compile(node.left_node);
+        Type rightType = compile(node.right_node);
+
+        // Statically typed operands get specialized opcodes, which still fall back to the generic path at runtime
+        boolean numeric = isNumeric(leftType) && isNumeric(rightType);
+        boolean strings = leftType == Types.STRING && rightType == Types.STRING;
         switch (node.op_tok) {
             case Plus:
-                emit(OpCode.Add, node.pos_start, node.pos_end);
+                emit(numeric ? OpCode.AddNum : strings ? OpCode.ConcatStr : OpCode.Add, node.pos_start, node.pos_end);
                 break;
             case Minus:
-                emit(OpCode.Subtract, node.pos_start, node.pos_end);
+                emit(numeric ? OpCode.SubtractNum : OpCode.Subtract, node.pos_start, node.pos_end);
                 break;
             case Star:
-                emit(OpCode.Multiply, node.pos_start, node.pos_end);
+                emit(numeric ? OpCode.MultiplyNum : OpCode.Multiply, node.pos_start, node.pos_end);
                 break;
             case Slash:
-                emit(OpCode.Divide, node.pos_start, node.pos_end);
+                emit(numeric ? OpCode.DivideNum : OpCode.Divide, node.pos_start, node.pos_end);
                 break;
             case Percent:
-                emit(OpCode.Modulo, node.pos_start, node.pos_end);
+                emit(numeric ? OpCode.ModuloNum : OpCode.Modulo, node.pos_start, node.pos_end);
                 break;
             case Caret:
                 emit(OpCode.Power, node.pos_start, node.pos_end);
                 break;
 
             case EqualEqual:
-                emit(OpCode.Equal, node.pos_start, node.pos_end);
+                emit(numeric ? OpCode.EqualNum : OpCode.Equal, node.pos_start, node.pos_end);
                 break;
             case BangEqual:
-                emit(new int[]{ OpCode.Equal, OpCode.Not }, node.pos_start, node.pos_end);
+                emit(new int[]{ numeric ? OpCode.EqualNum : OpCode.Equal, OpCode.Not }, node.pos_start, node.pos_end);
                 break;
             case RightAngle:
-                emit(OpCode.GreaterThan, node.pos_start, node.pos_end);
+                emit(numeric ? OpCode.GreaterThanNum : OpCode.GreaterThan, node.pos_start, node.pos_end);
                 break;
             case LeftAngle:
-                emit(OpCode.LessThan, node.pos_start, node.pos_end);
+                emit(numeric ? OpCode.LessThanNum : OpCode.LessThan, node.pos_start, node.pos_end);
                 break;
             case GreaterEquals:
-                emit(new int[]{ OpCode.LessThan, OpCode.Not }, node.pos_start, node.pos_end);
+                emit(new int[]{ numeric ? OpCode.LessThanNum : OpCode.LessThan, OpCode.Not }, node.pos_start, node.pos_end);
                 break;
             case LessEquals:
-                emit(new int[]{ OpCode.GreaterThan, OpCode.Not }, node.pos_start, node.pos_end);
+                emit(new int[]{ numeric ? OpCode.GreaterThanNum : OpCode.GreaterThan, OpCode.Not }, node.pos_start, node.pos_end);
                 break;
 
             case LeftBracket:
@@ -1333,12 +1444,12 @@ public class Compiler {
             emit(OpCode.GetGlobal, arg, start, end);
         }
         else if (accessEnclosed(name) != null) {
-            arg = chunk().addConstant(new Value(name));
-            emit(OpCode.GetAttr, arg, start, end);
+            attrOp(OpCode.GetAttr, name, start, end);
         }
         else if (inPattern) {
             arg = chunk().addConstant(new Value(name));
             addLocal(name, patternType, start, end);
+            locals[localCount - 1].constant = true;
             emit(OpCode.PatternVars, arg, start, end);
         }
         else {
@@ -1396,12 +1507,11 @@ public class Compiler {
         boolean usesRange = min != Integer.MIN_VALUE || max != Integer.MAX_VALUE;
         if (scopeDepth > 0) {
             markInitialized();
+            Local local = locals[localCount - 1];
+            local.constant = constant;
+            local.min = min;
+            local.max = max;
             emit(OpCode.DefineLocal, start, end);
-            emit(constant ? 1 : 0, start, end);
-            emit(usesRange ? 1 : 0, start, end);
-            if (usesRange) {
-                emit(min, max, start, end);
-            }
             return;
         }
 
@@ -1414,11 +1524,6 @@ public class Compiler {
         }
     }
 
-    void makeVar(int slot, boolean constant, @NotNull Position start, @NotNull Position end) {
-        emit(OpCode.MakeVar, slot, start, end);
-        emit(constant ? 1 : 0, start, end);
-    }
-
     void addLocal(String name, Type type, @NotNull Position start, @NotNull Position end) {
         Local local = new Local(new LocalToken(name, start.idx, end.idx - start.idx), type, scopeDepth);
 
@@ -1458,7 +1563,6 @@ public class Compiler {
 
     void compileAssign(Token varNameTok, Node value, @NotNull Position start, @NotNull Position end) {
         String name = varNameTok.value.toString();
-        int arg = resolveLocal(name);
 
         Type expected = variableType(name, start, end);
         Type actual = compile(value);
@@ -1467,10 +1571,20 @@ public class Compiler {
             error("Type", "Expected " + expected + " but got " + actual, start, end);
         }
 
+        setVariable(name, start, end);
+    }
+
+    void setVariable(String name, @NotNull Position start, @NotNull Position end) {
+        int arg = resolveLocal(name);
+
         if (arg != -1) {
+            Local local = locals[arg];
+            checkAssign(local.constant, local.min, local.max, start, end);
             emit(OpCode.SetLocal, arg, start, end);
         }
         else if ((arg = resolveUpvalue(name)) != -1) {
+            Upvalue upvalue = upvalues[arg];
+            checkAssign(upvalue.constant, upvalue.min, upvalue.max, start, end);
             emit(OpCode.SetUpvalue, arg, start, end);
         }
         else {
@@ -1479,6 +1593,23 @@ public class Compiler {
         }
     }
 
+    boolean checksAssign(int upvalue) {
+        Upvalue info = upvalues[upvalue];
+        return info.constant || info.min != Integer.MIN_VALUE || info.max != Integer.MAX_VALUE;
+    }
+
+    void checkAssign(boolean constant, int min, int max, @NotNull Position start, @NotNull Position end) {
+        boolean usesRange = min != Integer.MIN_VALUE || max != Integer.MAX_VALUE;
+        if (!constant && !usesRange) return;
+
+        emit(OpCode.CheckAssign, start, end);
+        emit(constant ? 1 : 0, start, end);
+        emit(usesRange ? 1 : 0, start, end);
+        if (usesRange) {
+            emit(min, max, start, end);
+        }
+    }
+
     interface CompilerWrapped {
         void compile(Compiler compiler);
     }
@@ -1634,6 +1765,7 @@ public class Compiler {
         }
 
         enclosingType = type;
+        enclosingSlots = slotLayout(node);
 
         for (int i = 0; i < node.generic_toks.size(); i++)
             compileNull(node.pos_start, node.pos_end);
@@ -1671,6 +1803,7 @@ public class Compiler {
         compile(constructor, true);
 
         enclosingType = Types.VOID;
+        enclosingSlots = null;
 
         emit(OpCode.Pop, node.pos_start, node.pos_end);
         compileNull(node.pos_start, node.pos_end);
@@ -1678,6 +1811,28 @@ public class Compiler {
         return type;
     }
 
+    boolean isThis(Node node) {
+        return node.jptype == JPType.VarAccess && ((VarAccessNode) node).var_name_tok.value.toString().equals("this");
+    }
+
+    // Mirrors how JClass lays out its shape: inherited attributes, then generics and attributes
+    // in the order the Class instruction lists them. Null if the parent's layout is not known.
+    List<String> slotLayout(ClassDefNode node) {
+        List<String> parent = node.parentToken != null ? classSlots.get(node.parentToken.value.toString()) : Collections.emptyList();
+        if (parent == null) return null;
+
+        List<String> slots = new ArrayList<>(parent);
+        for (Token tok : node.generic_toks)
+            if (!slots.contains(tok.value.toString()))
+                slots.add(tok.value.toString());
+        for (AttrDeclareNode attr : node.attributes)
+            if (!slots.contains(attr.name))
+                slots.add(attr.name);
+
+        classSlots.put(node.class_name_tok.value.toString(), slots);
+        return slots;
+    }
+
     void compile(MethDefNode node) {
         compile(node, false);
     }
@@ -1785,13 +1940,18 @@ public class Compiler {
         if (!node.retnull) emit(OpCode.StartCache, node.pos_start, node.pos_end);
         beginScope();
 
+        // The hidden slot holds the iterable, and OpCode.Iter keeps its iterator there
         String name = node.var_name_tok.value.toString();
-        copyVar(new Token(
+        Token iterTok = new Token(
                 TokenType.Identifier,
                 "@" + name,
                 node.var_name_tok.pos_start,
                 node.var_name_tok.pos_end
-        ), Types.LIST, node.iterable_node);
+        );
+        int global = parseVariable(iterTok, Types.LIST, iterTok.pos_start, iterTok.pos_end);
+        compile(node.iterable_node);
+        defineVariable(global, Types.LIST, false, iterTok.pos_start, node.iterable_node.pos_end);
+        emit(OpCode.Pop, node.iterable_node.pos_start, node.iterable_node.pos_end);
         compileDecl(node.var_name_tok,
                 Types.ANY,
                 false,
@@ -75,17 +75,40 @@ public class Disassembler {
             case OpCode.GreaterThan: return simpleInstruction("OP_GREATER_THAN", offset);
             case OpCode.LessThan: return simpleInstruction("OP_LESS_THAN", offset);
 
-            case OpCode.SetLocal: return byteInstruction("OP_SET_LOCAL", chunk, offset);
-            case OpCode.GetLocal: return byteInstruction("OP_GET_LOCAL", chunk, offset);
-            case OpCode.DefineLocal: return declInstruction("OP_DEFINE_LOCAL", chunk, offset, true);
+            case OpCode.AddNum: return simpleInstruction("OP_ADD_NUM", offset);
+            case OpCode.SubtractNum: return simpleInstruction("OP_SUBTRACT_NUM", offset);
+            case OpCode.MultiplyNum: return simpleInstruction("OP_MULTIPLY_NUM", offset);
+            case OpCode.DivideNum: return simpleInstruction("OP_DIVIDE_NUM", offset);
+            case OpCode.ModuloNum: return simpleInstruction("OP_MODULO_NUM", offset);
+            case OpCode.EqualNum: return simpleInstruction("OP_EQUAL_NUM", offset);
+            case OpCode.LessThanNum: return simpleInstruction("OP_LESS_THAN_NUM", offset);
+            case OpCode.GreaterThanNum: return simpleInstruction("OP_GREATER_THAN_NUM", offset);
+            case OpCode.ConcatStr: return simpleInstruction("OP_CONCAT_STR", offset);
+
+            case OpCode.NotEqual: return simpleInstruction("OP_NOT_EQUAL", offset);
+            case OpCode.GreaterEqual: return simpleInstruction("OP_GREATER_EQUAL", offset);
+            case OpCode.LessEqual: return simpleInstruction("OP_LESS_EQUAL", offset);
+
+            case OpCode.LocalConstArith: {
+                int slot = chunk.code.get(offset + 1);
+                int constant = chunk.code.get(offset + 2);
+                int op = chunk.code.get(offset + 3);
+                Shell.logger.debug(String.format("%-16s %04d %04d '%s' %04d%n", "OP_LOCAL_CONST_ARITH", slot, constant, chunk.constants.values.get(constant), op));
+                return offset + 4;
+            }
 
-            case OpCode.MakeVar: {
-                int arg = chunk.code.get(offset + 1);
-                String constant = chunk.code.get(offset + 2) == 1 ? "CONSTANT" : "MUTABLE";
-                Shell.logger.debug(String.format("%-16s %-16s %04d%n", constant, "OP_MAKE_VAR", arg));
+            case OpCode.CompareJump: {
+                int op = chunk.code.get(offset + 1);
+                int jump = chunk.code.get(offset + 2);
+                Shell.logger.debug(String.format("%-16s %04d %04d -> %04d%n", "OP_COMPARE_JUMP", op, offset, offset + 3 + jump));
                 return offset + 3;
             }
 
+            case OpCode.SetLocal: return byteInstruction("OP_SET_LOCAL", chunk, offset);
+            case OpCode.GetLocal: return byteInstruction("OP_GET_LOCAL", chunk, offset);
+            case OpCode.DefineLocal: return simpleInstruction("OP_DEFINE_LOCAL", offset);
+            case OpCode.CheckAssign: return declInstruction("OP_CHECK_ASSIGN", chunk, offset, true);
+
             case OpCode.Throw: return simpleInstruction("OP_THROW", offset);
             case OpCode.Assert: return simpleInstruction("OP_ASSERT", offset);
 
@@ -166,6 +189,16 @@ public class Disassembler {
 
             case OpCode.SetAttr: return byteInstruction("OP_SET_ATTR", chunk, offset);
             case OpCode.GetAttr: return byteInstruction("OP_GET_ATTR", chunk, offset);
+            case OpCode.SetSlot: return slotInstruction("OP_SET_SLOT", chunk, offset);
+            case OpCode.GetSlot: return slotInstruction("OP_GET_SLOT", chunk, offset);
+            case OpCode.AccessSlot: return slotInstruction("OP_ACCESS_SLOT", chunk, offset);
+
+            case OpCode.DefaultArgs: {
+                int argc = chunk.code.get(offset + 1);
+                int count = chunk.code.get(offset + 2);
+                Shell.logger.debug(String.format("%-16s %04d %04d%n", "OP_DEFAULT_ARGS", argc, count));
+                return offset + 3 + count;
+            }
 
             case OpCode.Import: {
                 int fromConstant = chunk.code.get(offset + 1);
@@ -228,6 +261,13 @@ public class Disassembler {
         return offset + 2;
     }
 
+    static int slotInstruction(String name, Chunk chunk, int offset) {
+        int slot = chunk.code.get(offset + 1);
+        int constant = chunk.code.get(offset + 2);
+        Shell.logger.debug(String.format("%-16s %04d '%s'%n", name, slot, chunk.constants.values.get(constant)));
+        return offset + 3;
+    }
+
     static int declInstruction(String name, Chunk chunk, int offset, boolean isLocal) {
         int arg = !isLocal ? chunk.code.get(offset + 1) : 0;
         int localOffset = !isLocal ? 1 : 0;
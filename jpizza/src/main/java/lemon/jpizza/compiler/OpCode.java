@@ -41,7 +41,6 @@ public class OpCode {
     public static final int Class = 0x26;
     public static final int Access = 0x27;
     public static final int Method = 0x28;
-    public static final int MakeVar = 0x29;
     public static final int SetAttr = 0x2A;
     public static final int GetAttr = 0x2B;
     public static final int Index = 0x2C;
@@ -74,4 +73,34 @@ public class OpCode {
     public static final int Destruct = 0x48;
     public static final int PatternVars = 0x49;
     public static final int Extend = 0x4B;
+
+    // Type-specialized forms, emitted when both operand types are known statically
+    public static final int AddNum = 0x4C;
+    public static final int SubtractNum = 0x4D;
+    public static final int MultiplyNum = 0x4E;
+    public static final int DivideNum = 0x4F;
+    public static final int ModuloNum = 0x50;
+    public static final int EqualNum = 0x51;
+    public static final int LessThanNum = 0x52;
+    public static final int GreaterThanNum = 0x53;
+    public static final int ConcatStr = 0x54;
+
+    // Superinstructions, produced by ChunkOptimizer from common sequences
+    public static final int NotEqual = 0x55;
+    public static final int GreaterEqual = 0x56;
+    public static final int LessEqual = 0x57;
+    public static final int LocalConstArith = 0x58;
+    public static final int CompareJump = 0x59;
+
+    // Checks an assignment to a constant or ranged local, whose slot holds just the value
+    public static final int CheckAssign = 0x5A;
+
+    // Attribute accesses inside methods, by the attribute's slot in the enclosing class's shape
+    public static final int GetSlot = 0x5B;
+    public static final int SetSlot = 0x5C;
+    // this::name for an attribute of the enclosing class, by slot
+    public static final int AccessSlot = 0x5D;
+
+    // Replaces the arguments a call by keyword skipped with the callee's defaults
+    public static final int DefaultArgs = 0x5E;
 }
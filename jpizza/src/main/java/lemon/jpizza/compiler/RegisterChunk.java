@@ -0,0 +1,88 @@
+package lemon.jpizza.compiler;
+
+import lemon.jpizza.compiler.values.Value;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RegisterChunk {
+    public final int[] code;
+    // Source index and length the stack VM reports for each instruction that can fail or call out, -1 otherwise
+    public final int[] spans;
+    // Constants live in the registers after the working ones, so instructions never load them
+    public final Value[] constants;
+    public final int registerCount;
+
+    // For each instruction offset, the ip the stack chunk would have at the same point,
+    // so errors and tracebacks point at the same place. Filled in by link()
+    public int[] sites;
+
+    public RegisterChunk(int[] code, int[] spans, Value[] constants, int registerCount) {
+        this.code = code;
+        this.spans = spans;
+        this.constants = constants;
+        this.registerCount = registerCount;
+    }
+
+    public Value[] registers() {
+        Value[] registers = new Value[registerCount + constants.length];
+        System.arraycopy(constants, 0, registers, registerCount, constants.length);
+        return registers;
+    }
+
+    static long span(int index, int len) {
+        return ((long) index << 32) | (len & 0xffffffffL);
+    }
+
+    // Maps each reported source span to the first instruction end where the stack VM reports it.
+    // Errors and tracebacks only look at the position before the ip, so any such ip gives the same output
+    static Map<Long, Integer> stackSites(Chunk chunk) {
+        Map<Long, Integer> sites = new HashMap<>();
+        int offset = 0;
+        int size = chunk.code.size();
+        while (offset < size) {
+            offset += ChunkOptimizer.length(chunk, offset);
+            FlatPosition position = chunk.getPosition(offset - 1);
+            sites.putIfAbsent(span(position.index, position.len), offset);
+        }
+        return sites;
+    }
+
+    public boolean link(Chunk chunk) {
+        Map<Long, Integer> stackSites = stackSites(chunk);
+        int[] sites = new int[code.length];
+        for (int pc = 0; pc < code.length; pc++) {
+            if (spans[pc * 2] == -1) continue;
+            Integer site = stackSites.get(span(spans[pc * 2], spans[pc * 2 + 1]));
+            if (site == null) return false;
+            sites[pc] = site;
+        }
+        this.sites = sites;
+        return true;
+    }
+
+    public int[] dump() {
+        List<Integer> list = new ArrayList<>(Collections.singletonList(ChunkCode.Registers));
+        list.add(registerCount);
+        list.add(constants.length);
+        for (Value constant : constants) {
+            int[] dump = constant.dump();
+            if (dump == null) {
+                list.add(0);
+                continue;
+            }
+            list.add(1);
+            for (int i : dump)
+                list.add(i);
+        }
+        list.add(code.length);
+        for (int i : code)
+            list.add(i);
+        for (int i : spans)
+            list.add(i);
+        return list.stream().mapToInt(Integer::intValue).toArray();
+    }
+}
@@ -0,0 +1,591 @@
+package lemon.jpizza.compiler;
+
+import lemon.jpizza.JPType;
+import lemon.jpizza.TokenType;
+import lemon.jpizza.cases.Case;
+import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.nodes.Node;
+import lemon.jpizza.nodes.definitions.FuncDefNode;
+import lemon.jpizza.nodes.definitions.VarAssignNode;
+import lemon.jpizza.nodes.expressions.*;
+import lemon.jpizza.nodes.operations.BinOpNode;
+import lemon.jpizza.nodes.operations.UnaryOpNode;
+import lemon.jpizza.nodes.values.BooleanNode;
+import lemon.jpizza.nodes.values.NumberNode;
+import lemon.jpizza.nodes.values.StringNode;
+import lemon.jpizza.nodes.variables.VarAccessNode;
+
+import java.util.*;
+
+// Builds a RegisterChunk for a function from the same AST the stack chunk was compiled from.
+// Only plain functions made of literals, locals, arithmetic, comparisons, conditionals, loops,
+// returns and positional calls are handled; anything else keeps running on the stack VM.
+public class RegisterCompiler {
+    public static boolean enabled = false;
+
+    static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    static final Object NULL_KEY = new Object();
+
+    final Compiler compiler;
+
+    final List<Integer> code = new ArrayList<>();
+    final List<Integer> spans = new ArrayList<>();
+    // Operand offsets that refer to a constant and are relocated once the register count is known
+    final List<Integer> constantOperands = new ArrayList<>();
+
+    final List<Value> constants = new ArrayList<>();
+    final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    final List<String> names = new ArrayList<>();
+    final Set<Integer> locked = new HashSet<>();
+    int next = 0;
+    int registerCount = 0;
+
+    // Stack ip at the end of each instruction, keyed by the span reported there
+    final Map<Long, Integer> stackSites;
+
+    RegisterCompiler(Compiler compiler) {
+        this.compiler = compiler;
+        this.stackSites = RegisterChunk.stackSites(compiler.chunk());
+    }
+
+    public static RegisterChunk compile(Compiler compiler, FuncDefNode node) {
+        if (node.async || node.catcher || node.defaultCount > 0 || node.argname != null ||
+                node.kwargname != null || !node.generic_toks.isEmpty())
+            return null;
+
+        int upvalueCount = compiler.function.upvalueCount;
+        try {
+            RegisterChunk chunk = new RegisterCompiler(compiler).function(node);
+            if (compiler.function.upvalueCount == upvalueCount && chunk.link(compiler.chunk()))
+                return chunk;
+        } catch (Unsupported ignored) {}
+
+        compiler.function.upvalueCount = upvalueCount;
+        return null;
+    }
+
+    RegisterChunk function(FuncDefNode node) {
+        for (int i = 0; i < node.arg_name_toks.size(); i++)
+            declare(node.arg_name_toks.get(i).value.toString(), false);
+
+        int result;
+        if (node.body_node.jptype == JPType.Body) {
+            statement(node.body_node);
+            result = nullConstant();
+        }
+        else {
+            result = operand(node.body_node);
+        }
+        emit(RegisterOpCode.Return);
+        register(result);
+
+        int[] code = new int[this.code.size()];
+        for (int i = 0; i < code.length; i++)
+            code[i] = this.code.get(i);
+        for (int offset : constantOperands)
+            code[offset] = registerCount + (-code[offset] - 1);
+
+        int[] spans = new int[this.spans.size()];
+        for (int i = 0; i < spans.length; i++)
+            spans[i] = this.spans.get(i);
+
+        return new RegisterChunk(code, spans, constants.toArray(new Value[0]), registerCount);
+    }
+
+    // Emitting
+
+    void emit(int b) {
+        code.add(b);
+        spans.add(-1);
+        spans.add(-1);
+    }
+
+    // Instructions that can fail or call out remember the source span the stack VM reports for them
+    void emit(int op, Node node) {
+        emit(op, span(node));
+    }
+
+    void emit(int op, long span) {
+        if (!stackSites.containsKey(span)) throw new Unsupported();
+        code.add(op);
+        spans.add((int) (span >> 32));
+        spans.add((int) span);
+    }
+
+    static long span(Node node) {
+        return RegisterChunk.span(node.pos_start.idx, node.pos_end.idx - node.pos_start.idx);
+    }
+
+    // Single byte stack instructions are reported at the last byte before them, which
+    // belongs to whatever node emitted the end of their operand's code
+    static long lastSpan(Node node) {
+        switch (node.jptype) {
+            case Number:
+            case String:
+            case Boolean:
+            case Null:
+            case Pass:
+            case VarAccess:
+            case Call:
+                return span(node);
+            case BinOp: {
+                BinOpNode binOp = (BinOpNode) node;
+                if (binOp.op_tok == TokenType.Ampersand || binOp.op_tok == TokenType.Pipe)
+                    return lastSpan(binOp.right_node);
+                return span(node);
+            }
+            case UnaryOp: {
+                UnaryOpNode unary = (UnaryOpNode) node;
+                return unary.op_tok == TokenType.Plus ? lastSpan(unary.node) : span(node);
+            }
+            default:
+                throw new Unsupported();
+        }
+    }
+
+    void register(int register) {
+        if (register < 0)
+            constantOperands.add(code.size());
+        emit(register);
+    }
+
+    int emitJump(int op) {
+        emit(op);
+        emit(-1);
+        return code.size() - 1;
+    }
+
+    void patchJump(int offset) {
+        code.set(offset, code.size());
+    }
+
+    // Registers
+
+    int temp() {
+        names.add(null);
+        next++;
+        registerCount = Math.max(registerCount, next);
+        return next - 1;
+    }
+
+    void free(int mark) {
+        while (next > mark) {
+            names.remove(--next);
+            locked.remove(next);
+        }
+    }
+
+    int declare(String name, boolean constant) {
+        int register = temp();
+        name(register, name, constant);
+        return register;
+    }
+
+    void name(int register, String name, boolean constant) {
+        names.set(register, name);
+        if (constant) locked.add(register);
+    }
+
+    int resolve(String name) {
+        for (int i = next - 1; i >= 0; i--)
+            if (name.equals(names.get(i)))
+                return i;
+        return -1;
+    }
+
+    int upvalue(String name) {
+        if (compiler.macros.containsKey(name)) throw new Unsupported();
+        int upvalue = compiler.resolveUpvalue(name);
+        if (upvalue == -1) throw new Unsupported();
+        return upvalue;
+    }
+
+    // Constants are encoded as negative operands until the register count is known
+    int constant(Object key, Value value) {
+        Integer index = constantIndex.get(key);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(key, index);
+        }
+        return -index - 1;
+    }
+
+    int nullConstant() {
+        return constant(NULL_KEY, Value.NULL);
+    }
+
+    // Statements
+
+    void statement(Node node) {
+        int mark = next;
+        switch (node.jptype) {
+            case VarAssign: {
+                VarAssignNode assign = (VarAssignNode) node;
+                String name = assign.var_name_tok.value.toString();
+                if (assign.defining) {
+                    if (assign.min != null || assign.max != null) throw new Unsupported();
+                    int register = temp();
+                    into(assign.value_node, register);
+                    free(register + 1);
+                    name(register, name, assign.locked);
+                    return;
+                }
+
+                int local = resolve(name);
+                if (local != -1) {
+                    if (locked.contains(local)) throw new Unsupported();
+                    if (computesInPlace(assign.value_node)) {
+                        into(assign.value_node, local);
+                    }
+                    else {
+                        int value = operand(assign.value_node);
+                        if (value != local) move(local, value);
+                    }
+                }
+                else {
+                    int upvalue = upvalue(name);
+                    if (compiler.checksAssign(upvalue)) throw new Unsupported();
+                    int value = operand(assign.value_node);
+                    emit(RegisterOpCode.SetUpvalue, node);
+                    emit(upvalue);
+                    register(value);
+                }
+                break;
+            }
+
+            case While:
+                loop((WhileNode) node);
+                break;
+            case For:
+                loop((ForNode) node);
+                break;
+            case Query:
+                query((QueryNode) node, -1);
+                break;
+            case Return: {
+                ReturnNode ret = (ReturnNode) node;
+                int value = ret.nodeToReturn != null ? operand(ret.nodeToReturn) : nullConstant();
+                emit(RegisterOpCode.Return);
+                register(value);
+                break;
+            }
+            case Body:
+                for (Node statement : ((BodyNode) node).statements)
+                    statement(statement);
+                break;
+
+            default:
+                operand(node);
+                break;
+        }
+        free(mark);
+    }
+
+    // Arithmetic and comparisons read both operands before writing, so they can target the variable being assigned
+    boolean computesInPlace(Node node) {
+        if (node.jptype != JPType.BinOp) return false;
+        TokenType op = ((BinOpNode) node).op_tok;
+        return arithmetic(op) != -1 || comparison(op) != -1;
+    }
+
+    void loop(WhileNode node) {
+        if (!node.retnull) throw new Unsupported();
+
+        int skipFirst = node.conLast ? emitJump(RegisterOpCode.Jump) : -1;
+        int loopStart = code.size();
+        int exit = condition(node.condition_node);
+
+        if (skipFirst != -1) patchJump(skipFirst);
+        scoped(node.body_node);
+
+        emit(RegisterOpCode.Jump);
+        emit(loopStart);
+        patchJump(exit);
+    }
+
+    void loop(ForNode node) {
+        if (!node.retnull) throw new Unsupported();
+        int mark = next;
+
+        int var = temp();
+        into(node.start_value_node, var);
+        emit(RegisterOpCode.Copy);
+        register(var);
+        register(var);
+        name(var, node.var_name_tok.value.toString(), false);
+
+        int firstSkip = emitJump(RegisterOpCode.Jump);
+        int loopStart = code.size();
+
+        int end = operand(node.end_value_node);
+        int step = node.step_value_node != null ? operand(node.step_value_node) : constant(1L, Value.of(1L));
+        emit(RegisterOpCode.ForStep);
+        register(var);
+        register(end);
+        register(step);
+        emit(-1);
+        int exit = code.size() - 1;
+        free(var + 1);
+
+        patchJump(firstSkip);
+        scoped(node.body_node);
+
+        emit(RegisterOpCode.Jump);
+        emit(loopStart);
+        patchJump(exit);
+        free(mark);
+    }
+
+    void scoped(Node body) {
+        int mark = next;
+        statement(body);
+        free(mark);
+    }
+
+    // Compiles a condition and returns the operand of the jump taken when it is false
+    int condition(Node node) {
+        int mark = next;
+        if (node.jptype == JPType.BinOp) {
+            BinOpNode binOp = (BinOpNode) node;
+            int op = comparison(binOp.op_tok);
+            if (op != -1) {
+                int a = operand(binOp.left_node);
+                int b = operand(binOp.right_node);
+                emit(RegisterOpCode.Branch, lastSpan(binOp.right_node));
+                emit(op);
+                register(a);
+                register(b);
+                emit(-1);
+                free(mark);
+                return code.size() - 1;
+            }
+        }
+
+        int value = operand(node);
+        emit(RegisterOpCode.JumpIfFalse);
+        register(value);
+        emit(-1);
+        free(mark);
+        return code.size() - 1;
+    }
+
+    // Writes the value of the query to dst, or discards it when dst is -1
+    void query(QueryNode node, int dst) {
+        List<Integer> ends = new ArrayList<>();
+        int lastJump = -1;
+
+        for (Case nodeCase : node.cases) {
+            if (lastJump != -1) patchJump(lastJump);
+            lastJump = condition(nodeCase.condition);
+            branch(nodeCase.statements, nodeCase.returnValue, dst);
+            ends.add(emitJump(RegisterOpCode.Jump));
+        }
+
+        if (lastJump != -1) patchJump(lastJump);
+        if (node.else_case != null)
+            branch(node.else_case.statements, node.else_case.returnValue, dst);
+        else if (dst != -1)
+            move(dst, nullConstant());
+
+        for (int end : ends)
+            patchJump(end);
+    }
+
+    void branch(Node statements, boolean returnValue, int dst) {
+        int mark = next;
+        if (dst == -1 || !returnValue) {
+            statement(statements);
+            if (dst != -1) move(dst, nullConstant());
+        }
+        else {
+            into(statements, dst);
+        }
+        free(mark);
+    }
+
+    // Expressions
+
+    void move(int dst, int src) {
+        emit(RegisterOpCode.Move);
+        register(dst);
+        register(src);
+    }
+
+    // Returns a register holding the value of node, reusing local and constant registers where possible
+    int operand(Node node) {
+        switch (node.jptype) {
+            case Number: {
+                double val = ((NumberNode) node).val;
+                if (Value.isIntegral(val))
+                    return constant((long) val, new Value((long) val));
+                return constant(val, new Value(val));
+            }
+            case String: {
+                String val = ((StringNode) node).val;
+                return constant(val, new Value(val));
+            }
+            case Boolean: {
+                boolean val = ((BooleanNode) node).val;
+                return constant(val, new Value(val));
+            }
+            case Null:
+            case Pass:
+                return nullConstant();
+            case VarAccess: {
+                int local = resolve(((VarAccessNode) node).var_name_tok.value.toString());
+                if (local != -1) return local;
+                break;
+            }
+        }
+        int register = temp();
+        into(node, register);
+        return register;
+    }
+
+    void into(Node node, int dst) {
+        int mark = next;
+        switch (node.jptype) {
+            case Number:
+            case String:
+            case Boolean:
+            case Null:
+            case Pass:
+                move(dst, operand(node));
+                break;
+
+            case VarAccess: {
+                String name = ((VarAccessNode) node).var_name_tok.value.toString();
+                int local = resolve(name);
+                if (local != -1) {
+                    if (local != dst) move(dst, local);
+                    break;
+                }
+                int upvalue = upvalue(name);
+                emit(RegisterOpCode.GetUpvalue, node);
+                register(dst);
+                emit(upvalue);
+                break;
+            }
+
+            case BinOp:
+                binOp((BinOpNode) node, dst);
+                break;
+
+            case UnaryOp: {
+                UnaryOpNode unary = (UnaryOpNode) node;
+                if (unary.op_tok == TokenType.Plus) {
+                    into(unary.node, dst);
+                    break;
+                }
+                int op;
+                if (unary.op_tok == TokenType.Minus) op = RegisterOpCode.Negate;
+                else if (unary.op_tok == TokenType.Bang) op = RegisterOpCode.Not;
+                else throw new Unsupported();
+                int a = operand(unary.node);
+                emit(op, lastSpan(unary.node));
+                register(dst);
+                register(a);
+                break;
+            }
+
+            case Call:
+                call((CallNode) node, dst);
+                break;
+
+            case Query:
+                query((QueryNode) node, dst);
+                break;
+
+            case Body:
+            case While:
+            case For:
+                statement(node);
+                move(dst, nullConstant());
+                break;
+
+            default:
+                throw new Unsupported();
+        }
+        free(mark);
+    }
+
+    void binOp(BinOpNode node, int dst) {
+        if (node.op_tok == TokenType.Ampersand || node.op_tok == TokenType.Pipe) {
+            into(node.left_node, dst);
+            emit(node.op_tok == TokenType.Ampersand ? RegisterOpCode.JumpIfFalse : RegisterOpCode.JumpIfTrue);
+            register(dst);
+            emit(-1);
+            int jump = code.size() - 1;
+            into(node.right_node, dst);
+            patchJump(jump);
+            return;
+        }
+
+        int op = arithmetic(node.op_tok);
+        int kind = RegisterOpCode.Arith;
+        if (op == -1) {
+            op = comparison(node.op_tok);
+            kind = RegisterOpCode.Compare;
+        }
+        if (op == -1) throw new Unsupported();
+
+        int a = operand(node.left_node);
+        int b = operand(node.right_node);
+        emit(kind, lastSpan(node.right_node));
+        emit(op);
+        register(dst);
+        register(a);
+        register(b);
+    }
+
+    void call(CallNode node, int dst) {
+        if (!node.kwargs.isEmpty()) throw new Unsupported();
+
+        int argc = node.argNodes.size();
+        int first = next;
+        for (int i = 0; i < argc; i++)
+            temp();
+        for (int i = 0; i < argc; i++)
+            into(node.argNodes.get(i), first + i);
+        int callee = operand(node.nodeToCall);
+
+        emit(RegisterOpCode.Call, node);
+        register(dst);
+        register(callee);
+        emit(first);
+        emit(argc);
+    }
+
+    static int arithmetic(TokenType op) {
+        switch (op) {
+            case Plus: return OpCode.Add;
+            case Minus: return OpCode.Subtract;
+            case Star: return OpCode.Multiply;
+            case Slash: return OpCode.Divide;
+            case Percent: return OpCode.Modulo;
+            case Caret: return OpCode.Power;
+            default: return -1;
+        }
+    }
+
+    static int comparison(TokenType op) {
+        switch (op) {
+            case EqualEqual: return OpCode.Equal;
+            case BangEqual: return OpCode.NotEqual;
+            case LeftAngle: return OpCode.LessThan;
+            case RightAngle: return OpCode.GreaterThan;
+            case GreaterEquals: return OpCode.GreaterEqual;
+            case LessEquals: return OpCode.LessEqual;
+            default: return -1;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package lemon.jpizza.compiler;
+
+// Three-address instructions run by RegisterVM. Operands are register indices unless noted,
+// jump operands are absolute offsets into the register code.
+public class RegisterOpCode {
+    // DST SRC
+    public static final int Move = 0x00;
+    // DST SRC, shallow copy of SRC
+    public static final int Copy = 0x01;
+    // DST UPVALUE
+    public static final int GetUpvalue = 0x02;
+    // UPVALUE SRC
+    public static final int SetUpvalue = 0x03;
+    // OP DST A B, OP is the stack OpCode of the operation
+    public static final int Arith = 0x04;
+    public static final int Compare = 0x05;
+    // DST A
+    public static final int Negate = 0x06;
+    public static final int Not = 0x07;
+    // TARGET
+    public static final int Jump = 0x08;
+    // A TARGET
+    public static final int JumpIfFalse = 0x09;
+    public static final int JumpIfTrue = 0x0A;
+    // OP A B TARGET, jumps when the comparison is false
+    public static final int Branch = 0x0B;
+    // VAR END STEP TARGET, same stepping rules as OpCode.For
+    public static final int ForStep = 0x0C;
+    // DST CALLEE FIRST ARGC, arguments are in FIRST..FIRST+ARGC-1
+    public static final int Call = 0x0D;
+    // SRC
+    public static final int Return = 0x0E;
+}
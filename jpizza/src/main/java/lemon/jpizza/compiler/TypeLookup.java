@@ -8,6 +8,7 @@ import lemon.jpizza.compiler.types.GenericType;
 import lemon.jpizza.compiler.types.Type;
 import lemon.jpizza.compiler.types.Types;
 import lemon.jpizza.compiler.types.objects.*;
+import lemon.jpizza.compiler.values.Value;
 import lemon.jpizza.compiler.values.functions.JFunc;
 import lemon.jpizza.generators.Parser;
 import lemon.jpizza.nodes.Node;
@@ -248,7 +249,7 @@ public class TypeLookup {
 
             case Number: {
                 NumberNode node = (NumberNode) statement;
-                return (long) node.val == node.val ? Types.INT : Types.FLOAT;
+                return Value.isIntegral(node.val) ? Types.INT : Types.FLOAT;
             }
             case String:
                 return Types.STRING;
@@ -386,25 +387,35 @@ public class TypeLookup {
             }
         }
 
-        Type returnType = resolve(node.returnType, node.pos_start, node.pos_end);
+        // Calling an async function gives a future, whatever its body returns
+        Type returnType = node.async ? Types.ANY : resolve(node.returnType, node.pos_start, node.pos_end);
         Type[] argTypes = new Type[node.arg_type_toks.size()];
         for (int i = 0; i < node.arg_type_toks.size(); i++) {
             Token argTypeTok = node.arg_type_toks.get(i);
             argTypes[i] = resolve(argTypeTok);
         }
 
+        String[] argNames = null;
+        if (node.kwargname == null) {
+            argNames = new String[node.arg_name_toks.size()];
+            for (int i = 0; i < argNames.length; i++)
+                argNames[i] = node.arg_name_toks.get(i).value.toString();
+        }
+
         // Remove newly introduced generic types from type map
         for (String generic : removeLater)
             types.remove(generic);
 
-        return new FuncType(returnType, argTypes, generics, node.argname != null, node.defaultCount);
+        return new FuncType(returnType, argTypes, generics, node.argname != null, node.defaultCount, argNames);
     }
 
     private Type resolve(CallNode node) {
+        node = compiler.positionalCall(node);
         Type func = resolve(node.nodeToCall);
         Type[] argTypes = new Type[node.argNodes.size()];
         for (int i = 0; i < node.argNodes.size(); i++) {
-            argTypes[i] = resolve(node.argNodes.get(i));
+            // Skipped for the parameter's default
+            argTypes[i] = node.argNodes.get(i) != null ? resolve(node.argNodes.get(i)) : compiler.keywordTarget(node.nodeToCall).parameterTypes[i];
         }
         Type[] generics = new Type[node.generics.size()];
         for (int i = 0; i < node.generics.size(); i++) {
@@ -1,36 +1,149 @@
 package lemon.jpizza.compiler.headers;
 
 import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.values.functions.JFunc;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Stack;
+import java.util.*;
 
+// Results of calls made under #memoize, keyed by the function called and its arguments.
+// One memo is shared by every VM, async threads included, so everything is synchronized on it.
+// It keeps at most capacity results and drops the least recently used one to make room.
 public class Memo {
-    List<Cache> caches;
-    Stack<Cache> stack;
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    public static class Stats {
+        public long hits;
+        public long misses;
+        public long evictions;
+
+        public Map<String, Long> asMap() {
+            Map<String, Long> map = new HashMap<>();
+            map.put("hits", hits);
+            map.put("misses", misses);
+            map.put("evictions", evictions);
+            return map;
+        }
+    }
+
+    // A call: the function and its arguments, hashed the way Value.equals compares them
+    public static class Key {
+        final JFunc function;
+        final Value[] args;
+        final int hash;
+
+        public Key(JFunc function, Value[] args) {
+            this.function = function;
+            this.args = args;
+
+            int hash = System.identityHashCode(function);
+            for (Value arg : args)
+                hash = 31 * hash + hash(arg);
+            this.hash = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return function == key.function && hash == key.hash && Arrays.equals(args, key.args);
+        }
+    }
+
+    private final LinkedHashMap<Key, Value> results;
+    private final Map<String, Stats> functions = new HashMap<>();
+    private final Stats total = new Stats();
+    private int capacity = DEFAULT_CAPACITY;
 
     public Memo() {
-        this.caches = new ArrayList<>();
-        this.stack = new Stack<>();
+        this.results = new LinkedHashMap<Key, Value>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+                if (size() <= capacity) return false;
+                total.evictions++;
+                stats(eldest.getKey().function).evictions++;
+                return true;
+            }
+        };
     }
 
-    public void stackCache(String name, Value[] args) {
-        Cache c = new Cache(name, args, null);
-        caches.add(c);
-        stack.add(c);
+    // The stored result of the call, or null after counting a miss
+    public synchronized Value get(Key key) {
+        Value result = results.get(key);
+        Stats stats = stats(key.function);
+        if (result != null) {
+            total.hits++;
+            stats.hits++;
+        }
+        else {
+            total.misses++;
+            stats.misses++;
+        }
+        return result;
     }
 
-    public void storeCache(Value result) {
-        stack.pop().store(result);
+    public synchronized void store(Key key, Value result) {
+        results.put(key, result);
     }
 
-    public Value get(String key, Value[] args) {
-        for (Cache cache : caches) {
-            if (cache.equals(key, args)) {
-                return cache.getValue();
-            }
+    public synchronized void clear() {
+        results.clear();
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        this.capacity = Math.max(capacity, 0);
+        Iterator<Map.Entry<Key, Value>> iterator = results.entrySet().iterator();
+        while (results.size() > this.capacity && iterator.hasNext()) {
+            Key eldest = iterator.next().getKey();
+            iterator.remove();
+            total.evictions++;
+            stats(eldest.function).evictions++;
+        }
+    }
+
+    // Counters for every memoized call, plus how full the memo is
+    public synchronized Map<String, Long> stats() {
+        Map<String, Long> map = total.asMap();
+        map.put("size", (long) results.size());
+        map.put("capacity", (long) capacity);
+        return map;
+    }
+
+    // Counters for the calls to functions with this name
+    public synchronized Map<String, Long> stats(String name) {
+        Stats stats = functions.get(name);
+        return stats != null ? stats.asMap() : new Stats().asMap();
+    }
+
+    private Stats stats(JFunc function) {
+        return functions.computeIfAbsent(String.valueOf(function.name), k -> new Stats());
+    }
+
+    static int hash(Value value) {
+        if (value.isNull())
+            return 0;
+        if (value.isNumber()) {
+            // Ints equal floats of the same value, and 0.0 equals -0.0
+            double number = value.asNumber();
+            return Double.hashCode(number == 0 ? 0.0 : number);
+        }
+        if (value.isBool())
+            return Boolean.hashCode(value.asBool());
+        if (value.isString())
+            return value.asString().hashCode();
+        if (value.isList()) {
+            int hash = 1;
+            for (Value element : value.asList())
+                hash = 31 * hash + hash(element);
+            return hash;
         }
-        return null;
+        // Maps and enum children compare by content but have no usable hash, so they share a bucket
+        if (value.isMap() || value.isEnumChild())
+            return value.kind();
+        return System.identityHashCode(value);
     }
 }
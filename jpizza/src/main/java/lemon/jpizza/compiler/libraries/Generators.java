@@ -1,12 +1,11 @@
 package lemon.jpizza.compiler.libraries;
 
 import lemon.jpizza.compiler.types.Types;
+import lemon.jpizza.compiler.values.Range;
+import lemon.jpizza.compiler.values.Value;
 import lemon.jpizza.compiler.vm.JPExtension;
 import lemon.jpizza.compiler.vm.VM;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Generators extends JPExtension {
     @Override
     public String name() { return "gens"; }
@@ -17,14 +16,16 @@ public class Generators extends JPExtension {
 
     @Override
     public void setup() {
+        // Ranges compute their elements when they are read instead of building the whole list
         func("range", (args) -> {
             double start = args[0].asNumber();
             double end = args[1].asNumber();
             double step = args[2].asNumber();
-            List<Double> list = new ArrayList<>();
-            for (double i = start; i < end; i += step)
-                list.add(i);
-            return Ok(list);
+            try {
+                return Ok(new Value(Range.of(start, end, step)));
+            } catch (IllegalArgumentException e) {
+                return Err("Range", e.getMessage());
+            }
         }, Types.LIST, Types.FLOAT, Types.FLOAT, Types.FLOAT);
         func("linear", (args) -> {
             double start = args[0].asNumber();
@@ -34,10 +35,11 @@ public class Generators extends JPExtension {
             double m = args[3].asNumber();
             double b = args[4].asNumber();
 
-            List<Double> list = new ArrayList<>();
-            for (double i = start; i < end; i += step)
-                list.add(m * i + b);
-            return Ok(list);
+            try {
+                return Ok(new Value(Range.linear(start, end, step, m, b)));
+            } catch (IllegalArgumentException e) {
+                return Err("Range", e.getMessage());
+            }
         }, Types.LIST, Types.FLOAT, Types.FLOAT, Types.FLOAT, Types.FLOAT, Types.FLOAT);
         func("quadratic", (args) -> {
             double start = args[0].asNumber();
@@ -48,10 +50,11 @@ public class Generators extends JPExtension {
             double b = args[4].asNumber();
             double c = args[5].asNumber();
 
-            List<Double> list = new ArrayList<>();
-            for (double i = start; i < end; i += step)
-                list.add(a * i * i + b * i + c);
-            return Ok(list);
+            try {
+                return Ok(new Value(Range.quadratic(start, end, step, a, b, c)));
+            } catch (IllegalArgumentException e) {
+                return Err("Range", e.getMessage());
+            }
         }, Types.LIST, Types.FLOAT, Types.FLOAT, Types.FLOAT, Types.FLOAT, Types.FLOAT, Types.FLOAT);
     }
 }
@@ -175,7 +175,7 @@ public class IOFile extends JPExtension {
             try {
                 boolean created = file.createNewFile();
                 FileOutputStream fos = new FileOutputStream(file);
-                if (obj.isBytes) {
+                if (obj.isBytes()) {
                     fos.write(obj.asBytes());
                 }
                 else {
@@ -39,19 +39,19 @@ public class JPSon extends JPExtension {
     }
 
     private String dump(Value value) {
-        if (value.isString) {
+        if (value.isString()) {
             return "\"" + value.asString() + "\"";
         }
-        else if (value.isNumber) {
-            return value.asNumber().toString();
+        else if (value.isNumber()) {
+            return Double.toString(value.asNumber());
         }
-        else if (value.isBool) {
+        else if (value.isBool()) {
             return value.asBool() ? "true" : "false";
         }
-        else if (value.isList) {
+        else if (value.isList()) {
             return dumpList(value.asList());
         }
-        else if (value.isMap) {
+        else if (value.isMap()) {
             return dumpMap(value.asMap());
         }
         else {
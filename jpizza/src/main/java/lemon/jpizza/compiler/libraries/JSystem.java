@@ -79,6 +79,18 @@ public class JSystem extends JPExtension {
         // VM Info
         var("jpv", VM.VERSION, Types.STRING);
 
+        // Memoization
+        func("memoStats", (args) -> Ok(VM.memo.stats()), Types.DICT);
+        func("memoStatsOf", (args) -> Ok(VM.memo.stats(args[0].asString())), Types.DICT, Types.STRING);
+        func("setMemoCapacity", (args) -> {
+            VM.memo.setCapacity((int) args[0].asNumber());
+            return Ok;
+        }, Types.VOID, Types.INT);
+        func("clearMemo", (args) -> {
+            VM.memo.clear();
+            return Ok;
+        }, Types.VOID);
+
         // Environment Variables
         func("envVarExists", (args) -> Ok(System.getenv(args[0].asString()) != null), Types.BOOL, Types.STRING);
         func("getEnvVar", (args) -> {
@@ -113,7 +125,7 @@ public class JSystem extends JPExtension {
 
         // System
         func("exit", (args) -> {
-            int code = args[0].asNumber().intValue();
+            int code = (int) args[0].asNumber();
             System.exit(code);
             return Ok;
         }, Types.VOID, Types.INT);
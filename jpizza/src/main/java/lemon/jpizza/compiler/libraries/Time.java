@@ -4,7 +4,6 @@ import lemon.jpizza.compiler.types.GenericType;
 import lemon.jpizza.compiler.types.Type;
 import lemon.jpizza.compiler.types.Types;
 import lemon.jpizza.compiler.types.objects.FuncType;
-import lemon.jpizza.compiler.values.Value;
 import lemon.jpizza.compiler.values.functions.NativeResult;
 import lemon.jpizza.compiler.vm.JPExtension;
 import lemon.jpizza.compiler.vm.VM;
@@ -22,15 +21,15 @@ public class Time extends JPExtension {
         func("epoch", (args) -> Ok(System.currentTimeMillis()), Types.INT);
         func("halt", (args) -> {
             try {
-                Thread.sleep(args[0].asNumber().intValue());
+                Thread.sleep((int) args[0].asNumber());
             } catch (InterruptedException e) {
                 return Err("Internal", "Interrupted");
             }
             return Ok;
         }, Types.VOID, Types.INT);
-        func("stopwatch", (args) -> {
+        func("stopwatch", (vm, args) -> {
             long start = System.currentTimeMillis();
-            NativeResult ret = VM.Run(args[0].asClosure(), new Value[0]);
+            NativeResult ret = vm.callback(args[0].asClosure());
             if (!ret.ok()) return ret;
             long end = System.currentTimeMillis();
             return Ok(end - start);
@@ -137,7 +137,7 @@ public class AbstractWindowToolkit extends JPExtension {
 
         int[] c = new int[3];
         for (int i = 0; i < 3; i++) {
-            c[i] = Math.min(255, Math.max(0, values[i].asNumber().intValue()));
+            c[i] = Math.min(255, Math.max(0, (int) values[i].asNumber()));
         }
 
         return c;
@@ -154,7 +154,7 @@ public class AbstractWindowToolkit extends JPExtension {
 
     private static Point getPoint(Value point) {
         Value[] p = point.asTuple();
-        return new Point(p[0].asNumber().intValue(), p[1].asNumber().intValue());
+        return new Point((int) p[0].asNumber(), (int) p[1].asNumber());
     }
 
     private static void flush() {
@@ -199,8 +199,8 @@ public class AbstractWindowToolkit extends JPExtension {
     @Override
     public void setup() {
         // Constants
-        var("SAVE", 32.0, Types.INT);
-        var("OPEN", 64.0, Types.INT);
+        var("SAVE", 32, Types.INT);
+        var("OPEN", 64, Types.INT);
 
         // Init
         func("init", args -> {
@@ -237,7 +237,7 @@ public class AbstractWindowToolkit extends JPExtension {
             return Ok;
         }), Types.VOID, Types.STRING);
         func("setSize", ifInit(args -> {
-            window.setSize(args[0].asNumber().intValue(), args[1].asNumber().intValue());
+            window.setSize((int) args[0].asNumber(), (int) args[1].asNumber());
             return Ok;
         }), Types.VOID, Types.INT, Types.INT);
         func("setIcon", ifInit(args -> {
@@ -255,7 +255,7 @@ public class AbstractWindowToolkit extends JPExtension {
             window.setFont(
                     args[0].asString(),
                     args[1].asString(),
-                    args[2].asNumber().intValue()
+                    (int) args[2].asNumber()
             );
             return Ok;
         }), Types.VOID, Types.STRING, Types.STRING, Types.INT);
@@ -275,7 +275,7 @@ public class AbstractWindowToolkit extends JPExtension {
             return Ok;
         }), Types.VOID, Types.BOOL);
         func("setStrokeSize", ifInit(args -> {
-            window.setStroke(args[0].asNumber().intValue());
+            window.setStroke((int) args[0].asNumber());
             return Ok;
         }), Types.VOID, Types.INT);
         func("exit", ifInit(args -> {
@@ -303,7 +303,7 @@ public class AbstractWindowToolkit extends JPExtension {
             return Ok;
         }), Types.VOID);
         func("refreshLoop", ifInit(args -> {
-            window.refresh(args[0].asNumber().intValue());
+            window.refresh((int) args[0].asNumber());
             return Ok;
         }), Types.INT);
         func("refreshUnloop", ifInit(args -> {
@@ -354,10 +354,10 @@ public class AbstractWindowToolkit extends JPExtension {
         func("drawPoly", poly(true), Types.VOID, Types.LIST, colorType);
         func("tracePoly", poly(false), Types.VOID, Types.LIST, colorType);
         func("drawOval", ifInit(args -> {
-            int x = args[0].asNumber().intValue();
-            int y = args[1].asNumber().intValue();
-            int w = args[2].asNumber().intValue();
-            int h = args[3].asNumber().intValue();
+            int x = (int) args[0].asNumber();
+            int y = (int) args[1].asNumber();
+            int w = (int) args[2].asNumber();
+            int h = (int) args[3].asNumber();
             int[] c = getColor(args[4]);
 
             draw(new Oval(
@@ -370,9 +370,9 @@ public class AbstractWindowToolkit extends JPExtension {
             return Ok;
         }), Types.VOID, Types.INT, Types.INT, Types.INT, Types.INT, colorType);
         func("drawCircle", ifInit(args -> {
-            int r = args[0].asNumber().intValue();
-            int x = args[1].asNumber().intValue();
-            int y = args[2].asNumber().intValue();
+            int r = (int) args[0].asNumber();
+            int x = (int) args[1].asNumber();
+            int y = (int) args[2].asNumber();
             int[] c = getColor(args[3]);
 
             draw(new Oval(
@@ -385,10 +385,10 @@ public class AbstractWindowToolkit extends JPExtension {
             return Ok;
         }), Types.VOID, Types.INT, Types.INT, Types.INT, colorType);
         func("drawRect", ifInit(args -> {
-            int x = args[0].asNumber().intValue();
-            int y = args[1].asNumber().intValue();
-            int w = args[2].asNumber().intValue();
-            int h = args[3].asNumber().intValue();
+            int x = (int) args[0].asNumber();
+            int y = (int) args[1].asNumber();
+            int w = (int) args[2].asNumber();
+            int h = (int) args[3].asNumber();
             int[] c = getColor(args[4]);
 
             draw(new Rectangle(
@@ -401,9 +401,9 @@ public class AbstractWindowToolkit extends JPExtension {
             return Ok;
         }), Types.VOID, Types.INT, Types.INT, Types.INT, Types.INT, colorType);
         func("drawSquare", ifInit(args -> {
-            int r = args[0].asNumber().intValue();
-            int x = args[1].asNumber().intValue();
-            int y = args[2].asNumber().intValue();
+            int r = (int) args[0].asNumber();
+            int x = (int) args[1].asNumber();
+            int y = (int) args[2].asNumber();
             int[] c = getColor(args[3]);
 
             draw(new Rectangle(
@@ -417,8 +417,8 @@ public class AbstractWindowToolkit extends JPExtension {
         }), Types.VOID, Types.INT, Types.INT, Types.INT, colorType);
         func("drawText", ifInit(args -> {
             String text = args[0].asString();
-            int x = args[1].asNumber().intValue();
-            int y = args[2].asNumber().intValue();
+            int x = (int) args[1].asNumber();
+            int y = (int) args[2].asNumber();
             int[] c = getColor(args[3]);
 
             draw(new Text(
@@ -432,8 +432,8 @@ public class AbstractWindowToolkit extends JPExtension {
         }), Types.VOID, Types.STRING, Types.INT, Types.INT, colorType);
         func("drawImage", ifInit(args -> {
             String path = args[0].asString();
-            int x = args[1].asNumber().intValue();
-            int y = args[2].asNumber().intValue();
+            int x = (int) args[1].asNumber();
+            int y = (int) args[2].asNumber();
 
             try {
                 draw(new Img(path, x, y));
@@ -444,10 +444,10 @@ public class AbstractWindowToolkit extends JPExtension {
         }), Types.VOID, Types.STRING, Types.INT, Types.INT);
         func("sizedImage", ifInit(args -> {
             String path = args[0].asString();
-            int x = args[1].asNumber().intValue();
-            int y = args[2].asNumber().intValue();
-            int w = args[3].asNumber().intValue();
-            int h = args[4].asNumber().intValue();
+            int x = (int) args[1].asNumber();
+            int y = (int) args[2].asNumber();
+            int w = (int) args[3].asNumber();
+            int h = (int) args[4].asNumber();
 
             try {
                 draw(new Img(path, x, y, w, h));
@@ -457,8 +457,8 @@ public class AbstractWindowToolkit extends JPExtension {
             }
         }), Types.VOID, Types.STRING, Types.INT, Types.INT, Types.INT, Types.INT);
         func("setPixel", ifInit(args -> {
-            int x = args[0].asNumber().intValue();
-            int y = args[1].asNumber().intValue();
+            int x = (int) args[0].asNumber();
+            int y = (int) args[1].asNumber();
             int[] c = getColor(args[2]);
             setPixel(new Point(x, y), new Color(c[0], c[1], c[2]));
             return Ok;
@@ -481,7 +481,7 @@ public class AbstractWindowToolkit extends JPExtension {
             return Ok(windows.size() - 1);
         }, Types.INT);
         func("setWindow", args -> {
-            index = args[0].asNumber().intValue();
+            index = (int) args[0].asNumber();
             if (index >= windows.size() || index < 0) {
                 return Err("Out of Bounds", "Window index out of bounds");
             }
@@ -502,7 +502,7 @@ public class AbstractWindowToolkit extends JPExtension {
     private void input() {
         // Mouse
         func("mouseDown", ifInit(args -> {
-            int key = args[0].asNumber().intValue();
+            int key = (int) args[0].asNumber();
             if (key < 0 || key >= 3) {
                 return Err("Out of Bounds", "Mouse key out of bounds");
             }
@@ -570,7 +570,7 @@ public class AbstractWindowToolkit extends JPExtension {
             }
 
             int res;
-            switch (args[2].asNumber().intValue()) {
+            switch ((int) args[2].asNumber()) {
                 case 32:
                     res = fileChooser.showSaveDialog(null);
                     break;
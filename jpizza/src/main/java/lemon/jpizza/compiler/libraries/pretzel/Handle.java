@@ -21,10 +21,13 @@ import java.util.Map;
 public class Handle implements HttpHandler {
     private final String route;
     private final JClosure handle;
+    // The VM that set up the route, whose globals the handler runs with
+    private final VM vm;
 
-    public Handle(String route, JClosure handle) {
+    public Handle(String route, JClosure handle, VM vm) {
         this.route = route;
         this.handle = handle;
+        this.vm = vm;
     }
 
      /*
@@ -89,13 +92,13 @@ public class Handle implements HttpHandler {
     private void handleResponse(HttpExchange exchange, Map<Value, Value> data) throws IOException {
         OutputStream outputStream = exchange.getResponseBody();
 
-        NativeResult result = VM.Run(handle, new Value[]{ new Value(data) });
+        NativeResult result = vm.callOnWorker(handle, new Value(data));
         if (!result.ok()) {
             logError(exchange, outputStream, result);
             return;
         }
         Value val = result.value();
-        if (!val.isMap) {
+        if (!val.isMap()) {
             logError(exchange, outputStream, "Response must be a map");
         }
 
@@ -105,25 +108,25 @@ public class Handle implements HttpHandler {
         Value header = null;
 
         for (Map.Entry<Value, Value> entry : response.entrySet()) {
-            if (entry.getKey().isString && entry.getKey().asString().equals("code")) {
+            if (entry.getKey().isString() && entry.getKey().asString().equals("code")) {
                 code = entry.getValue();
             }
-            else if (entry.getKey().isString && entry.getKey().asString().equals("header")) {
+            else if (entry.getKey().isString() && entry.getKey().asString().equals("header")) {
                 header = entry.getValue();
             }
         }
 
-        if (code == null || !code.isNumber) {
+        if (code == null || !code.isNumber()) {
             logError(exchange, outputStream, "Invalid response: missing code");
             return;
         }
 
-        if (header == null || !header.isString) {
+        if (header == null || !header.isString()) {
             logError(exchange, outputStream, "Invalid response: missing header");
             return;
         }
 
-        int codeInt = code.asNumber().intValue();
+        int codeInt = (int) code.asNumber();
         String headerString = header.asString();
 
         exchange.sendResponseHeaders(codeInt, headerString.length());
@@ -29,7 +29,7 @@ public class Pretzel extends JPExtension {
     public void setup() {
         func("init", args -> {
             String host = args[0].toString();
-            int port = args[1].asNumber().intValue();
+            int port = (int) args[1].asNumber();
 
             try {
                 server = HttpServer.create(new InetSocketAddress(host, port), 0);
@@ -39,7 +39,7 @@ public class Pretzel extends JPExtension {
 
             return Ok;
         }, Types.VOID, Types.STRING, Types.INT);
-        func("route", args -> {
+        func("route", (vm, args) -> {
             if (server == null) {
                 return Err("Init", "Server not initialized");
             }
@@ -47,7 +47,7 @@ public class Pretzel extends JPExtension {
             String path = args[0].toString();
             JClosure handler = args[1].asClosure();
 
-            server.createContext(path, new Handle(path, handler));
+            server.createContext(path, new Handle(path, handler, vm));
 
             return Ok;
         }, Types.VOID, Types.STRING, new FuncType(Types.DICT, new Type[]{ Types.DICT }, new GenericType[0], false));
@@ -67,35 +67,35 @@ public class PDL extends JPExtension {
         // Client
         iofunc("connect", args -> {
             String host = args[0].toString();
-            int port = args[1].asNumber().intValue();
+            int port = (int) args[1].asNumber();
             Socket sock = new Socket(host, port);
             int id = ClientPDL.Create(sock);
             return Ok(id);
         }, Types.INT, Types.STRING, Types.INT);
         iofunc("write", args -> {
-            int id = args[0].asNumber().intValue();
+            int id = (int) args[0].asNumber();
             byte[] data = args[1].asBytes();
-            int offset = args[2].asNumber().intValue();
-            int length = args[3].asNumber().intValue();
+            int offset = (int) args[2].asNumber();
+            int length = (int) args[3].asNumber();
             return asClient(id, client -> {
                 client.write(data, offset, length);
                 return Ok;
             });
         }, Types.VOID, Types.INT, Types.BYTES, Types.INT, Types.INT);
         iofunc("read", args -> {
-            int id = args[0].asNumber().intValue();
-            int offset = args[1].asNumber().intValue();
-            int length = args[2].asNumber().intValue();
+            int id = (int) args[0].asNumber();
+            int offset = (int) args[1].asNumber();
+            int length = (int) args[2].asNumber();
             return asClient(id, client -> Ok(client.read(offset, length)));
         }, Types.BYTES, Types.INT, Types.INT, Types.INT);
 
         // Server
         iofunc("host", args -> {
-            int port = args[0].asNumber().intValue();
+            int port = (int) args[0].asNumber();
             return Ok(ServerPDL.Create(port));
         }, Types.INT, Types.INT);
         iofunc("accept", args -> {
-            int id = args[0].asNumber().intValue();
+            int id = (int) args[0].asNumber();
             return asServer(id, server -> Ok(server.accept()));
         }, Types.INT, Types.INT);
     }
@@ -16,18 +16,25 @@ public class FuncType extends Type {
     public final GenericType[] generics;
     public final boolean varargs;
     public final int defaultCount;
+    // Only known for functions defined in source without a **kwargs parameter
+    public final String[] parameterNames;
 
     public FuncType(Type returnType, Type[] parameterTypes, GenericType[] generics, boolean varargs) {
         this(returnType, parameterTypes, generics, varargs, 0);
     }
 
     public FuncType(Type returnType, Type[] parameterTypes, GenericType[] generics, boolean varargs, int defaultCount) {
+        this(returnType, parameterTypes, generics, varargs, defaultCount, null);
+    }
+
+    public FuncType(Type returnType, Type[] parameterTypes, GenericType[] generics, boolean varargs, int defaultCount, String[] parameterNames) {
         super("function");
         this.returnType = returnType;
         this.parameterTypes = parameterTypes;
         this.generics = generics;
         this.varargs = varargs;
         this.defaultCount = defaultCount;
+        this.parameterNames = parameterNames;
     }
 
     @Override
@@ -42,7 +49,7 @@ public class FuncType extends Type {
         for (int i = 0; i < parameterTypes.length; i++) {
             parameterTypes[i] = this.parameterTypes[i].applyGenerics(generics);
         }
-        return new FuncType(returnType, parameterTypes, this.generics, this.varargs, this.defaultCount);
+        return new FuncType(returnType, parameterTypes, this.generics, this.varargs, this.defaultCount, this.parameterNames);
     }
 
     @Override
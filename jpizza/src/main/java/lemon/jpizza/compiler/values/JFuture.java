@@ -0,0 +1,52 @@
+package lemon.jpizza.compiler.values;
+
+import lemon.jpizza.compiler.values.functions.NativeResult;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+// The result of a call to an async function.
+// The call is run once, by whichever comes first: a thread of the async pool, or a thread
+// awaiting it before it started. Running it in place is what keeps an async call that awaits
+// another from deadlocking when every pool thread is already waiting.
+// A call that fails keeps the rendered error, for the pool to report if nothing awaits it.
+public class JFuture {
+    private final Function<JFuture, NativeResult> call;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final CompletableFuture<NativeResult> result = new CompletableFuture<>();
+    private volatile boolean awaited = false;
+    private volatile String error;
+
+    public JFuture(Function<JFuture, NativeResult> call) {
+        this.call = call;
+    }
+
+    public void run() {
+        if (started.compareAndSet(false, true))
+            result.complete(call.apply(this));
+    }
+
+    public void fail(String error) {
+        this.error = error;
+    }
+
+    // The error of a failed call no one awaited, or null
+    public String unawaitedError() {
+        return awaited ? null : error;
+    }
+
+    public boolean isDone() {
+        return result.isDone();
+    }
+
+    public NativeResult await() {
+        awaited = true;
+        run();
+        return result.join();
+    }
+
+    public String toString() {
+        return "<future>";
+    }
+}
@@ -0,0 +1,81 @@
+package lemon.jpizza.compiler.values;
+
+import lemon.jpizza.compiler.values.classes.Instance;
+
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+
+// The state of a for-in loop, kept in the loop's hidden slot.
+// Lists, strings and bytes are walked by index and dicts by their keys, all in place. A list is
+// walked up to the size it had when the loop started, so elements appended by the loop are not
+// visited; one that shrinks below the current index stops the loop with an error, as does a dict
+// that gains or loses keys.
+// An instance with a bin next method is asked for each element by the VM instead, and
+// anything else is iterated over its asList().
+public class JIterator {
+    // Set when the elements come from calling next on an instance
+    public final Instance instance;
+
+    private List<Value> list;
+    private int size;
+    private String string;
+    private byte[] bytes;
+    private Iterator<Value> keys;
+    private int index = 0;
+
+    public JIterator(Instance instance) {
+        this.instance = instance;
+    }
+
+    public JIterator(Value value) {
+        this.instance = null;
+        switch (value.kind()) {
+            case ValueKind.List:
+                list = value.asList();
+                size = list.size();
+                break;
+            case ValueKind.String:
+                string = value.asString();
+                break;
+            case ValueKind.Bytes:
+                bytes = value.asBytes();
+                break;
+            case ValueKind.Map:
+                keys = value.asMap().keySet().iterator();
+                break;
+            case ValueKind.Null:
+                list = Collections.emptyList();
+                break;
+            default:
+                list = value.asList();
+                size = list.size();
+                break;
+        }
+    }
+
+    // Both throw ConcurrentModificationException once the list shrank too far or the dict changed size
+    public boolean hasNext() {
+        if (list != null) {
+            if (index >= size) return false;
+            if (index >= list.size())
+                throw new ConcurrentModificationException("List changed size during iteration");
+            return true;
+        }
+        if (string != null) return index < string.length();
+        if (bytes != null) return index < bytes.length;
+        return keys.hasNext();
+    }
+
+    public Value next() {
+        if (list != null) return list.get(index++);
+        if (string != null) return new Value(String.valueOf(string.charAt(index++)));
+        if (bytes != null) return new Value(bytes[index++]);
+        return keys.next();
+    }
+
+    public String toString() {
+        return "<iterator>";
+    }
+}
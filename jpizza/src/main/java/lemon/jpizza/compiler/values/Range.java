@@ -0,0 +1,120 @@
+package lemon.jpizza.compiler.values;
+
+import java.util.*;
+
+// The list the gens library returns: start, start + step, ... up to (not including) end,
+// optionally mapped through a linear or quadratic function.
+// Elements are computed when they are read, so a range takes the same memory whatever its size.
+// Anything that changes the list turns it into an ordinary ArrayList first, so ranges
+// behave exactly like the lists they stand for.
+public class Range extends AbstractList<Value> implements RandomAccess {
+    private static final int IDENTITY = 0;
+    private static final int LINEAR = 1;
+    private static final int QUADRATIC = 2;
+
+    private final double start;
+    private final double step;
+    private final int size;
+
+    private final int shape;
+    private final double a, b, c;
+
+    private List<Value> materialized;
+
+    private Range(double start, double step, int size, int shape, double a, double b, double c) {
+        this.start = start;
+        this.step = step;
+        this.size = size;
+        this.shape = shape;
+        this.a = a;
+        this.b = b;
+        this.c = c;
+    }
+
+    public static Range of(double start, double end, double step) {
+        return new Range(start, step, count(start, end, step), IDENTITY, 0, 0, 0);
+    }
+
+    // m * x + b over the range
+    public static Range linear(double start, double end, double step, double m, double b) {
+        return new Range(start, step, count(start, end, step), LINEAR, 0, m, b);
+    }
+
+    // a * x^2 + b * x + c over the range
+    public static Range quadratic(double start, double end, double step, double a, double b, double c) {
+        return new Range(start, step, count(start, end, step), QUADRATIC, a, b, c);
+    }
+
+    // Number of k with start + k * step < end
+    private static int count(double start, double end, double step) {
+        if (!(start < end)) return 0;
+        if (!(step > 0))
+            throw new IllegalArgumentException("Step must be positive");
+
+        double estimate = Math.ceil((end - start) / step);
+        if (estimate > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Range has too many elements");
+        int n = (int) estimate;
+        while (n > 0 && start + (n - 1) * step >= end) n--;
+        while (n < Integer.MAX_VALUE && start + n * step < end) n++;
+        return n;
+    }
+
+    private double at(int index) {
+        double x = start + index * step;
+        switch (shape) {
+            case LINEAR: return b * x + c;
+            case QUADRATIC: return a * x * x + b * x + c;
+            default: return x;
+        }
+    }
+
+    public boolean isLazy() {
+        return materialized == null;
+    }
+
+    private List<Value> materialize() {
+        if (materialized == null) {
+            materialized = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+                materialized.add(new Value(at(i)));
+        }
+        return materialized;
+    }
+
+    @Override
+    public Value get(int index) {
+        if (materialized != null) return materialized.get(index);
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        return new Value(at(index));
+    }
+
+    @Override
+    public int size() {
+        return materialized != null ? materialized.size() : size;
+    }
+
+    @Override
+    public Value set(int index, Value element) {
+        return materialize().set(index, element);
+    }
+
+    @Override
+    public void add(int index, Value element) {
+        materialize().add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public Value remove(int index) {
+        modCount++;
+        return materialize().remove(index);
+    }
+
+    @Override
+    public void clear() {
+        modCount++;
+        materialize().clear();
+    }
+}
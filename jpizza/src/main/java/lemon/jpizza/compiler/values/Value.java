@@ -20,356 +20,500 @@ import java.util.*;
 import java.util.stream.Collectors;
 
 public class Value {
-    protected double number;
-    protected String string;
-    protected boolean bool;
-    protected List<Value> list;
-    protected Map<Value, Value> map;
-    protected JFunc func;
-    protected JNative nativeFunc;
-    protected Var var;
-    protected JClosure closure;
-    protected JClass jClass;
-    protected Instance instance;
-    protected BoundMethod boundMethod;
-    protected Namespace namespace;
-    protected JEnum enumParent;
-    protected JEnumChild enumChild;
-    protected Spread spread;
-    protected Value ref;
-    protected byte[] bytes;
-    protected Result res;
-    protected String patternBinding;
-    protected Pattern pattern;
-    protected Value[] tuple;
-
-    public boolean isNull = false;
-    public boolean isNumber = false;
-    public boolean isString = false;
-    public boolean isList = false;
-    public boolean isMap = false;
-    public boolean isBool = false;
-    public boolean isFunc = false;
-    public boolean isNativeFunc = false;
-    public boolean isVar = false;
-    public boolean isClosure = false;
-    public boolean isClass = false;
-    public boolean isInstance = false;
-    public boolean isBoundMethod = false;
-    public boolean isNamespace = false;
-    public boolean isEnumParent = false;
-    public boolean isEnumChild = false;
-    public boolean isSpread = false;
-    public boolean isRef = false;
-    public boolean isBytes = false;
-    public boolean isRes = false;
-    public boolean isPatternBinding = false;
-    public boolean isPattern = false;
-    public boolean isTuple = false;
+    // A value is a kind tag (see ValueKind) and one payload.
+    // Ints, floats (as raw bits) and booleans are kept in the primitive slot, everything else in the reference slot.
+    protected int kind;
+    protected long primitive;
+    protected Object payload;
+
+    // Canonical instances handed out by the VM so hot paths do not allocate.
+    // Numbers, booleans and null are never mutated in place, so sharing them is safe.
+    public static final Value NULL = new Value();
+    public static final Value TRUE = new Value(true);
+    public static final Value FALSE = new Value(false);
+
+    private static final int CACHE_LOW = -128;
+    private static final int CACHE_HIGH = 1024;
+    private static final Value[] SMALL_INTS = new Value[CACHE_HIGH - CACHE_LOW + 1];
+    static {
+        for (int i = 0; i < SMALL_INTS.length; i++) {
+            SMALL_INTS[i] = new Value((long) (i + CACHE_LOW));
+        }
+    }
+
+    public static Value of(boolean bool) {
+        return bool ? TRUE : FALSE;
+    }
+
+    public static Value of(long integer) {
+        if (integer >= CACHE_LOW && integer <= CACHE_HIGH) {
+            return SMALL_INTS[(int) integer - CACHE_LOW];
+        }
+        return new Value(integer);
+    }
+
+    public static Value of(double number) {
+        return new Value(number);
+    }
+
+    // Same rule TypeLookup uses to type a number literal as int rather than float
+    public static boolean isIntegral(double number) {
+        return (long) number == number && number < 0x1p63;
+    }
 
     public Value() {
-        this.isNull = true;
+        this.kind = ValueKind.Null;
     }
 
     public Value(Value... values) {
-        this.tuple = values;
-        this.isTuple = true;
+        this.kind = ValueKind.Tuple;
+        this.payload = values;
     }
 
     public Value(Pattern pattern) {
-        this.pattern = pattern;
-        this.isPattern = true;
+        this.kind = ValueKind.Pattern;
+        this.payload = pattern;
     }
 
     public Value(Result res) {
-        this.res = res;
-        this.isRes = true;
+        this.kind = ValueKind.Res;
+        this.payload = res;
     }
 
     public Value(byte[] bytes) {
-        this.bytes = bytes;
-        this.isBytes = true;
+        this.kind = ValueKind.Bytes;
+        this.payload = bytes;
     }
 
     public Value(Value value) {
-        this.ref = value;
-        this.isRef = true;
+        this.kind = ValueKind.Ref;
+        this.payload = value;
     }
 
     public static Value patternBinding(String patternBinding) {
         Value value = new Value();
-        value.patternBinding = patternBinding;
-        value.isPatternBinding = true;
-        value.isNull = false;
+        value.kind = ValueKind.PatternBinding;
+        value.payload = patternBinding;
         return value;
     }
 
+    public Value(JIterator iterator) {
+        this.kind = ValueKind.Iterator;
+        this.payload = iterator;
+    }
+
+    public Value(JFuture future) {
+        this.kind = ValueKind.Future;
+        this.payload = future;
+    }
+
     public Value(Spread spread) {
-        this.spread = spread;
-        this.isSpread = true;
+        this.kind = ValueKind.Spread;
+        this.payload = spread;
     }
 
     public Value(JEnum enumParent) {
-        this.enumParent = enumParent;
-        this.isEnumParent = true;
+        this.kind = ValueKind.EnumParent;
+        this.payload = enumParent;
     }
 
     public Value(JEnumChild enumChild) {
-        this.enumChild = enumChild;
-        this.isEnumChild = true;
+        this.kind = ValueKind.EnumChild;
+        this.payload = enumChild;
     }
 
     public Value(Namespace namespace) {
-        this.namespace = namespace;
-        this.isNamespace = true;
+        this.kind = ValueKind.Namespace;
+        this.payload = namespace;
     }
 
     public Value(BoundMethod boundMethod) {
-        this.boundMethod = boundMethod;
-        this.isBoundMethod = true;
+        this.kind = ValueKind.BoundMethod;
+        this.payload = boundMethod;
     }
 
     public Value(JClosure closure) {
-        this.closure = closure;
-        this.isClosure = true;
+        this.kind = ValueKind.Closure;
+        this.payload = closure;
     }
 
     public Value(JClass jClass) {
-        this.jClass = jClass;
-        this.isClass = true;
+        this.kind = ValueKind.Class;
+        this.payload = jClass;
     }
 
     public Value(Instance instance) {
-        this.instance = instance;
-        this.isInstance = true;
+        this.kind = ValueKind.Instance;
+        this.payload = instance;
     }
 
     public Value(Var var) {
-        this.var = var;
-        this.isVar = true;
+        this.kind = ValueKind.Var;
+        this.payload = var;
+    }
+
+    public Value(long integer) {
+        this.kind = ValueKind.Int;
+        this.primitive = integer;
     }
 
     public Value(double number) {
-        this.number = number;
-        this.isNumber = true;
+        this.kind = ValueKind.Float;
+        this.primitive = Double.doubleToRawLongBits(number);
     }
 
     public Value(String string) {
-        this.string = string;
-        this.isString = true;
+        this.kind = ValueKind.String;
+        this.payload = string;
     }
 
     public Value(boolean bool) {
-        this.bool = bool;
-        this.isBool = true;
+        this.kind = ValueKind.Boolean;
+        this.primitive = bool ? 1 : 0;
     }
 
     public Value(List<Value> list) {
-        this.list = list;
-        this.isList = true;
+        this.kind = ValueKind.List;
+        this.payload = list;
     }
 
     public Value(Map<Value, Value> map) {
-        this.map = map;
-        this.isMap = true;
+        this.kind = ValueKind.Map;
+        this.payload = map;
     }
 
     public Value(JFunc func) {
-        this.func = func;
-        this.isFunc = true;
+        this.kind = ValueKind.Func;
+        this.payload = func;
     }
 
     public Value(JNative nativeFunc) {
-        this.nativeFunc = nativeFunc;
-        this.isNativeFunc = true;
+        this.kind = ValueKind.NativeFunc;
+        this.payload = nativeFunc;
     }
 
-    public Double asNumber() {
-        if (isNumber) {
-            return number;
-        }
-        else if (isString) {
-            return (double) string.length();
-        }
-        else if (isBool) {
-            return bool ? 1.0 : 0.0;
-        }
-        else if (isList) {
-            return (double) list.size();
-        }
-        else if (isMap) {
-            return (double) map.size();
-        }
-        else if (isInstance) {
-            return instance.asNumber();
-        }
-        else if (isRef) {
-            return ref.asNumber();
-        }
-        else if (isRes) {
-            return res.isError() ? 0.0 : 1.0;
+    public int kind() {
+        return kind;
+    }
+
+    public boolean isNull() {
+        return kind == ValueKind.Null;
+    }
+
+    public boolean isNumber() {
+        return kind == ValueKind.Int || kind == ValueKind.Float;
+    }
+
+    public boolean isInt() {
+        return kind == ValueKind.Int;
+    }
+
+    public boolean isFloat() {
+        return kind == ValueKind.Float;
+    }
+
+    public boolean isString() {
+        return kind == ValueKind.String;
+    }
+
+    public boolean isList() {
+        return kind == ValueKind.List;
+    }
+
+    public boolean isMap() {
+        return kind == ValueKind.Map;
+    }
+
+    public boolean isBool() {
+        return kind == ValueKind.Boolean;
+    }
+
+    public boolean isFunc() {
+        return kind == ValueKind.Func;
+    }
+
+    public boolean isNativeFunc() {
+        return kind == ValueKind.NativeFunc;
+    }
+
+    public boolean isVar() {
+        return kind == ValueKind.Var;
+    }
+
+    public boolean isClosure() {
+        return kind == ValueKind.Closure;
+    }
+
+    public boolean isClass() {
+        return kind == ValueKind.Class;
+    }
+
+    public boolean isInstance() {
+        return kind == ValueKind.Instance;
+    }
+
+    public boolean isBoundMethod() {
+        return kind == ValueKind.BoundMethod;
+    }
+
+    public boolean isNamespace() {
+        return kind == ValueKind.Namespace;
+    }
+
+    public boolean isEnumParent() {
+        return kind == ValueKind.EnumParent;
+    }
+
+    public boolean isEnumChild() {
+        return kind == ValueKind.EnumChild;
+    }
+
+    public boolean isSpread() {
+        return kind == ValueKind.Spread;
+    }
+
+    public boolean isRef() {
+        return kind == ValueKind.Ref;
+    }
+
+    public boolean isBytes() {
+        return kind == ValueKind.Bytes;
+    }
+
+    public boolean isRes() {
+        return kind == ValueKind.Res;
+    }
+
+    public boolean isPatternBinding() {
+        return kind == ValueKind.PatternBinding;
+    }
+
+    public boolean isPattern() {
+        return kind == ValueKind.Pattern;
+    }
+
+    public boolean isTuple() {
+        return kind == ValueKind.Tuple;
+    }
+
+    public boolean isIterator() {
+        return kind == ValueKind.Iterator;
+    }
+
+    public boolean isFuture() {
+        return kind == ValueKind.Future;
+    }
+
+    // Unchecked payload access, only valid once the kind is known
+    private String string() {
+        return (String) payload;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Value> list() {
+        return (List<Value>) payload;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<Value, Value> map() {
+        return (Map<Value, Value>) payload;
+    }
+
+    private Value ref() {
+        return (Value) payload;
+    }
+
+    private Instance instance() {
+        return (Instance) payload;
+    }
+
+    private Result res() {
+        return (Result) payload;
+    }
+
+    private boolean bool() {
+        return primitive != 0;
+    }
+
+    private double number() {
+        return Double.longBitsToDouble(primitive);
+    }
+
+    public double asNumber() {
+        switch (kind) {
+            case ValueKind.Float:
+                return number();
+            case ValueKind.Int:
+                return primitive;
+            case ValueKind.String:
+                return (double) string().length();
+            case ValueKind.Boolean:
+                return bool() ? 1.0 : 0.0;
+            case ValueKind.List:
+                return (double) list().size();
+            case ValueKind.Map:
+                return (double) map().size();
+            case ValueKind.Instance:
+                return instance().asNumber();
+            case ValueKind.Ref:
+                return ref().asNumber();
+            case ValueKind.Res:
+                return res().isError() ? 0.0 : 1.0;
+            default:
+                return 0.0;
         }
-        return 0.0;
+    }
+
+    public long asInt() {
+        return kind == ValueKind.Int ? primitive : (long) asNumber();
     }
 
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean asBool() {
-        if (isBool) {
-            return bool;
-        }
-        else if (this.isNull) {
-            return false;
+        switch (kind) {
+            case ValueKind.Boolean:
+                return bool();
+            case ValueKind.Null:
+                return false;
+            case ValueKind.Int:
+                return primitive != 0;
+            case ValueKind.Float:
+                return number() != 0.0;
+            case ValueKind.String:
+                return !string().isEmpty();
+            case ValueKind.List:
+                return !list().isEmpty();
+            case ValueKind.Map:
+                return !map().isEmpty();
+            case ValueKind.Instance:
+                return instance().asBool();
+            case ValueKind.Ref:
+                return ref().asBool();
+            case ValueKind.Res:
+                return !res().isError();
+            default:
+                return false;
         }
-        else if (isNumber) {
-            return number != 0.0;
-        }
-        else if (isString) {
-            return !string.isEmpty();
-        }
-        else if (isList) {
-            return !list.isEmpty();
-        }
-        else if (isMap) {
-            return !map.isEmpty();
-        }
-        else if (isInstance) {
-            return instance.asBool();
-        }
-        else if (isRef) {
-            return ref.asBool();
-        }
-        else if (isRes) {
-            return !res.isError();
-        }
-        return false;
     }
 
     @SuppressWarnings("DuplicatedCode")
     public String asString() {
-        if (isString) {
-            return string;
-        }
-        else if (this.isNull) {
-            return "";
-        }
-        else if (isNumber) {
-            if (number == Double.MAX_VALUE) {
-                return "Infinity";
+        switch (kind) {
+            case ValueKind.String:
+                return string();
+            case ValueKind.Null:
+                return "";
+            case ValueKind.Int:
+                return String.valueOf(primitive);
+            case ValueKind.Float: {
+                double number = number();
+                if (number == Double.MAX_VALUE) {
+                    return "Infinity";
+                }
+                else if (number == Double.MIN_VALUE) {
+                    return "-Infinity";
+                }
+
+                if (Math.floor(number) == number && number < Long.MAX_VALUE && number > Long.MIN_VALUE) {
+                    return String.valueOf((long) number);
+                }
+                return String.valueOf(number);
+            }
+            case ValueKind.Boolean:
+                return String.valueOf(bool());
+            case ValueKind.List: {
+                StringBuilder result = new StringBuilder("[");
+                list().forEach(k -> {
+                    if (k.isString()) {
+                        result.append('"').append(k.string()).append('"');
+                    }
+                    else {
+                        result.append(k.asString());
+                    }
+                    result.append(", ");
+                });
+                if (result.length() > 1) {
+                    result.setLength(result.length() - 2);
+                } result.append("]");
+                return result.toString();
             }
-            else if (number == Double.MIN_VALUE) {
-                return "-Infinity";
+            case ValueKind.Map: {
+                StringBuilder result = new StringBuilder("{");
+                map().forEach((k, v) -> {
+                    if (k.isString()) {
+                        result.append('"').append(k.string()).append('"');
+                    }
+                    else {
+                        result.append(k.asString());
+                    }
+                    result.append(": ");
+                    if (v.isString()) {
+                        result.append('"').append(v.string()).append('"');
+                    }
+                    else {
+                        result.append(v.asString());
+                    }
+                    result.append(", ");
+                });
+                if (result.length() > 1) {
+                    result.setLength(result.length() - 2);
+                } result.append("}");
+                return result.toString();
             }
+            case ValueKind.Func:
+            case ValueKind.Var:
+            case ValueKind.NativeFunc:
+            case ValueKind.Class:
+            case ValueKind.Instance:
+            case ValueKind.BoundMethod:
+            case ValueKind.Future:
+                return payload.toString();
+            case ValueKind.Closure:
+                return ((JClosure) payload).function.toString();
+            case ValueKind.Namespace:
+                return ((Namespace) payload).name();
+            case ValueKind.EnumParent:
+                return ((JEnum) payload).name();
+            case ValueKind.EnumChild: {
+                JEnumChild enumChild = (JEnumChild) payload;
+                return enumChild.type() + "::" + enumChild.getValue();
+            }
+            case ValueKind.Ref:
+                return ref().asString();
+            case ValueKind.Bytes: {
+                byte[] bytes = (byte[]) payload;
+                StringBuilder sb = new StringBuilder();
+
+                for (int i = 0; i < bytes.length; i++)
+                    sb.append(bytes[i]).append(", ");
 
-            if (Math.floor(number) == number && number < Long.MAX_VALUE && number > Long.MIN_VALUE) {
-                return String.valueOf((long) number);
+                return "{ " + sb + "len=" + bytes.length + " }";
             }
-            return String.valueOf(number);
-        }
-        else if (isBool) {
-            return String.valueOf(bool);
-        }
-        else if (isList) {
-            StringBuilder result = new StringBuilder("[");
-            list.forEach(k -> {
-                if (k.isString) {
-                    result.append('"').append(k.string).append('"');
+            case ValueKind.Res: {
+                Result res = res();
+                if (res.isError()) {
+                    return String.format("(\"%s\" : \"%s\")", res.getErrorMessage(), res.getErrorReason());
                 }
                 else {
-                    result.append(k.asString());
+                    return String.format("(%s)", res.getValue());
                 }
-                result.append(", ");
-            });
-            if (result.length() > 1) {
-                result.setLength(result.length() - 2);
-            } result.append("]");
-            return result.toString();
-        }
-        else if (isMap) {
-            StringBuilder result = new StringBuilder("{");
-            map.forEach((k, v) -> {
-                if (k.isString) {
-                    result.append('"').append(k.string).append('"');
-                }
-                else {
-                    result.append(k.asString());
+            }
+            case ValueKind.PatternBinding:
+                return "{ pattern: " + payload + " }";
+            case ValueKind.Pattern: {
+                Pattern pattern = (Pattern) payload;
+                StringBuilder sb = new StringBuilder(pattern.value.toString() + " { ");
+                for (Map.Entry<String, Value> entry : pattern.cases.entrySet()) {
+                    sb.append(entry.getKey()).append(": ").append(entry.getValue().asString()).append(", ");
                 }
-                result.append(": ");
-                if (v.isString) {
-                    result.append('"').append(v.string).append('"');
+                for (Map.Entry<String, String> entry : pattern.matches.entrySet()) {
+                    sb.append(entry.getKey()).append(": ").append(entry.getValue()).append(", ");
                 }
-                else {
-                    result.append(v.asString());
-                }
-                result.append(", ");
-            });
-            if (result.length() > 1) {
-                result.setLength(result.length() - 2);
-            } result.append("}");
-            return result.toString();
-        }
-        else if (isFunc) {
-            return func.toString();
-        }
-        else if (isClosure) {
-            return closure.function.toString();
-        }
-        else if (isVar) {
-            return var.toString();
-        }
-        else if (isNativeFunc) {
-            return nativeFunc.toString();
-        }
-        else if (isClass) {
-            return jClass.toString();
-        }
-        else if (isInstance) {
-            return instance.toString();
-        }
-        else if (isBoundMethod) {
-            return boundMethod.toString();
-        }
-        else if (isNamespace) {
-            return namespace.name();
-        }
-        else if (isEnumParent) {
-            return enumParent.name();
-        }
-        else if (isEnumChild) {
-            return enumChild.type() + "::" + enumChild.getValue();
-        }
-        else if (isRef) {
-            return ref.asString();
-        }
-        else if (isBytes) {
-            StringBuilder sb = new StringBuilder();
-
-            for (int i = 0; i < bytes.length; i++)
-                sb.append(bytes[i]).append(", ");
-
-            return "{ " + sb + "len=" + bytes.length + " }";
-        }
-        else if (isRes) {
-            if (res.isError()) {
-                return String.format("(\"%s\" : \"%s\")", res.getErrorMessage(), res.getErrorReason());
-            }
-            else {
-                return String.format("(%s)", res.getValue());
-            }
-        }
-        else if (isPatternBinding) {
-            return "{ pattern: " + patternBinding + " }";
-        }
-        else if (isPattern) {
-            StringBuilder sb = new StringBuilder(pattern.value.toString() + " { ");
-            for (Map.Entry<String, Value> entry : pattern.cases.entrySet()) {
-                sb.append(entry.getKey()).append(": ").append(entry.getValue().asString()).append(", ");
-            }
-            for (Map.Entry<String, String> entry : pattern.matches.entrySet()) {
-                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append(", ");
+                return sb + "}";
             }
-            return sb + "}";
+            default:
+                return "";
         }
-        return "";
     }
 
     public String toString() {
@@ -381,42 +525,41 @@ public class Value {
             return false;
 
         Value o = (Value) obj;
-        if (this.isNull)
-            return o.isNull;
-
-        else if (this.isNumber)
-            return o.isNumber && this.number == o.number;
-
-        else if (this.isString)
-            return o.isString && this.string.equals(o.string);
-
-        else if (this.isBool)
-            return o.isBool && this.bool == o.bool;
-
-        else if (this.isList)
-            return o.isList && this.list.equals(o.list);
-
-        else if (this.isMap)
-            return o.isMap && this.map.equals(o.map);
-
-        else if (this.isEnumChild)
-            return o.isEnumChild && this.enumChild.equals(o.enumChild);
-
-        return this == o;
+        switch (kind) {
+            case ValueKind.Null:
+                return o.kind == ValueKind.Null;
+            case ValueKind.Int:
+                if (o.kind == ValueKind.Int)
+                    return this.primitive == o.primitive;
+                return o.kind == ValueKind.Float && this.asNumber() == o.asNumber();
+            case ValueKind.Float:
+                return o.isNumber() && this.number() == o.asNumber();
+            case ValueKind.Boolean:
+                return o.kind == kind && this.primitive == o.primitive;
+            case ValueKind.String:
+            case ValueKind.List:
+            case ValueKind.Map:
+            case ValueKind.EnumChild:
+                return o.kind == kind && this.payload.equals(o.payload);
+            default:
+                return this == o;
+        }
     }
 
     public Value[] asTuple() {
-        if (isTuple) {
-            return tuple;
+        if (isTuple()) {
+            return (Value[]) payload;
         }
-        else if (isList) {
+        else if (isList()) {
+            List<Value> list = list();
             Value[] tuple = new Value[list.size()];
             for (int i = 0; i < tuple.length; i++) {
                 tuple[i] = list.get(i);
             }
             return tuple;
         }
-        else if (isMap) {
+        else if (isMap()) {
+            Map<Value, Value> map = map();
             Value[] tuple = new Value[map.size()];
             int i = 0;
             for (Map.Entry<Value, Value> entry : map.entrySet()) {
@@ -428,129 +571,128 @@ public class Value {
     }
 
     public List<Value> asList() {
-        if (isList) {
-            return list;
-        }
-        else if (isTuple) {
-            return Arrays.asList(tuple);
-        }
-        else if (isMap) {
-            return new ArrayList<>(map.keySet());
-        }
-        else if (isString) {
-            String[] lis = string.split("");
-            List<Value> list = new ArrayList<>();
-            for (String s : lis) {
-                list.add(new Value(s));
-            }
-            return list;
-        }
-        else if (this.isNull) {
-            return new ArrayList<>();
-        }
-        else if (isInstance) {
-            return instance.asList();
-        }
-        else if (isRef) {
-            return ref.asList();
-        }
-        else if (isRes) {
-            if (res.isError()) {
-                return Arrays.asList(new Value(res.getErrorMessage()), new Value(res.getErrorReason()));
+        switch (kind) {
+            case ValueKind.List:
+                return list();
+            case ValueKind.Tuple:
+                return Arrays.asList((Value[]) payload);
+            case ValueKind.Map:
+                return new ArrayList<>(map().keySet());
+            case ValueKind.String: {
+                String[] lis = string().split("");
+                List<Value> list = new ArrayList<>();
+                for (String s : lis) {
+                    list.add(new Value(s));
+                }
+                return list;
             }
-            else {
-                return Collections.singletonList(new Value(res.getValue()));
+            case ValueKind.Null:
+                return new ArrayList<>();
+            case ValueKind.Instance:
+                return instance().asList();
+            case ValueKind.Ref:
+                return ref().asList();
+            case ValueKind.Res: {
+                Result res = res();
+                if (res.isError()) {
+                    return Arrays.asList(new Value(res.getErrorMessage()), new Value(res.getErrorReason()));
+                }
+                else {
+                    return Collections.singletonList(new Value(res.getValue()));
+                }
             }
-        }
-        else if (isBytes) {
-            List<Value> list = new ArrayList<>();
-            for (int i = 0; i < bytes.length; i++) {
-                list.add(new Value(bytes[i]));
+            case ValueKind.Bytes: {
+                byte[] bytes = (byte[]) payload;
+                List<Value> list = new ArrayList<>();
+                for (int i = 0; i < bytes.length; i++) {
+                    list.add(new Value(bytes[i]));
+                }
+                return list;
             }
-            return list;
+            default:
+                return new ArrayList<>(Collections.singletonList(this));
         }
-        return new ArrayList<>(Collections.singletonList(this));
     }
 
     public Var asVar() {
-        if (isRef) {
-            return ref.asVar();
+        if (isRef()) {
+            return ref().asVar();
         }
-        return var;
+        return isVar() ? (Var) payload : null;
     }
 
     public Map<Value, Value> asMap() {
-        if (isMap) {
-            return map;
-        }
-        else if (this.isNull) {
-            return new HashMap<>();
-        }
-        else if (isInstance) {
-            return instance.asMap();
-        }
-        else if (isRef) {
-            return ref.asMap();
-        }
-        else if (isRes) {
-            Map<Value, Value> map = new HashMap<>();
-            map.put(new Value("sucess"), new Value(res.getValue()));
-            List<Value> key;
-            if (res.isError()) {
-                key = new ArrayList<>(Arrays.asList(new Value(res.getErrorMessage()), new Value(res.getErrorReason())));
-            }
-            else {
-                key = new ArrayList<>();
+        switch (kind) {
+            case ValueKind.Map:
+                return map();
+            case ValueKind.Null:
+                return new HashMap<>();
+            case ValueKind.Instance:
+                return instance().asMap();
+            case ValueKind.Ref:
+                return ref().asMap();
+            case ValueKind.Res: {
+                Result res = res();
+                Map<Value, Value> map = new HashMap<>();
+                map.put(new Value("sucess"), new Value(res.getValue()));
+                List<Value> key;
+                if (res.isError()) {
+                    key = new ArrayList<>(Arrays.asList(new Value(res.getErrorMessage()), new Value(res.getErrorReason())));
+                }
+                else {
+                    key = new ArrayList<>();
+                }
+                map.put(new Value("error"), new Value(key));
+                return map;
             }
-            map.put(new Value("error"), new Value(key));
-            return map;
+            default:
+                return new HashMap<>(Collections.singletonMap(this, this));
         }
-        return new HashMap<>(Collections.singletonMap(this, this));
     }
 
     public JFunc asFunc() {
-        if (isFunc) {
-            return func;
+        if (isFunc()) {
+            return (JFunc) payload;
         }
-        else if (this.isClosure) {
-            return closure.function;
+        else if (this.isClosure()) {
+            return ((JClosure) payload).function;
         }
-        else if (isRef) {
-            return ref.asFunc();
+        else if (isRef()) {
+            return ref().asFunc();
         }
         return null;
     }
 
     public JClosure asClosure() {
-        if (isClosure) {
-            return closure;
+        if (isClosure()) {
+            return (JClosure) payload;
         }
-        else if (isRef) {
-            return ref.asClosure();
+        else if (isRef()) {
+            return ref().asClosure();
         }
         return null;
     }
 
     public JClass asClass() {
-        if (isClass) {
-            return jClass;
+        if (isClass()) {
+            return (JClass) payload;
         }
-        else if (isRef) {
-            return ref.asClass();
+        else if (isRef()) {
+            return ref().asClass();
         }
         return null;
     }
 
     public JNative asNative() {
-        return nativeFunc;
+        return isNativeFunc() ? (JNative) payload : null;
     }
 
     public BoundMethod asBoundMethod() {
-        if (isBoundMethod) {
-            return boundMethod;
+        if (isBoundMethod()) {
+            return (BoundMethod) payload;
         }
-        else if (isRef) {
-            return ref.asBoundMethod();
+        else if (isRef()) {
+            return ref().asBoundMethod();
         }
         return null;
     }
@@ -602,13 +744,10 @@ public class Value {
 //    }
 
     // Mutative Addition
+    // Numbers are shared (see Value.of), so only lists can be extended in place
     public VMResult add(Value other) {
-        if (isNumber) {
-            number += other.asNumber();
-            return VMResult.OK;
-        }
-        else if (isList) {
-            list.addAll(other.asList());
+        if (isList()) {
+            list().addAll(other.asList());
             return VMResult.OK;
         }
 
@@ -617,140 +756,149 @@ public class Value {
 
     // List Mutators
     public void append(Value value) {
-        list.add(value);
+        list().add(value);
     }
 
-    public Value pop(Double index) {
-        int i = index.intValue();
+    public Value pop(double index) {
+        int i = (int) index;
+        List<Value> list = list();
         Value value = list.get(i);
         list.remove(i);
         return value;
     }
 
-    public void insert(Double index, Value value) {
-        list.add(index.intValue(), value);
+    public void insert(double index, Value value) {
+        list().add((int) index, value);
     }
 
-    public void set(Double index, Value value) {
-        list.set(index.intValue(), value);
+    public void set(double index, Value value) {
+        list().set((int) index, value);
     }
 
     public void remove(Value value) {
-        list.remove(value);
+        list().remove(value);
     }
 
     // Map Mutators
     public void set(Value key, Value value) {
-        map.put(key, value);
+        map().put(key, value);
     }
 
     public void delete(Value key) {
-        map.remove(key);
+        map().remove(key);
     }
 
     public Instance asInstance() {
-        if (isRef) {
-            return ref.asInstance();
+        if (isRef()) {
+            return ref().asInstance();
         }
-        return instance;
+        return isInstance() ? instance() : null;
+    }
+
+    public JIterator asIterator() {
+        return isIterator() ? (JIterator) payload : null;
+    }
+
+    public JFuture asFuture() {
+        return isFuture() ? (JFuture) payload : null;
     }
 
     public Result asRes() {
-        return res;
+        return isRes() ? res() : null;
     }
 
     public Namespace asNamespace() {
-        if (isRef) {
-            return ref.asNamespace();
+        if (isRef()) {
+            return ref().asNamespace();
         }
-        return namespace;
+        return isNamespace() ? (Namespace) payload : null;
     }
 
     public String toSafeString() {
-        if (isInstance) {
-            return instance.clazz.name;
+        if (isInstance()) {
+            return instance().clazz.name;
         }
-        else if (isVar) {
-            return var.toSafeString();
+        else if (isVar()) {
+            return ((Var) payload).toSafeString();
         }
         return toString();
     }
 
     public Value copy() {
-        if (isNumber) {
-            return new Value(number);
-        }
-        else if (isString) {
-            return new Value(string);
-        }
-        else if (isBool) {
-            return new Value(bool);
-        }
-        else if (isList) {
-            List<Value> list = new ArrayList<>();
-            for (Value value : this.list) {
-                list.add(value.copy());
+        switch (kind) {
+            case ValueKind.Int:
+            case ValueKind.Float:
+            case ValueKind.Boolean:
+                return this;
+            case ValueKind.String:
+                return new Value(string());
+            case ValueKind.List: {
+                List<Value> list = new ArrayList<>();
+                for (Value value : list()) {
+                    list.add(value.copy());
+                }
+                return new Value(list);
             }
-            return new Value(list);
-        }
-        else if (isMap) {
-            Map<Value, Value> map = new HashMap<>();
-            for (Map.Entry<Value, Value> entry : this.map.entrySet()) {
-                map.put(entry.getKey().copy(), entry.getValue().copy());
+            case ValueKind.Map: {
+                Map<Value, Value> map = new HashMap<>();
+                for (Map.Entry<Value, Value> entry : map().entrySet()) {
+                    map.put(entry.getKey().copy(), entry.getValue().copy());
+                }
+                return new Value(map);
             }
-            return new Value(map);
-        }
-        else if (isClass) {
-            return new Value(jClass.copy());
+            case ValueKind.Class:
+                return new Value(((JClass) payload).copy());
+            case ValueKind.Instance:
+                return new Value(instance().copy());
+            default:
+                return this;
         }
-        else if (isInstance) {
-            return new Value(instance.copy());
-        }
-        return this;
     }
 
     public JEnumChild asEnumChild() {
-        if (isRef) {
-            return ref.asEnumChild();
+        if (isRef()) {
+            return ref().asEnumChild();
         }
-        return enumChild;
+        return isEnumChild() ? (JEnumChild) payload : null;
     }
 
     public JEnum asEnum() {
-        if (isRef) return ref.asEnum();
-        return enumParent;
+        if (isRef()) return ref().asEnum();
+        return isEnumParent() ? (JEnum) payload : null;
     }
 
     public Spread asSpread() {
-        if (isRef) return ref.asSpread();
-        return spread;
+        if (isRef()) return ref().asSpread();
+        return isSpread() ? (Spread) payload : null;
     }
 
     public Value asRef() {
-        return ref;
+        return isRef() ? ref() : null;
     }
 
     public Value setRef(Value value) {
-        ref = value;
+        if (isRef()) payload = value;
         return this;
     }
 
     public byte[] asBytes() {
-        if (isInstance)
-            return instance.asBytes();
-        else if (isBytes)
-            return bytes;
+        if (isInstance())
+            return instance().asBytes();
+        else if (isBytes())
+            return (byte[]) payload;
         return Constants.objToBytes(asObject());
     }
 
     public static Value fromObject(Object object) {
-        if (object instanceof Double ||
-                object instanceof Float ||
-                object instanceof Integer ||
+        if (object instanceof Integer ||
                 object instanceof Long ||
                 object instanceof Short ||
                 object instanceof Byte) {
-            return new Value(Double.parseDouble(object.toString()));
+            return new Value(((Number) object).longValue());
+        }
+        else if (object instanceof Double ||
+                object instanceof Float) {
+            return new Value(((Number) object).doubleValue());
         }
         else if (object instanceof String) {
             return new Value((String) object);
@@ -793,7 +941,7 @@ public class Value {
         else if (object instanceof byte[]) {
             return new Value((byte[]) object);
         }
-        return new Value();
+        return NULL;
     }
 
     public static NativeResult fromByte(byte[] bytes) {
@@ -808,74 +956,69 @@ public class Value {
     }
 
     public Object asObject() {
-        if (isInstance)
-            return instance;
-        else if (isClass)
-            return jClass;
-        else if (isEnumParent)
-            return enumParent;
-        else if (isEnumChild)
-            return enumChild;
-        else if (isSpread)
-            return spread;
-        else if (isRef)
-            return ref.asObject();
-        else if (isBytes)
-            return bytes;
-        else if (isString)
-            return string;
-        else if (isNumber)
-            return number;
-        else if (isBool)
-            return bool;
-        else if (isList) {
-            List<Object> list = new ArrayList<>();
-            for (Value value : this.list) {
-                list.add(value.asObject());
+        switch (kind) {
+            case ValueKind.Instance:
+            case ValueKind.Class:
+            case ValueKind.EnumParent:
+            case ValueKind.EnumChild:
+            case ValueKind.Spread:
+            case ValueKind.Bytes:
+            case ValueKind.String:
+                return payload;
+            case ValueKind.Ref:
+                return ref().asObject();
+            case ValueKind.Int:
+                return primitive;
+            case ValueKind.Float:
+                return number();
+            case ValueKind.Boolean:
+                return bool();
+            case ValueKind.List: {
+                List<Object> list = new ArrayList<>();
+                for (Value value : list()) {
+                    list.add(value.asObject());
+                }
+                return list;
             }
-            return list;
-        }
-        else if (isMap) {
-            Map<Object, Object> map = new HashMap<>();
-            for (Map.Entry<Value, Value> entry : this.map.entrySet()) {
-                map.put(entry.getKey().asObject(), entry.getValue().asObject());
+            case ValueKind.Map: {
+                Map<Object, Object> map = new HashMap<>();
+                for (Map.Entry<Value, Value> entry : map().entrySet()) {
+                    map.put(entry.getKey().asObject(), entry.getValue().asObject());
+                }
+                return map;
             }
-            return map;
+            default:
+                return this;
         }
-        return this;
     }
 
     public String asPatternBinding() {
-        return patternBinding;
+        return isPatternBinding() ? string() : null;
     }
 
     public Pattern asPattern() {
-        return pattern;
+        return isPattern() ? (Pattern) payload : null;
     }
 
     public Value shallowCopy() {
-        if (isNumber) {
-            return new Value(number);
+        switch (kind) {
+            case ValueKind.Int:
+            case ValueKind.Float:
+            case ValueKind.Boolean:
+                return this;
+            case ValueKind.String:
+                return new Value(string());
+            case ValueKind.List:
+                return new Value(new ArrayList<>(list()));
+            case ValueKind.Map:
+                return new Value(new HashMap<>(map()));
+            case ValueKind.Class:
+                return new Value(((JClass) payload).copy());
+            case ValueKind.Instance:
+                return new Value(instance().copy());
+            default:
+                return this;
         }
-        else if (isString) {
-            return new Value(string);
-        }
-        else if (isBool) {
-            return new Value(bool);
-        }
-        else if (isList) {
-            return new Value(new ArrayList<>(list));
-        }
-        else if (isMap) {
-            return new Value(new HashMap<>(map));
-        }
-        else if (isClass) {
-            return new Value(jClass.copy());
-        }
-        else if (isInstance) {
-            return new Value(instance.copy());
-        }
-        return this;
     }
 
     public static int[] dumpString(String s) {
@@ -896,24 +1039,25 @@ public class Value {
     }
 
     public int[] dump() {
-        if (isBool) {
-            return new int[] { ChunkCode.Boolean, bool ? 1 : 0 };
-        }
-        else if (isNumber) {
-            ByteBuffer buffer = ByteBuffer.allocate(8);
-            buffer.putDouble(number);
-            return new int[] { ChunkCode.Number, buffer.getInt(0), buffer.getInt(4) };
-        }
-        else if (isString) {
-            return dumpString(string);
-        }
-        else if (isEnumParent) {
-            return enumParent.dump();
-        }
-        else if (isFunc) {
-            return func.dump();
+        switch (kind) {
+            case ValueKind.Boolean:
+                return new int[] { ChunkCode.Boolean, bool() ? 1 : 0 };
+            case ValueKind.Float: {
+                ByteBuffer buffer = ByteBuffer.allocate(8);
+                buffer.putDouble(number());
+                return new int[] { ChunkCode.Number, buffer.getInt(0), buffer.getInt(4) };
+            }
+            case ValueKind.Int:
+                return new int[] { ChunkCode.Int, (int) (primitive >>> 32), (int) primitive };
+            case ValueKind.String:
+                return dumpString(string());
+            case ValueKind.EnumParent:
+                return ((JEnum) payload).dump();
+            case ValueKind.Func:
+                return ((JFunc) payload).dump();
+            default:
+                return null;
         }
-        return null;
     }
 
     public Value get(Value other) {
@@ -923,61 +1067,55 @@ public class Value {
                 return map.get(key);
             }
         }
-        return new Value();
+        return NULL;
     }
 
     public String type() {
-        if (isBool) {
-            return "bool";
-        }
-        else if (isNumber) {
-            return (number == (long) number) ? "int" : "float";
-        }
-        else if (isString) {
-            return "String";
-        }
-        else if (isList) {
-            return "list";
-        }
-        else if (isMap) {
-            return "dict";
-        }
-        else if (isClass) {
-            return "recipe";
-        }
-        else if (isInstance) {
-            return instance.type();
-        }
-        else if (isEnumParent) {
-            return "Enum";
-        }
-        else if (isEnumChild) {
-            return enumChild.type();
-        }
-        else if (isSpread) {
-            return "spread";
-        }
-        else if (isRef) {
-            return "[" + ref.type() + "]";
-        }
-        else if (isBytes) {
-            return "bytearray";
-        }
-        else if (isFunc || isClosure || isNativeFunc) {
-            return "function";
-        }
-        else if (isPattern) {
-            return "pattern";
-        }
-        else if (isPatternBinding) {
-            return "patternBinding";
-        }
-        else if (isNamespace) {
-            return "namespace";
-        }
-        else if (isTuple) {
-            return "(" + Arrays.stream(tuple).map(Value::type).collect(Collectors.joining(", ")) + ")";
+        switch (kind) {
+            case ValueKind.Boolean:
+                return "bool";
+            case ValueKind.Int:
+                return "int";
+            case ValueKind.Float:
+                return "float";
+            case ValueKind.String:
+                return "String";
+            case ValueKind.List:
+                return "list";
+            case ValueKind.Map:
+                return "dict";
+            case ValueKind.Class:
+                return "recipe";
+            case ValueKind.Instance:
+                return instance().type();
+            case ValueKind.EnumParent:
+                return "Enum";
+            case ValueKind.EnumChild:
+                return ((JEnumChild) payload).type();
+            case ValueKind.Spread:
+                return "spread";
+            case ValueKind.Ref:
+                return "[" + ref().type() + "]";
+            case ValueKind.Bytes:
+                return "bytearray";
+            case ValueKind.Func:
+            case ValueKind.Closure:
+            case ValueKind.NativeFunc:
+                return "function";
+            case ValueKind.Pattern:
+                return "pattern";
+            case ValueKind.PatternBinding:
+                return "patternBinding";
+            case ValueKind.Namespace:
+                return "namespace";
+            case ValueKind.Tuple:
+                return "(" + Arrays.stream((Value[]) payload).map(Value::type).collect(Collectors.joining(", ")) + ")";
+            case ValueKind.Iterator:
+                return "iterator";
+            case ValueKind.Future:
+                return "future";
+            default:
+                return "void";
         }
-        return "void";
     }
 }
@@ -21,7 +21,15 @@ public class ValueArray {
     }
 
     public int write(Value value) {
-        int index = values.indexOf(value);
+        // Ints and floats compare equal by value, but a constant must keep its own kind
+        int index = -1;
+        for (int i = 0; i < values.size(); i++) {
+            Value other = values.get(i);
+            if (other.kind() == value.kind() && other.equals(value)) {
+                index = i;
+                break;
+            }
+        }
         if (index == -1) {
             values.add(value);
             index = length++;
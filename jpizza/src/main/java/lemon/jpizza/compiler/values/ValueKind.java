@@ -0,0 +1,30 @@
+package lemon.jpizza.compiler.values;
+
+public class ValueKind {
+    public static final int Null = 0;
+    public static final int Int = 1;
+    public static final int Float = 2;
+    public static final int String = 3;
+    public static final int Boolean = 4;
+    public static final int List = 5;
+    public static final int Map = 6;
+    public static final int Func = 7;
+    public static final int NativeFunc = 8;
+    public static final int Var = 9;
+    public static final int Closure = 10;
+    public static final int Class = 11;
+    public static final int Instance = 12;
+    public static final int BoundMethod = 13;
+    public static final int Namespace = 14;
+    public static final int EnumParent = 15;
+    public static final int EnumChild = 16;
+    public static final int Spread = 17;
+    public static final int Ref = 18;
+    public static final int Bytes = 19;
+    public static final int Res = 20;
+    public static final int PatternBinding = 21;
+    public static final int Pattern = 22;
+    public static final int Tuple = 23;
+    public static final int Iterator = 24;
+    public static final int Future = 25;
+}
@@ -20,6 +20,11 @@ public class Var {
         this.max = max;
     }
 
+    // Assignments to it need no constant or range check
+    public boolean plain() {
+        return !constant && min == Integer.MIN_VALUE && max == Integer.MAX_VALUE;
+    }
+
     public void val(Value v) {
         val = v;
     }
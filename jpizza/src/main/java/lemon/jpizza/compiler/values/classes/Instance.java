@@ -3,7 +3,6 @@ package lemon.jpizza.compiler.values.classes;
 import lemon.jpizza.Constants;
 import lemon.jpizza.compiler.types.Type;
 import lemon.jpizza.compiler.values.Value;
-import lemon.jpizza.compiler.values.Var;
 import lemon.jpizza.compiler.values.functions.JClosure;
 import lemon.jpizza.compiler.values.functions.NativeResult;
 import lemon.jpizza.compiler.vm.VM;
@@ -13,25 +12,22 @@ import java.util.*;
 
 public class Instance {
     public final JClass clazz;
-    public final Map<String, ClassAttr> fields;
+    // Attribute values, laid out by the class's shape
+    public final Value[] fields;
     public final Map<String, Value> methods;
     public final Map<String, Value> binMethods;
     public Value self;
     final VM vm;
-    final Map<String, String> generics;
     public Type type;
 
     public Instance(JClass clazz, VM vm) {
         this.clazz = clazz;
         methods = clazz.methods;
         binMethods = clazz.binMethods;
-        generics = new HashMap<>();
 
         this.vm = vm;
 
-        fields = new HashMap<>();
-        copyAttributes(clazz.attributes, fields);
-        methods.putAll(binMethods);
+        fields = clazz.shape.instantiate();
     }
 
     public Instance(String name, Map<String, ClassAttr> attrs, VM vm) {
@@ -49,10 +45,6 @@ public class Instance {
         }
     }
 
-    public String getGeneric(String key) {
-        return generics.get(key);
-    }
-
     private String stringOp(String opName) {
         String res = unfailableOp(opName, clazz.name, "String");
         if (res == null)
@@ -61,11 +53,11 @@ public class Instance {
     }
 
     public boolean instanceOf(Value value) {
-        if (value.isEnumChild && hasField("$child") && hasField("$child")) {
-            return value.asEnumChild().getValue() == fields.get("$child").val.asNumber().intValue() &&
-                    value.asEnumChild().getParent() == fields.get("$parent").val.asEnum();
+        if (value.isEnumChild() && hasField("$child") && hasField("$child")) {
+            return value.asEnumChild().getValue() == (int) fields[clazz.shape.slot("$child")].asNumber() &&
+                    value.asEnumChild().getParent() == fields[clazz.shape.slot("$parent")].asEnum();
         }
-        else if (value.isClass) {
+        else if (value.isClass()) {
             return clazz == value.asClass();
         }
         return false;
@@ -83,10 +75,7 @@ public class Instance {
     private <T> T _unfailableOp(String opName, T def, String type) {
         Value val = binMethods.get(opName);
         if (val != null) {
-            vm.push(new Value(new Var(
-                    self,
-                    true
-            )));
+            vm.push(self);
             boolean worked = vm.call(val.asClosure(), self, new Value[0], new HashMap<>());
             if (!worked)
                 return def;
@@ -113,9 +102,9 @@ public class Instance {
     }
 
     public Value getField(String name, boolean internal) {
-        ClassAttr attr = fields.get(name);
-        if (attr != null && (!attr.isPrivate || internal))
-            return attr.val;
+        int slot = clazz.shape.slot(name);
+        if (slot != -1 && (!clazz.shape.isPrivate(slot) || internal))
+            return fields[slot];
 
         Value val = methods.get(name);
         JClosure method = val != null ? val.asClosure() : null;
@@ -126,16 +115,14 @@ public class Instance {
     }
 
     public NativeResult setField(String name, Value value) {
-        return setField(name, value, fields);
-    }
-
-    public static NativeResult setField(String name, Value value, Map<String, ClassAttr> fields) {
-        ClassAttr attr = fields.get(name);
-        attr.set(value);
+        int slot = clazz.shape.slot(name);
+        if (slot == -1)
+            return NativeResult.Err("Scope", "Undefined attribute");
+        fields[slot] = value;
         return NativeResult.Ok();
     }
 
-    public Double asNumber() {
+    public double asNumber() {
         Double res = unfailableOp("number", 0.0, "num");
         if (res == null)
             res = vm.pop().asNumber();
@@ -177,6 +164,6 @@ public class Instance {
     }
 
     public boolean hasField(String key) {
-        return fields.containsKey(key);
+        return clazz.shape.slot(key) != -1;
     }
 }
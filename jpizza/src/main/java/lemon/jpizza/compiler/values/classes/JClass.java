@@ -7,6 +7,7 @@ import lemon.jpizza.compiler.values.functions.JClosure;
 import lemon.jpizza.compiler.values.functions.NativeResult;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -20,6 +21,7 @@ public class JClass {
     public Map<String, Value> methods;
     public Map<String, Value> binMethods;
     public List<String> generics;
+    public final Shape shape;
 
     public Value constructor;
     public Type type;
@@ -27,7 +29,7 @@ public class JClass {
     public JClass(String name, Map<String, ClassAttr> attributes,
                   List<String> generics, JClass superClass) {
         this.name = name;
-        this.attributes = new HashMap<>();
+        this.attributes = new LinkedHashMap<>();
         this.methods = new HashMap<>();
         this.binMethods = new HashMap<>();
 
@@ -40,6 +42,7 @@ public class JClass {
 
         this.attributes.putAll(attributes);
         this.generics = generics;
+        this.shape = new Shape(this.attributes);
     }
 
     public String toString() {
@@ -49,8 +52,11 @@ public class JClass {
     public void addMethod(String name, Value value) {
         if (name.equals("<make>"))
             constructor = value;
-        else if (value.asClosure().function.isBin)
+        else if (value.asClosure().function.isBin) {
+            // Instances look operators up along with their other methods
             binMethods.put(name, value);
+            methods.put(name, value);
+        }
         else
             methods.put(name, value);
     }
@@ -69,7 +75,11 @@ public class JClass {
     }
 
     public NativeResult setField(String name, Value value) {
-        return Instance.setField(name, value, attributes);
+        ClassAttr attr = attributes.get(name);
+        if (attr == null)
+            return NativeResult.Err("Scope", "Undefined attribute");
+        attr.set(value);
+        return NativeResult.Ok();
     }
 
     public boolean hasField(String name) {
@@ -81,7 +91,7 @@ public class JClass {
     }
 
     public JClass copy() {
-        Map<String, ClassAttr> attrs = new HashMap<>();
+        Map<String, ClassAttr> attrs = new LinkedHashMap<>();
         copyAttributes(attributes, attrs);
         return new JClass(name, attrs, generics, superClass.copy());
     }
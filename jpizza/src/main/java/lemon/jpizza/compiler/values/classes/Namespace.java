@@ -4,6 +4,7 @@ import lemon.jpizza.compiler.values.Value;
 import lemon.jpizza.compiler.values.Var;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -51,4 +52,9 @@ public class Namespace {
     public Map<String, Var> values() {
         return values;
     }
+
+    // A namespace with the same fields that can be added to without changing this one
+    public Namespace copy() {
+        return new Namespace(name, new HashMap<>(values), new ArrayList<>(publics));
+    }
 }
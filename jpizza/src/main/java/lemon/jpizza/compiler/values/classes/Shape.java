@@ -0,0 +1,65 @@
+package lemon.jpizza.compiler.values.classes;
+
+import lemon.jpizza.compiler.values.Value;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of a class's instances: which slot of Instance.fields holds each attribute.
+// Attributes are laid out in the order the class declares them, after the ones it inherits, so a
+// superclass attribute has the same slot in every subclass. The compiler relies on that order to
+// turn attribute accesses inside methods into slot accesses.
+public final class Shape {
+    private final String[] names;
+    private final boolean[] isPrivate;
+    // The class's own attributes, whose current values new instances start out with
+    private final ClassAttr[] defaults;
+    private final Map<String, Integer> slots;
+
+    Shape(Map<String, ClassAttr> attributes) {
+        int size = attributes.size();
+        names = new String[size];
+        isPrivate = new boolean[size];
+        defaults = new ClassAttr[size];
+        slots = new HashMap<>(size * 2);
+
+        int slot = 0;
+        for (Map.Entry<String, ClassAttr> entry : attributes.entrySet()) {
+            names[slot] = entry.getKey();
+            isPrivate[slot] = entry.getValue().isPrivate;
+            defaults[slot] = entry.getValue();
+            slots.put(entry.getKey(), slot);
+            slot++;
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    // Slot of the attribute, or -1 if instances do not have it
+    public int slot(String name) {
+        Integer slot = slots.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    // Whether the attribute in this slot is the one with this name
+    public boolean has(int slot, String name) {
+        return slot < names.length && names[slot].equals(name);
+    }
+
+    public String name(int slot) {
+        return names[slot];
+    }
+
+    public boolean isPrivate(int slot) {
+        return isPrivate[slot];
+    }
+
+    Value[] instantiate() {
+        Value[] fields = new Value[defaults.length];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = defaults[i].val;
+        return fields;
+    }
+}
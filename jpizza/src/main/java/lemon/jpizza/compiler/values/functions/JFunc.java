@@ -2,7 +2,10 @@ package lemon.jpizza.compiler.values.functions;
 
 import lemon.jpizza.compiler.Chunk;
 import lemon.jpizza.compiler.ChunkCode;
+import lemon.jpizza.compiler.RegisterChunk;
 import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.vm.ClosureNodes;
+import lemon.jpizza.compiler.vm.JitCode;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -29,6 +32,18 @@ public class JFunc {
     public boolean varargs;
     public boolean kwargs;
 
+    // Set when the function was also compiled for the register VM
+    public RegisterChunk registers;
+
+    // Set when the function was also built for the closure engine. Trees only exist in memory
+    public ClosureNodes.Tree closures;
+
+    // Tiering: interpreter call and loop back-edge counts, and the compiled code once the function got hot
+    public int calls;
+    public int backEdges;
+    public JitCode compiled;
+    public boolean uncompilable;
+
     public JFunc(String source) {
         arity = 0;
         totarity = 0;
@@ -50,7 +65,12 @@ public class JFunc {
 
         copy.chunk.constants(chunk.constants().copy());
         copy.chunk.codeArray = chunk.codeArray;
+        copy.chunk.globalSlots = chunk.globalSlots;
+        copy.chunk.filename = chunk.filename;
         copy.chunk.positions = chunk.positions;
+        copy.chunk.positionEnds = chunk.positionEnds;
+        copy.chunk.positionRuns = chunk.positionRuns;
+        copy.chunk.lines = chunk.lines;
 
         copy.arity = arity;
         copy.defaults = defaults;
@@ -86,14 +106,19 @@ public class JFunc {
         for (int i : chunk)
             list.add(i);
 
+        if (registers != null)
+            for (int i : registers.dump())
+                list.add(i);
+
         return list.stream().mapToInt(Integer::intValue).toArray();
     }
 
     public byte[] dumpBytes() {
         int[] dump = dump();
-        byte[] bytes = new byte[dump.length * 4];
-        for (int i = 0; i < dump.length; i++) {
-            int v = dump[i];
+        int[] header = { ChunkCode.Magic, ChunkCode.Version };
+        byte[] bytes = new byte[(header.length + dump.length) * 4];
+        for (int i = 0; i < header.length + dump.length; i++) {
+            int v = i < header.length ? header[i] : dump[i - header.length];
             bytes[i * 4    ] = (byte) (v >>> 24);
             bytes[i * 4 + 1] = (byte) (v >>> 16);
             bytes[i * 4 + 2] = (byte) (v >>>  8);
@@ -3,6 +3,7 @@ package lemon.jpizza.compiler.values.functions;
 import lemon.jpizza.compiler.types.Type;
 import lemon.jpizza.compiler.types.Types;
 import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.vm.VM;
 
 public class JNative {
 
@@ -10,14 +11,29 @@ public class JNative {
         NativeResult call(Value[] stack);
     }
 
+    // A native that is handed the VM calling it, so it can call back into it
+    public interface VMMethod {
+        NativeResult call(VM vm, Value[] stack);
+    }
+
     final String name;
     final Method method;
+    final VMMethod vmMethod;
     final int argc;
     final Type[] types;
 
     public JNative(String name, Method method, int argc, Type[] types) {
         this.name = name;
         this.method = method;
+        this.vmMethod = null;
+        this.argc = argc;
+        this.types = types;
+    }
+
+    public JNative(String name, VMMethod method, int argc, Type[] types) {
+        this.name = name;
+        this.method = null;
+        this.vmMethod = method;
         this.argc = argc;
         this.types = types;
     }
@@ -28,10 +44,10 @@ public class JNative {
             types[i] = Types.ANY;
     }
 
-    public NativeResult call(Value[] args) {
+    public NativeResult call(VM vm, Value[] args) {
         if (args.length != argc && argc != -1)
             return NativeResult.Err("Argument Count", "Expected " + argc + " arguments, got " + args.length);
-        return method.call(args);
+        return vmMethod != null ? vmMethod.call(vm, args) : method.call(args);
     }
 
     public String toString() {
@@ -9,7 +9,7 @@ public class Result {
 
     public Result(String message, String reason) {
         error = new Pair<>(message, reason);
-        val = new Value();
+        val = Value.NULL;
     }
 
     public Result(Value val) {
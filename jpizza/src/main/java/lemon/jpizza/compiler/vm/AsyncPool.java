@@ -0,0 +1,154 @@
+package lemon.jpizza.compiler.vm;
+
+import lemon.jpizza.Shell;
+import lemon.jpizza.compiler.Chunk;
+import lemon.jpizza.compiler.values.JFuture;
+import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.values.functions.JClosure;
+import lemon.jpizza.compiler.values.functions.NativeResult;
+
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs the calls to async functions.
+// Calls are queued for a fixed number of threads (one per processor unless --async-threads says
+// otherwise), or each get a virtual thread with --virtual-threads on JVMs that have them.
+// A call runs on a worker VM sharing the globals and libraries of the VM that made it, and the
+// worker is kept for the next call once it is done, so no call sets up a VM of its own.
+public class AsyncPool {
+    public static int threads = Runtime.getRuntime().availableProcessors();
+    public static boolean virtual = false;
+
+    private static final long KEEP_ALIVE_SECONDS = 1;
+    // Idle workers kept when virtual threads let any number of calls run at once
+    private static final int MAX_IDLE_VIRTUAL = 256;
+
+    private static ExecutorService executor;
+    private static BlockingQueue<VM> idle;
+
+    // Calls that failed, reported by finish() unless they were awaited
+    private static final Queue<JFuture> failed = new ConcurrentLinkedQueue<>();
+
+    // Calls submitted and not yet finished, which finish() waits for
+    private static final Object lock = new Object();
+    private static int pending = 0;
+
+    private static synchronized ExecutorService executor() {
+        if (executor != null) return executor;
+
+        if (virtual) {
+            try {
+                executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                idle = new ArrayBlockingQueue<>(MAX_IDLE_VIRTUAL);
+                return executor;
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                Shell.logger.warn("Virtual threads are not available, using " + threads + " async threads\n");
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                task -> {
+                    Thread thread = new Thread(task, "async-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        idle = new ArrayBlockingQueue<>(threads);
+        return executor;
+    }
+
+    // Queues the call, given the callee and arguments from the caller's stack, returning the future its result will be put in
+    static JFuture submit(VM caller, JClosure closure, Value binding, Value[] slots) {
+        Chunk originChunk = caller.frame.closure.function.chunk;
+        int originOffset = caller.frame.ip - 1;
+        String filename = caller.filename();
+
+        JFuture future = new JFuture(self -> {
+            try {
+                VM worker = acquire(caller);
+                try {
+                    // Errors the call does not catch are handed to whoever awaits it
+                    worker.callbackFloor = 0;
+                    NativeResult result = worker.runCall(closure, binding, slots, originChunk, originOffset, filename);
+                    worker.callbackFloor = -1;
+                    if (!result.ok()) {
+                        self.fail(worker.lastError != null ? worker.lastError.render() : result.name() + ": " + result.reason());
+                        failed.add(self);
+                    }
+                    idle.offer(worker);
+                    return result;
+                } catch (RuntimeException e) {
+                    return NativeResult.Err("Internal", e.toString());
+                }
+            } finally {
+                synchronized (lock) {
+                    pending--;
+                    if (pending == 0) lock.notifyAll();
+                }
+            }
+        });
+
+        synchronized (lock) {
+            pending++;
+        }
+        executor().execute(future::run);
+        return future;
+    }
+
+    // Runs the closure on this thread, on an idle worker of the owner's. Errors it does not catch
+    // are returned rather than reported.
+    static NativeResult call(VM owner, JClosure closure, Value[] args) {
+        if (closure.function.totarity != args.length)
+            return NativeResult.Err("Argument Count", "Expected " + closure.function.totarity + " arguments, got " + args.length);
+
+        Value[] slots = new Value[args.length + 1];
+        slots[0] = new Value(closure);
+        System.arraycopy(args, 0, slots, 1, args.length);
+
+        executor();
+        VM worker = acquire(owner);
+        worker.callbackFloor = 0;
+        NativeResult result = worker.runCall(closure, null, slots, null, 0, null);
+        worker.callbackFloor = -1;
+        idle.offer(worker);
+        return result;
+    }
+
+    private static VM acquire(VM owner) {
+        VM worker = idle.poll();
+        if (worker == null || worker.globals != owner.globals || worker.libraries != owner.libraries)
+            worker = owner.worker();
+        return worker;
+    }
+
+    // Waits for every async call to finish, including the ones they make, then stops the threads.
+    // A call that failed without anything awaiting it fails the program.
+    public static void finish() {
+        synchronized (lock) {
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        synchronized (AsyncPool.class) {
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+        for (JFuture future : failed) {
+            String error = future.unawaitedError();
+            if (error != null) Shell.logger.fail(error);
+        }
+        failed.clear();
+    }
+}
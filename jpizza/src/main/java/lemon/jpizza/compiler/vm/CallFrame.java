@@ -1,5 +1,6 @@
 package lemon.jpizza.compiler.vm;
 
+import lemon.jpizza.compiler.headers.Memo;
 import lemon.jpizza.compiler.values.Value;
 import lemon.jpizza.compiler.values.functions.JClosure;
 
@@ -10,6 +11,8 @@ public class CallFrame {
     public String returnType;
     public Value bound;
     public int memoize = 0;
+    // The memoized call this frame is running, stored with its result when it returns
+    public Memo.Key memoKey;
     public boolean catchError = false;
     public boolean addPeek = false;
 
@@ -0,0 +1,326 @@
+package lemon.jpizza.compiler.vm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Just enough of a class file writer for JitCompiler: a constant pool, methods with a
+// Code attribute and forward jumps through labels. Classes are written as version 49,
+// which the JVM verifies by type inference, so no stack map frames are needed.
+final class ClassAssembler {
+    // A function whose code does not fit the limits of a class file, which just stays interpreted
+    static final class TooLarge extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge(String message) {
+            super(message);
+        }
+    }
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // Opcodes used by the JIT
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3A;
+    static final int POP = 0x57;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9A;
+    static final int IFGE = 0x9C;
+    static final int IFGT = 0x9D;
+    static final int GOTO = 0xA7;
+    static final int LOOKUPSWITCH = 0xAB;
+    static final int IRETURN = 0xAC;
+    static final int RETURN = 0xB1;
+    static final int GETSTATIC = 0xB2;
+    static final int GETFIELD = 0xB4;
+    static final int INVOKEVIRTUAL = 0xB6;
+    static final int INVOKESPECIAL = 0xB7;
+    static final int INVOKESTATIC = 0xB8;
+    static final int IFNULL = 0xC6;
+    static final int IFNONNULL = 0xC7;
+
+    static class Label {
+        int offset = -1;
+    }
+
+    // A method body. Jumps to labels that are not placed yet are patched in place()
+    final class Method {
+        final String name;
+        final String descriptor;
+        final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        final Map<Label, List<int[]>> fixups = new HashMap<>();
+        int maxStack;
+        int maxLocals;
+
+        Method(String name, String descriptor) {
+            this.name = name;
+            this.descriptor = descriptor;
+        }
+
+        int offset() {
+            return code.size();
+        }
+
+        void op(int op) {
+            code.write(op);
+        }
+
+        void u1(int b) {
+            code.write(b);
+        }
+
+        void u2(int s) {
+            code.write(s >> 8);
+            code.write(s);
+        }
+
+        void u4(int i) {
+            u2(i >>> 16);
+            u2(i & 0xFFFF);
+        }
+
+        void local(int op, int index) {
+            if (index > 0xFF) throw new TooLarge("Too many locals");
+            op(op);
+            u1(index);
+        }
+
+        void aload(int index) {
+            local(ALOAD, index);
+        }
+
+        void astore(int index) {
+            local(ASTORE, index);
+        }
+
+        void iload(int index) {
+            local(ILOAD, index);
+        }
+
+        void istore(int index) {
+            local(ISTORE, index);
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            }
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH);
+                u1(value);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH);
+                u2(value);
+            }
+            else {
+                op(LDC_W);
+                u2(integer(value));
+            }
+        }
+
+        void field(int op, String owner, String name, String descriptor) {
+            op(op);
+            u2(fieldRef(owner, name, descriptor));
+        }
+
+        void invoke(int op, String owner, String name, String descriptor) {
+            op(op);
+            u2(methodRef(owner, name, descriptor));
+        }
+
+        void jump(int op, Label label) {
+            int at = offset();
+            op(op);
+            if (label.offset >= 0) {
+                u2(label.offset - at);
+            }
+            else {
+                fixups.computeIfAbsent(label, k -> new ArrayList<>()).add(new int[]{ at, at + 1, 2 });
+                u2(0);
+            }
+        }
+
+        // LOOKUPSWITCH with sorted keys
+        void lookupSwitch(Label fallback, int[] keys, Label[] labels) {
+            int at = offset();
+            op(LOOKUPSWITCH);
+            while (offset() % 4 != 0) u1(0);
+            switchTarget(at, fallback);
+            u4(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                u4(keys[i]);
+                switchTarget(at, labels[i]);
+            }
+        }
+
+        private void switchTarget(int at, Label label) {
+            if (label.offset >= 0) {
+                u4(label.offset - at);
+            }
+            else {
+                fixups.computeIfAbsent(label, k -> new ArrayList<>()).add(new int[]{ at, offset(), 4 });
+                u4(0);
+            }
+        }
+
+        void place(Label label) {
+            label.offset = offset();
+        }
+
+        byte[] bytes() {
+            byte[] bytes = code.toByteArray();
+            for (Map.Entry<Label, List<int[]>> entry : fixups.entrySet()) {
+                int target = entry.getKey().offset;
+                if (target < 0) throw new IllegalStateException("Unplaced label");
+                for (int[] fixup : entry.getValue()) {
+                    int jump = target - fixup[0];
+                    int at = fixup[1];
+                    if (fixup[2] == 2) {
+                        if (jump < Short.MIN_VALUE || jump > Short.MAX_VALUE)
+                            throw new TooLarge("Jump too far");
+                        bytes[at] = (byte) (jump >> 8);
+                        bytes[at + 1] = (byte) jump;
+                    }
+                    else {
+                        bytes[at] = (byte) (jump >>> 24);
+                        bytes[at + 1] = (byte) (jump >>> 16);
+                        bytes[at + 2] = (byte) (jump >>> 8);
+                        bytes[at + 3] = (byte) jump;
+                    }
+                }
+            }
+            return bytes;
+        }
+    }
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> entries = new HashMap<>();
+    private int poolCount = 1;
+
+    private final List<Method> methods = new ArrayList<>();
+    private final String name;
+    private final String superName;
+
+    ClassAssembler(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    Method method(String name, String descriptor) {
+        Method method = new Method(name, descriptor);
+        methods.add(method);
+        return method;
+    }
+
+    private int entry(String key, int tag, Object... parts) {
+        Integer index = entries.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(tag);
+            for (Object part : parts) {
+                if (part instanceof String) poolOut.writeUTF((String) part);
+                else if (tag == 3) poolOut.writeInt((Integer) part);
+                else poolOut.writeShort((Integer) part);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        entries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int utf8(String value) {
+        return entry("U" + value, 1, value);
+    }
+
+    int integer(int value) {
+        return entry("I" + value, 3, value);
+    }
+
+    int classRef(String name) {
+        int utf = utf8(name);
+        return entry("C" + name, 7, utf);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int n = utf8(name);
+        int d = utf8(descriptor);
+        return entry("N" + name + ":" + descriptor, 12, n, d);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        int c = classRef(owner);
+        int nt = nameAndType(name, descriptor);
+        return entry("F" + owner + "." + name + ":" + descriptor, 9, c, nt);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int c = classRef(owner);
+        int nt = nameAndType(name, descriptor);
+        return entry("M" + owner + "." + name + ":" + descriptor, 10, c, nt);
+    }
+
+    byte[] toBytes() {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int codeName = utf8("Code");
+        int[][] methodNames = new int[methods.size()][];
+        for (int i = 0; i < methods.size(); i++)
+            methodNames[i] = new int[]{ utf8(methods.get(i).name), utf8(methods.get(i).descriptor) };
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0);
+            out.writeShort(0);
+
+            out.writeShort(methods.size());
+            for (int i = 0; i < methods.size(); i++) {
+                Method method = methods.get(i);
+                byte[] code = method.bytes();
+                if (code.length >= 0xFFFF) throw new TooLarge("Method too large");
+
+                out.writeShort(ACC_PUBLIC);
+                out.writeShort(methodNames[i][0]);
+                out.writeShort(methodNames[i][1]);
+                out.writeShort(1);
+
+                out.writeShort(codeName);
+                out.writeInt(12 + code.length);
+                out.writeShort(method.maxStack);
+                out.writeShort(method.maxLocals);
+                out.writeInt(code.length);
+                out.write(code);
+                out.writeShort(0);
+                out.writeShort(0);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
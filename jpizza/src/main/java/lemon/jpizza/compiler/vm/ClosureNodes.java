@@ -0,0 +1,473 @@
+package lemon.jpizza.compiler.vm;
+
+import lemon.jpizza.compiler.OpCode;
+import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.values.Var;
+import lemon.jpizza.compiler.values.functions.JClosure;
+import lemon.jpizza.compiler.values.functions.JFunc;
+
+// The closure engine: ClosureCompiler turns a function's AST into a tree of these nodes, and running
+// the function is a chain of calls on pre-bound objects instead of an instruction loop.
+// Expressions return null once a runtime error has been reported, statements return ERROR.
+// Nodes that depend on operand types start out unspecialized, settle on the kinds they see first
+// and only ever generalize from there, so a loop over ints keeps to the int path behind one guard.
+// Anything that can fail sets the frame's ip to the matching stack instruction and goes through
+// the stack VM's own helpers, so errors, tracebacks and overloads behave the same.
+public final class ClosureNodes {
+    private ClosureNodes() {}
+
+    // Statement results
+    public static final int NEXT = 0;
+    public static final int RETURN = 1;
+    public static final int ERROR = 2;
+
+    // Specialization states, in the order nodes move through them
+    static final int UNSEEN = 0;
+    static final int INT = 1;
+    static final int NUMBER = 2;
+    static final int GENERIC = 3;
+
+    public interface Expr {
+        Value eval(Env env);
+    }
+
+    // 1 or 0 for a condition that holds or not, -1 after an error
+    public interface Cond {
+        int test(Env env);
+    }
+
+    public interface Stmt {
+        int exec(Env env);
+    }
+
+    public static final class Env {
+        final VM vm;
+        final CallFrame frame;
+        final JClosure closure;
+        final Value[] slots;
+        Value result;
+
+        Env(VM vm, CallFrame frame, JClosure closure, Value[] slots) {
+            this.vm = vm;
+            this.frame = frame;
+            this.closure = closure;
+            this.slots = slots;
+        }
+    }
+
+    public static final class Tree {
+        final Stmt body;
+        final int slotCount;
+
+        public Tree(Stmt body, int slotCount) {
+            this.body = body;
+            this.slotCount = slotCount;
+        }
+    }
+
+    // Runs a function whose frame and traceback the caller has already pushed, returning its result
+    static Value execute(VM vm, JClosure closure, Value[] args) {
+        Tree tree = closure.function.closures;
+        Value[] slots = new Value[tree.slotCount];
+        System.arraycopy(args, 0, slots, 0, args.length);
+
+        Env env = new Env(vm, vm.frame, closure, slots);
+        if (tree.body.exec(env) == ERROR) return null;
+        return env.result;
+    }
+
+    // Expressions
+
+    static final class Constant implements Expr {
+        final Value value;
+
+        Constant(Value value) {
+            this.value = value;
+        }
+
+        public Value eval(Env env) {
+            return value;
+        }
+    }
+
+    public static Expr constant(Value value) {
+        return new Constant(value);
+    }
+
+    public static Expr local(int slot) {
+        return env -> env.slots[slot];
+    }
+
+    public static Expr upvalue(int index, int site) {
+        return env -> {
+            Var var = env.closure.upvalues[index];
+            if (var == null) {
+                env.frame.ip = site;
+                env.vm.runtimeError("Scope", "Undefined variable");
+                return null;
+            }
+            return var.val;
+        };
+    }
+
+    public static Expr arithmetic(int op, Expr a, Expr b, int site) {
+        if (b instanceof Constant && ((Constant) b).value.isInt())
+            return new ArithmeticConstant(op, a, ((Constant) b).value, site);
+        return new Arithmetic(op, a, b, site);
+    }
+
+    static Value arithmetic(Env env, int op, Value a, Value b, int site) {
+        if (a.isInt() && b.isInt())
+            return VM.intArithmetic(op, a.asInt(), b.asInt());
+        if (a.isNumber() && b.isNumber())
+            return Value.of(VM.arithmetic(op, a.asNumber(), b.asNumber()));
+
+        env.frame.ip = site;
+        env.vm.push(a);
+        env.vm.push(b);
+        if (env.vm.binary(op) == VMResult.ERROR) return null;
+        return env.vm.pop();
+    }
+
+    static int kind(Value a, Value b) {
+        if (a.isInt() && b.isInt()) return INT;
+        if (a.isNumber() && b.isNumber()) return NUMBER;
+        return GENERIC;
+    }
+
+    static final class Arithmetic implements Expr {
+        final int op;
+        final Expr a;
+        final Expr b;
+        final int site;
+        int state = UNSEEN;
+
+        Arithmetic(int op, Expr a, Expr b, int site) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+            this.site = site;
+        }
+
+        public Value eval(Env env) {
+            Value x = a.eval(env);
+            if (x == null) return null;
+            Value y = b.eval(env);
+            if (y == null) return null;
+
+            if (state == INT && x.isInt() && y.isInt())
+                return VM.intArithmetic(op, x.asInt(), y.asInt());
+
+            state = Math.max(state, kind(x, y));
+            return arithmetic(env, op, x, y, site);
+        }
+    }
+
+    // An int constant on the right, as in n - 1, only needs the left operand checked
+    static final class ArithmeticConstant implements Expr {
+        final int op;
+        final Expr a;
+        final Value b;
+        final long constant;
+        final int site;
+        int state = UNSEEN;
+
+        ArithmeticConstant(int op, Expr a, Value b, int site) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+            this.constant = b.asInt();
+            this.site = site;
+        }
+
+        public Value eval(Env env) {
+            Value x = a.eval(env);
+            if (x == null) return null;
+
+            if (state == INT && x.isInt())
+                return VM.intArithmetic(op, x.asInt(), constant);
+
+            state = Math.max(state, kind(x, b));
+            return arithmetic(env, op, x, b, site);
+        }
+    }
+
+    public static Comparison comparison(int op, Expr a, Expr b, int site) {
+        return new Comparison(op, a, b, site);
+    }
+
+    public static final class Comparison implements Expr, Cond {
+        final int op;
+        final Expr a;
+        final Expr b;
+        final int site;
+        int state = UNSEEN;
+
+        Comparison(int op, Expr a, Expr b, int site) {
+            this.op = op;
+            this.a = a;
+            this.b = b;
+            this.site = site;
+        }
+
+        public Value eval(Env env) {
+            int result = test(env);
+            return result < 0 ? null : Value.of(result == 1);
+        }
+
+        public int test(Env env) {
+            Value x = a.eval(env);
+            if (x == null) return -1;
+            Value y = b.eval(env);
+            if (y == null) return -1;
+
+            if (state == INT && x.isInt() && y.isInt())
+                return compareInts(x.asInt(), y.asInt()) ? 1 : 0;
+
+            state = Math.max(state, kind(x, y));
+            if (x.isNumber() && y.isNumber())
+                return VM.numberComparison(op, x, y) ? 1 : 0;
+
+            env.frame.ip = site;
+            env.vm.push(x);
+            env.vm.push(y);
+            if (env.vm.compare(op) == VMResult.ERROR) return -1;
+            return env.vm.pop().asBool() ? 1 : 0;
+        }
+
+        boolean compareInts(long x, long y) {
+            switch (op) {
+                case OpCode.Equal: return x == y;
+                case OpCode.NotEqual: return x != y;
+                case OpCode.LessThan: return x < y;
+                case OpCode.GreaterThan: return x > y;
+                case OpCode.GreaterEqual: return x >= y;
+                default: return x <= y;
+            }
+        }
+    }
+
+    public static Cond truthy(Expr value) {
+        if (value instanceof Comparison)
+            return (Comparison) value;
+        return env -> {
+            Value v = value.eval(env);
+            if (v == null) return -1;
+            return v.asBool() ? 1 : 0;
+        };
+    }
+
+    public static Expr and(Expr a, Expr b) {
+        return env -> {
+            Value x = a.eval(env);
+            if (x == null || !x.asBool()) return x;
+            return b.eval(env);
+        };
+    }
+
+    public static Expr or(Expr a, Expr b) {
+        return env -> {
+            Value x = a.eval(env);
+            if (x == null || x.asBool()) return x;
+            return b.eval(env);
+        };
+    }
+
+    public static Expr negate(Expr a) {
+        return env -> {
+            Value x = a.eval(env);
+            if (x == null) return null;
+            if (x.isInt() && x.asInt() != Long.MIN_VALUE)
+                return Value.of(-x.asInt());
+            return Value.of(-x.asNumber());
+        };
+    }
+
+    public static Expr not(Expr a) {
+        return env -> {
+            Value x = a.eval(env);
+            if (x == null) return null;
+            return Value.of(!x.asBool());
+        };
+    }
+
+    public static Expr call(Expr callee, Expr[] args, int site) {
+        return new Call(callee, args, site);
+    }
+
+    // Remembers the last function called that has a tree of its own, so calling it again skips the
+    // stack and the checks on the way there
+    static final class Call implements Expr {
+        final Expr callee;
+        final Expr[] args;
+        final int site;
+        JFunc target;
+
+        Call(Expr callee, Expr[] args, int site) {
+            this.callee = callee;
+            this.args = args;
+            this.site = site;
+        }
+
+        public Value eval(Env env) {
+            Value[] values = new Value[args.length];
+            for (int i = 0; i < values.length; i++)
+                if ((values[i] = args[i].eval(env)) == null) return null;
+            Value value = callee.eval(env);
+            if (value == null) return null;
+
+            CallFrame frame = env.frame;
+            frame.ip = site;
+            if (value.isClosure() && frame.memoize == 0) {
+                JClosure closure = value.asClosure();
+                JFunc function = closure.function;
+                if (function != target && function.closures != null && function.arity == values.length)
+                    target = function;
+                if (function == target) {
+                    VM vm = env.vm;
+                    vm.enter(closure, frame.bound);
+                    Value result = execute(vm, closure, values);
+                    if (result == null) return null;
+                    vm.leave();
+                    return result;
+                }
+            }
+            return RegisterVM.callValue(env.vm, value, values);
+        }
+    }
+
+    // Statements that end up in expression position evaluate to null
+    public static Expr valueOf(Stmt statement) {
+        return env -> statement.exec(env) == ERROR ? null : Value.NULL;
+    }
+
+    public static Expr query(Cond[] conditions, Expr[] branches, Expr otherwise) {
+        return env -> {
+            for (int i = 0; i < conditions.length; i++) {
+                int test = conditions[i].test(env);
+                if (test < 0) return null;
+                if (test == 1) return branches[i].eval(env);
+            }
+            return otherwise.eval(env);
+        };
+    }
+
+    // Statements
+
+    public static Stmt evaluate(Expr value) {
+        return env -> value.eval(env) == null ? ERROR : NEXT;
+    }
+
+    public static Stmt setLocal(int slot, Expr value) {
+        return env -> {
+            Value v = value.eval(env);
+            if (v == null) return ERROR;
+            env.slots[slot] = v;
+            return NEXT;
+        };
+    }
+
+    public static Stmt copyLocal(int slot, Expr value) {
+        return env -> {
+            Value v = value.eval(env);
+            if (v == null) return ERROR;
+            env.slots[slot] = v.shallowCopy();
+            return NEXT;
+        };
+    }
+
+    public static Stmt setUpvalue(int index, Expr value, int site) {
+        return env -> {
+            Value v = value.eval(env);
+            if (v == null) return ERROR;
+            env.frame.ip = site;
+            return env.vm.set(env.closure.upvalues[index], v) == VMResult.ERROR ? ERROR : NEXT;
+        };
+    }
+
+    public static Stmt block(Stmt[] statements) {
+        if (statements.length == 1) return statements[0];
+        return env -> {
+            for (Stmt statement : statements) {
+                int result = statement.exec(env);
+                if (result != NEXT) return result;
+            }
+            return NEXT;
+        };
+    }
+
+    public static Stmt query(Cond[] conditions, Stmt[] branches, Stmt otherwise) {
+        return env -> {
+            for (int i = 0; i < conditions.length; i++) {
+                int test = conditions[i].test(env);
+                if (test < 0) return ERROR;
+                if (test == 1) return branches[i].exec(env);
+            }
+            return otherwise != null ? otherwise.exec(env) : NEXT;
+        };
+    }
+
+    public static Stmt whileLoop(Cond condition, Stmt body, boolean conditionLast) {
+        return env -> {
+            boolean skip = conditionLast;
+            while (true) {
+                if (!skip) {
+                    int test = condition.test(env);
+                    if (test < 0) return ERROR;
+                    if (test == 0) return NEXT;
+                }
+                skip = false;
+
+                int result = body.exec(env);
+                if (result != NEXT) return result;
+            }
+        };
+    }
+
+    // Same stepping as OpCode.For: the body runs once before the first step and check
+    public static Stmt forLoop(int slot, Expr end, Expr step, Stmt body) {
+        return env -> {
+            Value[] slots = env.slots;
+            boolean first = true;
+            while (true) {
+                if (!first) {
+                    Value endValue = end.eval(env);
+                    if (endValue == null) return ERROR;
+                    Value stepValue = step.eval(env);
+                    if (stepValue == null) return ERROR;
+
+                    double stepBy = stepValue.asNumber();
+                    double last = endValue.asNumber();
+                    Value current = slots[slot];
+
+                    double i;
+                    if (current.isInt() && stepValue.isInt()) {
+                        long next = current.asInt() + stepValue.asInt();
+                        slots[slot] = Value.of(next);
+                        i = next;
+                    }
+                    else {
+                        i = current.asNumber() + stepBy;
+                        slots[slot] = Value.of(i);
+                    }
+
+                    if ((i >= last && stepBy >= 0) || (i <= last && stepBy < 0))
+                        return NEXT;
+                }
+                first = false;
+
+                int result = body.exec(env);
+                if (result != NEXT) return result;
+            }
+        };
+    }
+
+    public static Stmt ret(Expr value) {
+        return env -> {
+            Value v = value.eval(env);
+            if (v == null) return ERROR;
+            env.result = v;
+            return RETURN;
+        };
+    }
+}
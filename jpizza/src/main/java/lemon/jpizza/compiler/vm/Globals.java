@@ -0,0 +1,171 @@
+package lemon.jpizza.compiler.vm;
+
+import lemon.jpizza.compiler.values.Var;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The globals of a VM, stored in an array indexed by slot.
+// Slots are numbered per name for the whole process, so a chunk (or compiled code) resolves
+// each global name to its slot once and every VM can use it. Everything that still works by
+// name - namespaces, destructuring, DropGlobal, the REPL - goes through the Map interface.
+public class Globals extends AbstractMap<String, Var> {
+    private static final Map<String, Integer> slots = new ConcurrentHashMap<>();
+    // Grown under the lock and republished, so name() can read it without one
+    private static volatile String[] names = new String[256];
+    private static int count = 0;
+    private static final Object lock = new Object();
+
+    private Var[] vars = new Var[64];
+    private int size = 0;
+    // Set while vars is still another Globals' array, which is copied before the first write
+    private boolean shared = false;
+
+    public static int slot(String name) {
+        Integer slot = slots.get(name);
+        if (slot != null) return slot;
+        synchronized (lock) {
+            slot = slots.get(name);
+            if (slot == null) {
+                String[] grown = count < names.length ? names : Arrays.copyOf(names, names.length * 2);
+                grown[count] = name;
+                slot = count++;
+                names = grown;
+                slots.put(name, slot);
+            }
+            return slot;
+        }
+    }
+
+    static String name(int slot) {
+        return names[slot];
+    }
+
+    public Var get(int slot) {
+        return slot < vars.length ? vars[slot] : null;
+    }
+
+    // Async workers share their globals with the VM that started them, so writes are serialized
+    public synchronized Var set(int slot, Var var) {
+        if (slot >= vars.length) {
+            if (var == null) return null;
+            vars = Arrays.copyOf(vars, Math.max(vars.length * 2, slot + 1));
+            shared = false;
+        }
+        else if (shared) {
+            vars = vars.clone();
+            shared = false;
+        }
+        Var old = vars[slot];
+        vars[slot] = var;
+        if (old == null && var != null) size++;
+        else if (old != null && var == null) size--;
+        return old;
+    }
+
+    @Override
+    public Var get(Object key) {
+        if (!(key instanceof String)) return null;
+        Integer slot = slots.get(key);
+        return slot == null ? null : get(slot.intValue());
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Var put(String key, Var value) {
+        return set(slot(key), value);
+    }
+
+    @Override
+    public Var remove(Object key) {
+        if (!(key instanceof String)) return null;
+        Integer slot = slots.get(key);
+        return slot == null ? null : set(slot, null);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void clear() {
+        if (shared) {
+            vars = new Var[vars.length];
+            shared = false;
+        }
+        else {
+            Arrays.fill(vars, null);
+        }
+        size = 0;
+    }
+
+    // Defines everything in the natives. Empty globals just share their array until one is set.
+    synchronized void inherit(Globals natives) {
+        if (size == 0) {
+            vars = natives.vars;
+            size = natives.size;
+            shared = true;
+            return;
+        }
+        for (int slot = 0; slot < natives.vars.length; slot++) {
+            if (natives.vars[slot] != null)
+                set(slot, natives.vars[slot]);
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Var>> entrySet() {
+        return new AbstractSet<Entry<String, Var>>() {
+            @Override
+            public Iterator<Entry<String, Var>> iterator() {
+                return new Iterator<Entry<String, Var>>() {
+                    int next = advance(0);
+                    int last = -1;
+
+                    int advance(int from) {
+                        while (from < vars.length && vars[from] == null) from++;
+                        return from;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < vars.length;
+                    }
+
+                    @Override
+                    public Entry<String, Var> next() {
+                        if (!hasNext()) throw new NoSuchElementException();
+                        last = next;
+                        next = advance(next + 1);
+                        return new SimpleEntry<String, Var>(name(last), vars[last]) {
+                            final int slot = last;
+
+                            @Override
+                            public Var setValue(Var value) {
+                                super.setValue(value);
+                                return set(slot, value);
+                            }
+                        };
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (last == -1) throw new IllegalStateException();
+                        set(last, null);
+                        last = -1;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -69,6 +69,14 @@ public abstract class JPExtension {
             vm.defineNative(lib, name, method, types);
     }
 
+    // A function that can call back into the VM calling it
+    protected void func(String name, JNative.VMMethod method, Type returnType, Type... types) {
+        if (vm == null)
+            fields.put(name, new FuncType(returnType, types, new GenericType[0], false));
+        else
+            vm.defineNative(lib, name, method, types);
+    }
+
     protected void var(String name, Value val, Type type) {
         if (vm == null)
             fields.put(name, type);
@@ -82,7 +90,9 @@ public abstract class JPExtension {
 
     public void Start() {
         setup();
-        Shell.libraries.put(name(), new NamespaceType(fields));
+        // Only a type-only load has the fields; loading into a VM must not replace them
+        if (vm == null)
+            Shell.libraries.put(name(), new NamespaceType(fields));
     }
 
     abstract public void setup();
@@ -0,0 +1,214 @@
+package lemon.jpizza.compiler.vm;
+
+import lemon.jpizza.compiler.OpCode;
+import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.values.Var;
+
+import java.util.Collections;
+
+// Base class of the classes JitCompiler generates for hot functions.
+// run() executes the frame from ip until it reaches an instruction it does not handle and
+// returns that ip, with the stack exactly as the interpreter would have it at that point.
+// The helpers return null (or -1) whenever the interpreter would have to do more than the
+// common case, and the generated code then hands that instruction back to the interpreter,
+// which is also where every runtime error is raised.
+public abstract class JitCode {
+    // Returned by run() after a runtime error in a call it made
+    public static final int ERROR = -1;
+
+    // Deeper calls from compiled code go back through the interpreter instead of the Java stack
+    static final int MAX_NESTED_CALLS = 64;
+
+    protected final Value[] constants;
+
+    protected JitCode(Value[] constants) {
+        this.constants = constants;
+    }
+
+    public abstract int run(VM vm, CallFrame frame, int ip);
+
+    static Value local(VM vm, CallFrame frame, int slot, int cached) {
+        if (vm.stack.count + cached - slot <= 0) return null;
+        Value value = vm.stack.get(frame.slots + slot);
+        return value.isVar() ? value.asVar().val : value;
+    }
+
+    static void setLocal(VM vm, CallFrame frame, int slot, Value value) {
+        int index = frame.slots + slot;
+        Value current = vm.stack.get(index);
+        if (current.isVar())
+            current.asVar().val(value);
+        else
+            vm.stack.set(index, value);
+    }
+
+    // Leaves the value as the new slot and returns the copy pushed as the result
+    static Value defineLocal(VM vm, Value value) {
+        vm.push(value);
+        return value.isVar() ? value.asVar().val : value;
+    }
+
+    static Value upvalue(CallFrame frame, int index) {
+        Var var = frame.closure.upvalues[index];
+        return var == null ? null : var.val;
+    }
+
+    static boolean setUpvalue(CallFrame frame, int index, Value value) {
+        return set(frame.closure.upvalues[index], value);
+    }
+
+    static Value global(VM vm, int slot) {
+        Var var = vm.globals.get(slot);
+        return var == null ? null : var.val;
+    }
+
+    static boolean setGlobal(VM vm, CallFrame frame, int slot, Value value) {
+        if (frame.bound != null) return false;
+        return set(vm.globals.get(slot), value);
+    }
+
+    static void defineGlobal(VM vm, int slot, Value value, int constant, int min, int max) {
+        vm.globals.set(slot, new Var(value, constant == 1, min, max));
+    }
+
+    private static boolean set(Var var, Value value) {
+        if (var == null || !var.plain())
+            return false;
+        var.val(value);
+        return true;
+    }
+
+    static Value arithmetic(int op, Value a, Value b) {
+        if (a.isInt() && b.isInt())
+            return VM.intArithmetic(op, a.asInt(), b.asInt());
+        if (a.isNumber() && b.isNumber())
+            return Value.of(VM.arithmetic(op, a.asNumber(), b.asNumber()));
+        return null;
+    }
+
+    static Value localArithmetic(VM vm, CallFrame frame, int slot, int cached, Value b, int op) {
+        Value a = local(vm, frame, slot, cached);
+        if (a == null || !a.isInt() || !b.isInt()) return null;
+        return VM.intArithmetic(op, a.asInt(), b.asInt());
+    }
+
+    static Value compare(int op, Value a, Value b) {
+        if (!a.isNumber() || !b.isNumber()) return null;
+        return Value.of(VM.numberComparison(op, a, b));
+    }
+
+    // 1 if the comparison holds, 0 if not, -1 if it is not a number comparison
+    static int test(int op, Value a, Value b) {
+        if (!a.isNumber() || !b.isNumber()) return -1;
+        return VM.numberComparison(op, a, b) ? 1 : 0;
+    }
+
+    static Value concat(Value a, Value b) {
+        if (!a.isString() || !b.isString()) return null;
+        return new Value(a.asString() + b.asString());
+    }
+
+    static Value bitwise(int op, Value a, Value b) {
+        if (!a.isInt() || !b.isInt()) return null;
+        long x = a.asInt();
+        long y = b.asInt();
+        switch (op) {
+            case OpCode.BitAnd: return Value.of(x & y);
+            case OpCode.BitOr: return Value.of(x | y);
+            case OpCode.BitXor: return Value.of(x ^ y);
+            case OpCode.LeftShift: return Value.of(x << y);
+            case OpCode.RightShift: return Value.of(x >>> y);
+            default: return Value.of(x >> y);
+        }
+    }
+
+    static Value unary(int op, Value a) {
+        if (op == OpCode.Not)
+            return Value.of(!a.asBool());
+        if (op == OpCode.BitCompl)
+            return a.isInt() ? Value.of(~a.asInt()) : null;
+        if (a.isInt()) {
+            long x = a.asInt();
+            try {
+                switch (op) {
+                    case OpCode.Increment: return Value.of(Math.incrementExact(x));
+                    case OpCode.Decrement: return Value.of(Math.decrementExact(x));
+                    case OpCode.Negate: return Value.of(Math.negateExact(x));
+                }
+            } catch (ArithmeticException ignored) {}
+            return null;
+        }
+        if (!a.isNumber()) return null;
+        switch (op) {
+            case OpCode.Increment: return Value.of(a.asNumber() + 1);
+            case OpCode.Decrement: return Value.of(a.asNumber() - 1);
+            default: return Value.of(-a.asNumber());
+        }
+    }
+
+    static int truthy(Value value) {
+        return value.asBool() ? 1 : 0;
+    }
+
+    static Value chain(Value a, Value b) {
+        return a.isNull() ? b : a;
+    }
+
+    static Value copy(Value value) {
+        return value.shallowCopy();
+    }
+
+    // A positional call with the callee on top of the stack and its arguments below, as OpCode.Call
+    // finds them. Functions are run to completion by a nested run(). Returns 1 when the result is on
+    // the stack, 0 to leave the call to the interpreter and ERROR once an error has been raised.
+    static int call(VM vm, CallFrame frame, int argc, int next) {
+        if (vm.nestedCalls >= MAX_NESTED_CALLS) return 0;
+        for (int i = 1; i <= argc; i++)
+            if (vm.peek(i).isSpread()) return 0;
+
+        frame.ip = next;
+        int depth = vm.frames.count;
+        if (!vm.callDirect(argc)) {
+            Value callee = vm.pop();
+            Value[] args = new Value[argc];
+            for (int i = argc - 1; i >= 0; i--)
+                args[i] = vm.pop();
+            vm.push(callee);
+            for (Value arg : args)
+                vm.push(arg);
+
+            if (!vm.callValue(callee, args, Collections.emptyMap())) return ERROR;
+            vm.frame = vm.frames.peek();
+        }
+
+        if (vm.frames.count > depth) {
+            vm.nestedCalls++;
+            VMResult result = vm.run();
+            vm.nestedCalls--;
+            if (result == VMResult.ERROR) return ERROR;
+        }
+        return 1;
+    }
+
+    // Same stepping as OpCode.For, 1 when the loop is done
+    static int forStep(VM vm, CallFrame frame, int slot, Value end, Value stepValue) {
+        double step = stepValue.asNumber();
+        double last = end.asNumber();
+
+        Value current = vm.stack.get(frame.slots + slot);
+        if (current.isVar()) current = current.asVar().val;
+
+        double i;
+        if (current.isInt() && stepValue.isInt()) {
+            long next = current.asInt() + stepValue.asInt();
+            setLocal(vm, frame, slot, Value.of(next));
+            i = next;
+        }
+        else {
+            i = current.asNumber() + step;
+            setLocal(vm, frame, slot, Value.of(i));
+        }
+
+        return (i >= last && step >= 0) || (i <= last && step < 0) ? 1 : 0;
+    }
+}
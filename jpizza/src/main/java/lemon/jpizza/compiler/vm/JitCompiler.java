@@ -0,0 +1,617 @@
+package lemon.jpizza.compiler.vm;
+
+import lemon.jpizza.Shell;
+import lemon.jpizza.compiler.Chunk;
+import lemon.jpizza.compiler.ChunkOptimizer;
+import lemon.jpizza.compiler.OpCode;
+import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.values.functions.JFunc;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import static lemon.jpizza.compiler.vm.ClassAssembler.*;
+
+// Second tier for hot functions. Once a function has been called CALL_THRESHOLD times or has
+// taken LOOP_THRESHOLD loop back-edges in the interpreter, its chunk is translated into a JVM
+// class (a hidden class where the runtime has them) that HotSpot can compile on its own.
+//
+// The generated code only covers the common cases of the simple instructions. Inside a basic
+// block the top of the operand stack is kept in JVM locals; it is written back to the VM stack
+// at block boundaries and whenever control goes back to the interpreter. That happens for every
+// instruction that is not translated (calls, returns, attribute access...) and for translated
+// instructions whose operands are not the expected kind, so the interpreter ends up running
+// anything that can fail and tracebacks and catchError behave exactly as without the JIT.
+// The interpreter re-enters compiled code at block starts: jump targets and the instruction
+// after each untranslated one.
+public final class JitCompiler {
+    public static boolean enabled = true;
+
+    static final int CALL_THRESHOLD = 1000;
+    static final int LOOP_THRESHOLD = 10000;
+
+    private static final String MACHINE = "lemon/jpizza/compiler/vm/VM";
+    private static final String CODE = "lemon/jpizza/compiler/vm/JitCode";
+    private static final String VALUE = "lemon/jpizza/compiler/values/Value";
+    private static final String V = "L" + VALUE + ";";
+    private static final String VM_FRAME = "L" + MACHINE + ";Llemon/jpizza/compiler/vm/CallFrame;";
+
+    // Locals of the generated run(): this, vm, frame, ip, then scratch slots and the cached stack
+    private static final int SCRATCH = 4;
+    private static final int FLAG = 5;
+    private static final int CACHE = 6;
+    private static final int MAX_CACHE = 64;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static Method defineHidden;
+    private static Object noOptions;
+
+    static {
+        try {
+            Class<?> options = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            noOptions = Array.newInstance(options, 0);
+            defineHidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class, noOptions.getClass());
+        } catch (ReflectiveOperationException e) {
+            // Older runtimes: everything stays interpreted
+            enabled = false;
+        }
+    }
+
+    // Compiled code for the function, compiling it first if it just became hot
+    static JitCode tier(JFunc function) {
+        if (function.compiled == null && enabled && !function.uncompilable &&
+                (function.calls >= CALL_THRESHOLD || function.backEdges >= LOOP_THRESHOLD))
+            compile(function);
+        return function.compiled;
+    }
+
+    static void compile(JFunc function) {
+        try {
+            Chunk chunk = function.chunk;
+            Value[] constants = chunk.constants().valuesArray;
+            byte[] bytes = new JitCompiler(chunk.codeArray, constants, chunk.globalSlots).assemble();
+
+            MethodHandles.Lookup defined = (MethodHandles.Lookup) defineHidden.invoke(lookup, bytes, true, noOptions);
+            function.compiled = (JitCode) defined.lookupClass()
+                    .getConstructor(Value[].class)
+                    .newInstance((Object) constants);
+        } catch (ClassAssembler.TooLarge | ReflectiveOperationException | LinkageError e) {
+            // Anything else thrown while assembling is a bug in the JIT and is left to surface
+            function.uncompilable = true;
+            Throwable cause = e instanceof InvocationTargetException && e.getCause() != null ? e.getCause() : e;
+            Shell.logger.debug("JIT: could not compile " + function.name + ": " + cause + "\n");
+        }
+    }
+
+    private final int[] code;
+    private final Value[] constants;
+    private final int[] globalSlots;
+    private final ClassAssembler assembler = new ClassAssembler("lemon/jpizza/compiler/vm/Compiled", CODE);
+    private ClassAssembler.Method method;
+
+    private Label[] labels;
+    // Number of stack values currently held in locals CACHE..CACHE+cached-1
+    private int cached;
+    private int maxCached;
+
+    private JitCompiler(int[] code, Value[] constants, int[] globalSlots) {
+        this.code = code;
+        this.constants = constants;
+        this.globalSlots = globalSlots;
+    }
+
+    private static boolean translated(int op) {
+        switch (op) {
+            case OpCode.Constant:
+            case OpCode.Null:
+            case OpCode.Pop:
+            case OpCode.GetLocal:
+            case OpCode.SetLocal:
+            case OpCode.GetUpvalue:
+            case OpCode.SetUpvalue:
+            case OpCode.GetGlobal:
+            case OpCode.SetGlobal:
+            case OpCode.DefineGlobal:
+            case OpCode.Jump:
+            case OpCode.Loop:
+            case OpCode.JumpIfFalse:
+            case OpCode.JumpIfTrue:
+            case OpCode.For:
+            case OpCode.Add:
+            case OpCode.Subtract:
+            case OpCode.Multiply:
+            case OpCode.Divide:
+            case OpCode.Modulo:
+            case OpCode.Power:
+            case OpCode.AddNum:
+            case OpCode.SubtractNum:
+            case OpCode.MultiplyNum:
+            case OpCode.DivideNum:
+            case OpCode.ModuloNum:
+            case OpCode.Equal:
+            case OpCode.LessThan:
+            case OpCode.GreaterThan:
+            case OpCode.EqualNum:
+            case OpCode.LessThanNum:
+            case OpCode.GreaterThanNum:
+            case OpCode.NotEqual:
+            case OpCode.GreaterEqual:
+            case OpCode.LessEqual:
+            case OpCode.CompareJump:
+            case OpCode.LocalConstArith:
+            case OpCode.ConcatStr:
+            case OpCode.Increment:
+            case OpCode.Decrement:
+            case OpCode.Negate:
+            case OpCode.Not:
+            case OpCode.BitAnd:
+            case OpCode.BitOr:
+            case OpCode.BitXor:
+            case OpCode.LeftShift:
+            case OpCode.RightShift:
+            case OpCode.SignRightShift:
+            case OpCode.BitCompl:
+            case OpCode.Chain:
+            case OpCode.Copy:
+            case OpCode.DefineLocal:
+            case OpCode.Call:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private byte[] assemble() {
+        int size = code.length;
+
+        // Find the block starts
+        List<Integer> offsets = new ArrayList<>();
+        boolean[] starts = new boolean[size + 1];
+        starts[0] = true;
+        int offset = 0;
+        while (offset < size) {
+            offsets.add(offset);
+            int op = code[offset];
+            int length = ChunkOptimizer.length(code, constants, offset);
+            int operand = ChunkOptimizer.jumpOperand(op);
+            if (operand != -1)
+                starts[target(offset, length)] = true;
+            // Keyword calls are left to the interpreter, and so are positional ones nested too deep
+            if (!translated(op) || operand != -1 || op == OpCode.Call)
+                starts[offset + length] = true;
+            offset += length;
+        }
+
+        labels = new Label[size + 1];
+        List<Integer> entries = new ArrayList<>();
+        for (int i = 0; i <= size; i++) {
+            if (starts[i]) {
+                labels[i] = new Label();
+                if (i < size) entries.add(i);
+            }
+        }
+
+        ClassAssembler.Method init = assembler.method("<init>", "([" + V + ")V");
+        init.aload(0);
+        init.aload(1);
+        init.invoke(INVOKESPECIAL, CODE, "<init>", "([" + V + ")V");
+        init.op(RETURN);
+        init.maxStack = 2;
+        init.maxLocals = 2;
+
+        method = assembler.method("run", "(" + VM_FRAME + "I)I");
+
+        // Dispatch on the ip the interpreter hands over, anything that is not a block start goes straight back
+        int[] keys = new int[entries.size()];
+        Label[] targets = new Label[entries.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = entries.get(i);
+            targets[i] = labels[keys[i]];
+        }
+        Label back = new Label();
+        method.iload(3);
+        method.lookupSwitch(back, keys, targets);
+        method.place(back);
+        method.iload(3);
+        method.op(IRETURN);
+
+        boolean reachable = false;
+        for (int start : offsets) {
+            if (labels[start] != null) {
+                if (reachable) flush();
+                cached = 0;
+                method.place(labels[start]);
+                reachable = true;
+            }
+            if (!reachable) continue;
+            reachable = instruction(start);
+        }
+        if (labels[size] != null) {
+            if (reachable) flush();
+            cached = 0;
+            method.place(labels[size]);
+            reachable = true;
+        }
+        if (reachable) exit(size);
+
+        method.maxStack = 8;
+        method.maxLocals = CACHE + maxCached + 1;
+        return assembler.toBytes();
+    }
+
+    private int target(int offset, int length) {
+        int op = code[offset];
+        int jump = code[offset + ChunkOptimizer.jumpOperand(op)];
+        return op == OpCode.Loop ? offset + length - jump : offset + length + jump;
+    }
+
+    // Emits one instruction, returns whether the next one can be reached by falling through
+    private boolean instruction(int start) {
+        int op = code[start];
+        switch (op) {
+            case OpCode.Constant:
+                constant(code[start + 1]);
+                push();
+                return true;
+
+            case OpCode.Null:
+                method.field(GETSTATIC, VALUE, "NULL", V);
+                push();
+                return true;
+
+            case OpCode.Pop:
+                if (cached > 0) {
+                    cached--;
+                }
+                else {
+                    method.aload(1);
+                    method.invoke(INVOKEVIRTUAL, MACHINE, "pop", "()" + V);
+                    method.op(POP);
+                }
+                return true;
+
+            case OpCode.GetLocal:
+                vmFrame();
+                method.iconst(code[start + 1]);
+                method.iconst(cached);
+                call("local", "(" + VM_FRAME + "II)" + V);
+                guard(start);
+                pushResult();
+                return true;
+
+            case OpCode.SetLocal:
+                need(1);
+                vmFrame();
+                method.iconst(code[start + 1]);
+                method.aload(top(0));
+                call("setLocal", "(" + VM_FRAME + "I" + V + ")V");
+                return true;
+
+            case OpCode.GetUpvalue:
+                method.aload(2);
+                method.iconst(code[start + 1]);
+                call("upvalue", "(Llemon/jpizza/compiler/vm/CallFrame;I)" + V);
+                guard(start);
+                pushResult();
+                return true;
+
+            case OpCode.SetUpvalue:
+                need(1);
+                method.aload(2);
+                method.iconst(code[start + 1]);
+                method.aload(top(0));
+                call("setUpvalue", "(Llemon/jpizza/compiler/vm/CallFrame;I" + V + ")Z");
+                check(start, IFNE);
+                return true;
+
+            case OpCode.GetGlobal:
+                method.aload(1);
+                method.iconst(globalSlots[code[start + 1]]);
+                call("global", "(L" + MACHINE + ";I)" + V);
+                guard(start);
+                pushResult();
+                return true;
+
+            case OpCode.SetGlobal:
+                need(1);
+                vmFrame();
+                method.iconst(globalSlots[code[start + 1]]);
+                method.aload(top(0));
+                call("setGlobal", "(" + VM_FRAME + "I" + V + ")Z");
+                check(start, IFNE);
+                return true;
+
+            case OpCode.DefineGlobal: {
+                boolean usesRange = code[start + 3] == 1;
+                need(1);
+                method.aload(1);
+                method.iconst(globalSlots[code[start + 1]]);
+                method.aload(top(0));
+                method.iconst(code[start + 2]);
+                method.iconst(usesRange ? code[start + 4] : Integer.MIN_VALUE);
+                method.iconst(usesRange ? code[start + 5] : Integer.MAX_VALUE);
+                call("defineGlobal", "(L" + MACHINE + ";I" + V + "III)V");
+                return true;
+            }
+
+            case OpCode.Jump:
+            case OpCode.Loop:
+                flush();
+                method.jump(GOTO, labels[target(start, 2)]);
+                return false;
+
+            case OpCode.JumpIfFalse:
+            case OpCode.JumpIfTrue:
+                // The condition stays on the stack
+                need(1);
+                method.aload(top(0));
+                call("truthy", "(" + V + ")I");
+                method.istore(FLAG);
+                flush();
+                method.iload(FLAG);
+                method.jump(op == OpCode.JumpIfFalse ? IFEQ : IFNE, labels[target(start, 2)]);
+                return true;
+
+            case OpCode.For:
+                need(2);
+                vmFrame();
+                method.iconst(code[start + 1]);
+                method.aload(top(1));
+                method.aload(top(0));
+                call("forStep", "(" + VM_FRAME + "I" + V + V + ")I");
+                method.istore(FLAG);
+                cached -= 2;
+                flush();
+                method.iload(FLAG);
+                method.jump(IFNE, labels[target(start, 3)]);
+                return true;
+
+            case OpCode.Add:
+            case OpCode.Subtract:
+            case OpCode.Multiply:
+            case OpCode.Divide:
+            case OpCode.Modulo:
+            case OpCode.Power:
+            case OpCode.AddNum:
+            case OpCode.SubtractNum:
+            case OpCode.MultiplyNum:
+            case OpCode.DivideNum:
+            case OpCode.ModuloNum:
+                binary(start, VM.genericOp(op), "arithmetic");
+                return true;
+
+            case OpCode.Equal:
+            case OpCode.LessThan:
+            case OpCode.GreaterThan:
+            case OpCode.EqualNum:
+            case OpCode.LessThanNum:
+            case OpCode.GreaterThanNum:
+            case OpCode.NotEqual:
+            case OpCode.GreaterEqual:
+            case OpCode.LessEqual:
+                binary(start, op, "compare");
+                return true;
+
+            case OpCode.BitAnd:
+            case OpCode.BitOr:
+            case OpCode.BitXor:
+            case OpCode.LeftShift:
+            case OpCode.RightShift:
+            case OpCode.SignRightShift:
+                binary(start, op, "bitwise");
+                return true;
+
+            case OpCode.CompareJump: {
+                need(2);
+                method.iconst(code[start + 1]);
+                method.aload(top(1));
+                method.aload(top(0));
+                call("test", "(I" + V + V + ")I");
+                method.istore(FLAG);
+                method.iload(FLAG);
+                check(start, IFGE);
+                cached -= 2;
+                flush();
+                method.iload(FLAG);
+                method.jump(IFEQ, labels[target(start, 3)]);
+                return true;
+            }
+
+            case OpCode.LocalConstArith:
+                vmFrame();
+                method.iconst(code[start + 1]);
+                method.iconst(cached);
+                constant(code[start + 2]);
+                method.iconst(VM.genericOp(code[start + 3]));
+                call("localArithmetic", "(" + VM_FRAME + "II" + V + "I)" + V);
+                guard(start);
+                pushResult();
+                return true;
+
+            case OpCode.ConcatStr:
+                need(2);
+                method.aload(top(1));
+                method.aload(top(0));
+                call("concat", "(" + V + V + ")" + V);
+                guard(start);
+                cached -= 2;
+                pushResult();
+                return true;
+
+            case OpCode.Chain:
+                need(2);
+                method.aload(top(1));
+                method.aload(top(0));
+                call("chain", "(" + V + V + ")" + V);
+                cached -= 2;
+                push();
+                return true;
+
+            case OpCode.Increment:
+            case OpCode.Decrement:
+            case OpCode.Negate:
+            case OpCode.Not:
+            case OpCode.BitCompl:
+                need(1);
+                method.iconst(op);
+                method.aload(top(0));
+                call("unary", "(I" + V + ")" + V);
+                guard(start);
+                cached--;
+                pushResult();
+                return true;
+
+            case OpCode.Copy:
+                need(1);
+                method.aload(top(0));
+                call("copy", "(" + V + ")" + V);
+                cached--;
+                push();
+                return true;
+
+            case OpCode.DefineLocal:
+                need(1);
+                method.aload(top(0));
+                method.astore(SCRATCH);
+                cached--;
+                flush();
+                method.aload(1);
+                method.aload(SCRATCH);
+                call("defineLocal", "(L" + MACHINE + ";" + V + ")" + V);
+                method.astore(SCRATCH);
+                pushResult();
+                return true;
+
+            case OpCode.Call: {
+                if (code[start + 2] != 0) {
+                    exit(start);
+                    return false;
+                }
+                flush();
+                vmFrame();
+                method.iconst(code[start + 1]);
+                method.iconst(start + 3);
+                call("call", "(" + VM_FRAME + "II)I");
+                method.istore(FLAG);
+
+                Label done = new Label();
+                Label failed = new Label();
+                method.iload(FLAG);
+                method.jump(IFGT, done);
+                method.iload(FLAG);
+                method.jump(IFNE, failed);
+                exit(start);
+                method.place(failed);
+                method.iconst(JitCode.ERROR);
+                method.op(IRETURN);
+                method.place(done);
+                return true;
+            }
+
+            default:
+                // Everything else is left to the interpreter
+                exit(start);
+                return false;
+        }
+    }
+
+    // Generic arithmetic and comparisons: both operands from the stack, one result back
+    private void binary(int start, int op, String helper) {
+        need(2);
+        method.iconst(op);
+        method.aload(top(1));
+        method.aload(top(0));
+        call(helper, "(I" + V + V + ")" + V);
+        guard(start);
+        cached -= 2;
+        pushResult();
+    }
+
+    private void call(String name, String descriptor) {
+        method.invoke(INVOKESTATIC, CODE, name, descriptor);
+    }
+
+    private void vmFrame() {
+        method.aload(1);
+        method.aload(2);
+    }
+
+    private void constant(int index) {
+        method.aload(0);
+        method.field(GETFIELD, CODE, "constants", "[" + V);
+        method.iconst(index);
+        method.op(AALOAD);
+    }
+
+    // Local holding the value offset places below the top of the stack
+    private int top(int offset) {
+        return CACHE + cached - 1 - offset;
+    }
+
+    // Keeps the helper result in SCRATCH, handing the instruction to the interpreter if it is null
+    private void guard(int start) {
+        method.astore(SCRATCH);
+        method.aload(SCRATCH);
+        check(start, IFNONNULL);
+    }
+
+    // Continues if the branch on the value on the JVM stack is taken, otherwise leaves at start
+    private void check(int start, int branch) {
+        Label ok = new Label();
+        method.jump(branch, ok);
+        exit(start);
+        method.place(ok);
+    }
+
+    // Moves the value on the JVM stack onto the top of the VM stack
+    private void push() {
+        if (cached == MAX_CACHE) flush();
+        method.astore(CACHE + cached);
+        cached++;
+        maxCached = Math.max(maxCached, cached);
+    }
+
+    // Same for a result kept in SCRATCH by guard()
+    private void pushResult() {
+        method.aload(SCRATCH);
+        push();
+    }
+
+    // Makes sure the top n values are in locals
+    private void need(int n) {
+        if (cached >= n) return;
+        flush();
+        for (int i = n - 1; i >= 0; i--) {
+            method.aload(1);
+            method.invoke(INVOKEVIRTUAL, MACHINE, "pop", "()" + V);
+            method.astore(CACHE + i);
+        }
+        cached = n;
+        maxCached = Math.max(maxCached, cached);
+    }
+
+    // Writes the cached values back to the VM stack
+    private void flush() {
+        writeBack();
+        cached = 0;
+    }
+
+    private void writeBack() {
+        for (int i = 0; i < cached; i++) {
+            method.aload(1);
+            method.aload(CACHE + i);
+            method.invoke(INVOKEVIRTUAL, MACHINE, "push", "(" + V + ")V");
+        }
+    }
+
+    // Hands control back to the interpreter at ip, leaving the cache as it is for the code that follows
+    private void exit(int ip) {
+        writeBack();
+        method.iconst(ip);
+        method.op(IRETURN);
+    }
+}
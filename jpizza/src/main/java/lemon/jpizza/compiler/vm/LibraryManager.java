@@ -2,15 +2,12 @@ package lemon.jpizza.compiler.vm;
 
 import lemon.jpizza.Pair;
 import lemon.jpizza.Shell;
-import lemon.jpizza.compiler.libraries.*;
-import lemon.jpizza.compiler.libraries.awt.AbstractWindowToolkit;
-import lemon.jpizza.compiler.libraries.pretzel.Pretzel;
-import lemon.jpizza.compiler.libraries.puddle.PDL;
 import lemon.jpizza.compiler.types.GenericType;
 import lemon.jpizza.compiler.types.Type;
 import lemon.jpizza.compiler.types.Types;
 import lemon.jpizza.compiler.types.objects.FuncType;
 import lemon.jpizza.compiler.types.objects.TupleType;
+import lemon.jpizza.compiler.values.Range;
 import lemon.jpizza.compiler.values.Value;
 import lemon.jpizza.compiler.values.functions.JFunc;
 import lemon.jpizza.compiler.values.functions.JNative;
@@ -91,56 +88,67 @@ public class LibraryManager {
             vm.defineNative(name, method, type.varargs ? -1 : type.parameterTypes.length);
     }
 
-    public static void Setup(VM vm) {
-        new LibraryManager(vm).setup();
-    }
-
-    private void setup() {
-        builtin();
-        time();
-        gens();
-        io();
-        sys();
-        awt();
-        json();
-        httpx();
-        puddle();
-        guis();
-        pretzel();
-    }
-
-    private void pretzel() {
-        new Pretzel(vm).Start();
-    }
-
-    private void puddle() {
-        new PDL(vm).Start();
-    }
-
-    private void httpx() {
-        new HTTPx(vm).Start();
-    }
-
-    private void awt() {
-        new AbstractWindowToolkit(vm).Start();
-    }
-
-    private void json() { new JPSon(vm).Start(); }
+    // The libraries a script can import, by name, with the extension class that implements each.
+    // A class is only loaded once something imports its library, so a script that imports nothing
+    // never loads Swing, the HTTP server or Jackson.
+    private static final Map<String, String> LIBRARIES = new LinkedHashMap<String, String>() {{
+        put("time", "lemon.jpizza.compiler.libraries.Time");
+        put("gens", "lemon.jpizza.compiler.libraries.Generators");
+        put("iofile", "lemon.jpizza.compiler.libraries.IOFile");
+        put("sys", "lemon.jpizza.compiler.libraries.JSystem");
+        put("awt", "lemon.jpizza.compiler.libraries.awt.AbstractWindowToolkit");
+        put("json", "lemon.jpizza.compiler.libraries.JPSon");
+        put("httpx", "lemon.jpizza.compiler.libraries.HTTPx");
+        put("pdl", "lemon.jpizza.compiler.libraries.puddle.PDL");
+        put("guis", "lemon.jpizza.compiler.libraries.GUIs");
+        put("pretzel", "lemon.jpizza.compiler.libraries.pretzel.Pretzel");
+    }};
 
-    private void sys() {
-        new JSystem(vm).Start();
+    // Shell.libraries: the type of each library, worked out the first time the compiler looks it up
+    private static class LibraryTypes extends HashMap<String, Type> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Type get(Object key) {
+            load(key);
+            return super.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            load(key);
+            return super.containsKey(key);
+        }
+
+        private void load(Object key) {
+            if (!super.containsKey(key) && LIBRARIES.containsKey(key))
+                Load(null, (String) key);
+        }
     }
 
-    private void guis() {
-        new GUIs(vm).Start();
+    public static Map<String, Type> libraryTypes() {
+        return new LibraryTypes();
     }
 
-    private void io() {
-        new IOFile(vm).Start();
+    // Sets up the builtin functions. Libraries are left to Load().
+    public static void Setup(VM vm) {
+        new LibraryManager(vm).builtin();
     }
 
-    private void gens() {
-        new Generators(vm).Start();
+    // Defines the natives of the library in the VM, or only its types when the VM is null.
+    // Returns false if there is no library by that name.
+    public static boolean Load(VM vm, String name) {
+        String className = LIBRARIES.get(name);
+        if (className == null) return false;
+
+        try {
+            Class<?> loadedClass = Class.forName(className);
+            JPExtension extension = (JPExtension) loadedClass.getConstructor(VM.class).newInstance(vm);
+            extension.Start();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to load library " + name, e);
+        }
+        return true;
     }
 
     private void builtin() {
@@ -205,6 +213,13 @@ public class LibraryManager {
             return NativeResult.Ok();
         }, Types.VOID, Types.STRING);
 
+        // Waits for an async call to return, giving back anything that is not a future as it is
+        define("await", (args) -> {
+            if (!args[0].isFuture())
+                return NativeResult.Ok(args[0]);
+            return args[0].asFuture().await();
+        }, Types.ANY, Types.ANY);
+
         define("clear", (args) -> {
             try {
                 if (System.getProperty("os.name").toLowerCase().contains("windows")) {
@@ -219,8 +234,8 @@ public class LibraryManager {
 
         // Number Functions
         define("round", (args) -> NativeResult.Ok(new Value(Math.round(args[0].asNumber()))), Types.INT, Types.FLOAT);
-        define("floor", (args) -> NativeResult.Ok(new Value(Math.floor(args[0].asNumber()))), Types.INT, Types.FLOAT);
-        define("ceil", (args) -> NativeResult.Ok(new Value(Math.ceil(args[0].asNumber()))), Types.INT, Types.FLOAT);
+        define("floor", (args) -> NativeResult.Ok(new Value((long) Math.floor(args[0].asNumber()))), Types.INT, Types.FLOAT);
+        define("ceil", (args) -> NativeResult.Ok(new Value((long) Math.ceil(args[0].asNumber()))), Types.INT, Types.FLOAT);
         define("abs", (args) -> NativeResult.Ok(new Value(Math.abs(args[0].asNumber()))), Types.FLOAT, Types.FLOAT);
         define("arctan2",
                 (args) -> NativeResult.Ok(new Value(Math.atan2(args[0].asNumber(), args[1].asNumber()))),
@@ -241,7 +256,7 @@ public class LibraryManager {
                 (args) -> NativeResult.Ok(new Value(Math.log(args[0].asNumber()) / Math.log(args[1].asNumber()))),
                 Types.FLOAT, Types.FLOAT, Types.FLOAT);
         define("doubleStr",
-                (args) -> NativeResult.Ok(new Value(String.format("%." + args[1].asNumber().intValue(), args[0].asNumber()))),
+                (args) -> NativeResult.Ok(new Value(String.format("%." + (int) args[1].asNumber(), args[0].asNumber()))),
                 Types.FLOAT, Types.FLOAT, Types.FLOAT);
         define("parseNum",
                 (args) -> {
@@ -270,20 +285,26 @@ public class LibraryManager {
         // Type Functions
         define("type", (args) -> NativeResult.Ok(new Value(args[0].type())), Types.STRING, 1);
 
-        define("isList", (args) -> NativeResult.Ok(new Value(args[0].isList)), Types.BOOL, 1);
-        define("isFunction", (args) -> NativeResult.Ok(new Value(args[0].isClosure)), Types.BOOL, 1);
-        define("isBoolean", (args) -> NativeResult.Ok(new Value(args[0].isBool)), Types.BOOL, 1);
-        define("isDict", (args) -> NativeResult.Ok(new Value(args[0].isMap)), Types.BOOL, 1);
-        define("isNumber", (args) -> NativeResult.Ok(new Value(args[0].isNumber)), Types.BOOL, 1);
-        define("isString", (args) -> NativeResult.Ok(new Value(args[0].isString)), Types.BOOL, 1);
+        define("isList", (args) -> NativeResult.Ok(new Value(args[0].isList())), Types.BOOL, 1);
+        define("isFunction", (args) -> NativeResult.Ok(new Value(args[0].isClosure())), Types.BOOL, 1);
+        define("isBoolean", (args) -> NativeResult.Ok(new Value(args[0].isBool())), Types.BOOL, 1);
+        define("isDict", (args) -> NativeResult.Ok(new Value(args[0].isMap())), Types.BOOL, 1);
+        define("isNumber", (args) -> NativeResult.Ok(new Value(args[0].isNumber())), Types.BOOL, 1);
+        define("isString", (args) -> NativeResult.Ok(new Value(args[0].isString())), Types.BOOL, 1);
 
         define("str", (args) -> NativeResult.Ok(new Value(args[0].asString())), Types.STRING, 1);
-        define("list", (args) -> NativeResult.Ok(new Value(args[0].asList())), Types.LIST, 1);
+        define("list", (args) -> {
+            List<Value> list = args[0].asList();
+            // The one place a range is expanded into its elements
+            if (list instanceof Range && ((Range) list).isLazy())
+                list = new ArrayList<>(list);
+            return NativeResult.Ok(new Value(list));
+        }, Types.LIST, 1);
         define("bool", (args) -> NativeResult.Ok(new Value(args[0].asBool())), Types.BOOL, 1);
         define("num", (args) -> NativeResult.Ok(new Value(args[0].asNumber())), Types.FLOAT, 1);
         define("dict", (args) -> NativeResult.Ok(new Value(args[0].asMap())), Types.DICT, 1);
         define("chr", (args) -> NativeResult.Ok(new Value(new String(
-                new byte[] { args[0].asNumber().byteValue() }
+                new byte[] { (byte) args[0].asNumber() }
         ))), Types.STRING, Types.INT);
         define("chrs", (args) -> NativeResult.Ok(new Value(new String(
                 args[0].asBytes()
@@ -306,9 +327,9 @@ public class LibraryManager {
             byte[] bytes = new byte[list.size()];
             for (int i = 0; i < list.size(); i++) {
                 Value v = list.get(i);
-                if (!v.isNumber || v.asNumber().byteValue() != v.asNumber())
+                if (!v.isNumber() || (byte) v.asNumber() != v.asNumber())
                     return NativeResult.Err("Type", "List must contain only bytes");
-                bytes[i] = v.asNumber().byteValue();
+                bytes[i] = (byte) v.asNumber();
             }
             return NativeResult.Ok(new Value(bytes));
         }, Types.LIST, Types.LIST);
@@ -349,8 +370,8 @@ public class LibraryManager {
         }, Types.LIST, Types.STRING, Types.STRING);
         define("substr", (args) -> {
             String str = args[0].asString();
-            int start = args[1].asNumber().intValue();
-            int end = args[2].asNumber().intValue();
+            int start = (int) args[1].asNumber();
+            int end = (int) args[2].asNumber();
 
             while (start < 0) start = str.length() + start;
             while (end < 0) end = str.length() + end;
@@ -472,8 +493,8 @@ public class LibraryManager {
                 return NativeResult.Err("Scope", "Index out of bounds");
             }
 
-            return NativeResult.Ok(new Value(list.asList().subList(start.asNumber().intValue(),
-                    end.asNumber().intValue())));
+            return NativeResult.Ok(new Value(list.asList().subList((int) start.asNumber(),
+                    (int) end.asNumber())));
         }, Types.LIST, Types.LIST, Types.INT, Types.INT);
 
         // Collection Functions
@@ -510,8 +531,4 @@ public class LibraryManager {
             return NativeResult.Err("Released", args[0].toString());
         }, Types.VOID, Types.RESULT);
     }
-
-    private void time() {
-        new Time(vm).Start();
-    }
 }
@@ -0,0 +1,48 @@
+package lemon.jpizza.compiler.vm;
+
+import lemon.jpizza.compiler.values.classes.Namespace;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The builtins and libraries every VM starts with.
+// LibraryManager.Setup runs once per process, the first time a VM is set up, and every VM shares
+// what it defined from then on: its globals start out as the registry's array and copy it on
+// their first write, and its libraries are the registry's until it defines natives of its own.
+// Libraries are only loaded into the registry when a VM first imports them.
+final class NativeRegistry {
+    final Globals globals;
+    final Map<String, Namespace> libraries;
+
+    private final Map<String, Namespace> loaded = new ConcurrentHashMap<>();
+    // The VM natives are defined through. Libraries are loaded into its own map and only added
+    // to the registry once they are complete, as VMs look them up without locking.
+    private final VM loader;
+
+    private NativeRegistry() {
+        globals = new Globals();
+        libraries = Collections.unmodifiableMap(loaded);
+        loader = new VM(globals, new HashMap<>());
+        LibraryManager.Setup(loader);
+    }
+
+    // The library with this name, loading it if no VM has imported it yet; null if there is none
+    synchronized Namespace library(String name) {
+        Namespace library = loaded.get(name);
+        if (library == null && LibraryManager.Load(loader, name)) {
+            library = loader.libraries.get(name);
+            loaded.put(name, library);
+        }
+        return library;
+    }
+
+    private static class Holder {
+        static final NativeRegistry registry = new NativeRegistry();
+    }
+
+    static NativeRegistry get() {
+        return Holder.registry;
+    }
+}
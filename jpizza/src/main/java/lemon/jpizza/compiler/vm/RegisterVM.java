@@ -0,0 +1,234 @@
+package lemon.jpizza.compiler.vm;
+
+import lemon.jpizza.compiler.OpCode;
+import lemon.jpizza.compiler.RegisterChunk;
+import lemon.jpizza.compiler.RegisterOpCode;
+import lemon.jpizza.compiler.values.Value;
+import lemon.jpizza.compiler.values.Var;
+import lemon.jpizza.compiler.values.functions.JClosure;
+import lemon.jpizza.compiler.values.functions.JFunc;
+
+import java.util.HashMap;
+
+// Runs register chunks on top of a VM. The caller has already pushed the call frame and traceback;
+// execute returns the function result, or null after a runtime error has been reported.
+// Anything that is not plain numbers goes through the stack VM's own helpers with the frame's
+// ip set to the matching stack instruction, so errors, tracebacks and overloads behave the same.
+final class RegisterVM {
+    private RegisterVM() {}
+
+    static Value execute(VM vm, JClosure closure, Value[] args) {
+        RegisterChunk chunk = closure.function.registers;
+        Value[] registers = chunk.registers();
+        System.arraycopy(args, 0, registers, 0, args.length);
+        return execute(vm, closure, chunk, registers);
+    }
+
+    static Value execute(VM vm, JClosure closure, RegisterChunk chunk, Value[] registers) {
+        CallFrame frame = vm.frame;
+        int[] code = chunk.code;
+        int[] sites = chunk.sites;
+        int pc = 0;
+
+        while (true) {
+            switch (code[pc]) {
+                case RegisterOpCode.Move:
+                    registers[code[pc + 1]] = registers[code[pc + 2]];
+                    pc += 3;
+                    break;
+
+                case RegisterOpCode.Copy:
+                    registers[code[pc + 1]] = registers[code[pc + 2]].shallowCopy();
+                    pc += 3;
+                    break;
+
+                case RegisterOpCode.GetUpvalue: {
+                    Var var = closure.upvalues[code[pc + 2]];
+                    if (var == null) {
+                        frame.ip = sites[pc];
+                        vm.runtimeError("Scope", "Undefined variable");
+                        return null;
+                    }
+                    registers[code[pc + 1]] = var.val;
+                    pc += 3;
+                    break;
+                }
+
+                case RegisterOpCode.SetUpvalue:
+                    frame.ip = sites[pc];
+                    if (vm.set(closure.upvalues[code[pc + 1]], registers[code[pc + 2]]) == VMResult.ERROR)
+                        return null;
+                    pc += 3;
+                    break;
+
+                case RegisterOpCode.Arith: {
+                    int op = code[pc + 1];
+                    Value a = registers[code[pc + 3]];
+                    Value b = registers[code[pc + 4]];
+                    Value result;
+                    if (a.isInt() && b.isInt()) {
+                        result = VM.intArithmetic(op, a.asInt(), b.asInt());
+                    }
+                    else if (a.isNumber() && b.isNumber()) {
+                        result = Value.of(VM.arithmetic(op, a.asNumber(), b.asNumber()));
+                    }
+                    else {
+                        frame.ip = sites[pc];
+                        vm.push(a);
+                        vm.push(b);
+                        if (vm.binary(op) == VMResult.ERROR) return null;
+                        result = vm.pop();
+                    }
+                    registers[code[pc + 2]] = result;
+                    pc += 5;
+                    break;
+                }
+
+                case RegisterOpCode.Compare: {
+                    int op = code[pc + 1];
+                    Value a = registers[code[pc + 3]];
+                    Value b = registers[code[pc + 4]];
+                    Value result;
+                    if (a.isNumber() && b.isNumber()) {
+                        result = Value.of(VM.numberComparison(op, a, b));
+                    }
+                    else {
+                        frame.ip = sites[pc];
+                        vm.push(a);
+                        vm.push(b);
+                        if (vm.compare(op) == VMResult.ERROR) return null;
+                        result = vm.pop();
+                    }
+                    registers[code[pc + 2]] = result;
+                    pc += 5;
+                    break;
+                }
+
+                case RegisterOpCode.Branch: {
+                    int op = code[pc + 1];
+                    Value a = registers[code[pc + 2]];
+                    Value b = registers[code[pc + 3]];
+                    boolean result;
+                    if (a.isNumber() && b.isNumber()) {
+                        result = VM.numberComparison(op, a, b);
+                    }
+                    else {
+                        frame.ip = sites[pc];
+                        vm.push(a);
+                        vm.push(b);
+                        if (vm.compare(op) == VMResult.ERROR) return null;
+                        result = vm.pop().asBool();
+                    }
+                    pc = result ? pc + 5 : code[pc + 4];
+                    break;
+                }
+
+                case RegisterOpCode.Negate:
+                case RegisterOpCode.Not: {
+                    frame.ip = sites[pc];
+                    vm.push(registers[code[pc + 2]]);
+                    if (vm.unary(code[pc] == RegisterOpCode.Negate ? OpCode.Negate : OpCode.Not) == VMResult.ERROR)
+                        return null;
+                    registers[code[pc + 1]] = vm.pop();
+                    pc += 3;
+                    break;
+                }
+
+                case RegisterOpCode.Jump:
+                    pc = code[pc + 1];
+                    break;
+
+                case RegisterOpCode.JumpIfFalse:
+                    pc = registers[code[pc + 1]].asBool() ? pc + 3 : code[pc + 2];
+                    break;
+
+                case RegisterOpCode.JumpIfTrue:
+                    pc = registers[code[pc + 1]].asBool() ? code[pc + 2] : pc + 3;
+                    break;
+
+                case RegisterOpCode.ForStep: {
+                    int var = code[pc + 1];
+                    Value stepValue = registers[code[pc + 3]];
+                    double step = stepValue.asNumber();
+                    double end = registers[code[pc + 2]].asNumber();
+                    Value current = registers[var];
+
+                    double i;
+                    if (current.isInt() && stepValue.isInt()) {
+                        long next = current.asInt() + stepValue.asInt();
+                        registers[var] = Value.of(next);
+                        i = next;
+                    }
+                    else {
+                        i = current.asNumber() + step;
+                        registers[var] = Value.of(i);
+                    }
+
+                    if ((i >= end && step >= 0) || (i <= end && step < 0))
+                        pc = code[pc + 4];
+                    else
+                        pc += 5;
+                    break;
+                }
+
+                case RegisterOpCode.Call: {
+                    Value callee = registers[code[pc + 2]];
+                    int first = code[pc + 3];
+                    int argc = code[pc + 4];
+                    frame.ip = sites[pc];
+
+                    Value result;
+                    JFunc function = callee.isClosure() ? callee.asClosure().function : null;
+                    if (function != null && function.registers != null && function.arity == argc && frame.memoize == 0) {
+                        // Register to register calls skip the stack entirely
+                        JClosure target = callee.asClosure();
+                        Value[] calleeRegisters = function.registers.registers();
+                        System.arraycopy(registers, first, calleeRegisters, 0, argc);
+
+                        vm.enter(target, frame.bound);
+                        result = execute(vm, target, function.registers, calleeRegisters);
+                        if (result == null) return null;
+                        vm.leave();
+                    }
+                    else {
+                        result = callValue(vm, callee, registers, first, argc);
+                        if (result == null) return null;
+                    }
+
+                    registers[code[pc + 1]] = result;
+                    pc += 5;
+                    break;
+                }
+
+                case RegisterOpCode.Return:
+                    return registers[code[pc + 1]];
+
+                default:
+                    throw new RuntimeException("Unknown register opcode: " + code[pc]);
+            }
+        }
+    }
+
+    // Calls through the stack VM, running the callee's frame to completion if it pushed one
+    static Value callValue(VM vm, Value callee, Value[] registers, int first, int argc) {
+        Value[] args = new Value[argc];
+        System.arraycopy(registers, first, args, 0, argc);
+        return callValue(vm, callee, args);
+    }
+
+    static Value callValue(VM vm, Value callee, Value[] args) {
+        int base = vm.stack.count;
+        int depth = vm.frames.count;
+
+        vm.push(callee);
+        for (Value arg : args)
+            vm.push(arg);
+
+        if (!vm.callValue(callee, args, new HashMap<>())) return null;
+        if (vm.frames.count > depth && vm.run() == VMResult.ERROR) return null;
+
+        Value result = vm.pop();
+        vm.stack.setTop(base);
+        return result;
+    }
+}
@@ -8,6 +8,7 @@ import lemon.jpizza.compiler.Compiler;
 import lemon.jpizza.compiler.headers.HeadCode;
 import lemon.jpizza.compiler.headers.Memo;
 import lemon.jpizza.compiler.types.Type;
+import lemon.jpizza.compiler.values.JIterator;
 import lemon.jpizza.compiler.values.Pattern;
 import lemon.jpizza.compiler.values.Value;
 import lemon.jpizza.compiler.values.Var;
@@ -18,6 +19,7 @@ import lemon.jpizza.compiler.values.functions.*;
 
 import java.io.File;
 import java.lang.reflect.Constructor;
+import java.math.BigDecimal;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Files;
@@ -31,39 +33,29 @@ public class VM {
     public static final int FRAMES_MAX = 256;
     public static final String VERSION = "2.2.0";
 
-    private static class Traceback {
-        String filename;
-        String context;
-        int offset;
-        Chunk chunk;
-
-        public Traceback(String filename, String context, int offset, Chunk chunk) {
-            this.filename = filename;
-            this.context = context;
-            this.offset = offset;
-            this.chunk = chunk;
-        }
-    }
-
     final JStack<Value> stack;
-    int ip;
 
     List<String> exports = null;
 
-    Stack<Traceback> tracebacks;
-    final Map<String, Var> globals;
+    // Where the function of an async worker was called in the VM that started it
+    Chunk originChunk;
+    int originOffset;
+    String originFile;
+    final Globals globals;
 
     final Stack<List<Value>> loopCache;
     List<Value> currentLoop;
 
-    Pair<String, String> lastError;
+    VMError lastError;
 
     Map<String, Namespace> libraries;
+    // Set while libraries belongs to someone else, so defining a native copies it first
+    boolean sharedLibraries = false;
 
     public CallFrame frame;
     public final JStack<CallFrame> frames;
 
-    static Memo memo = new Memo();
+    public static final Memo memo = new Memo();
 
     String mainFunction;
     String mainClass;
@@ -72,26 +64,32 @@ public class VM {
     public boolean failed = false;
     public boolean sim = false;
 
+    // Set on VMs that run calls for other VMs, which keep the result of the call they were given
+    boolean worker = false;
+    // While a callback runs, the frames below it belong to the native that made it: errors raised
+    // in the callback are not caught there, but returned to the native. -1 outside of callbacks.
+    int callbackFloor = -1;
+
+    // Calls made from compiled code that are running on the Java stack
+    int nestedCalls = 0;
+
     public NativeResult res;
 
     public VM(JFunc function) {
-        this(function, new HashMap<>());
+        this(function, new Globals());
     }
 
-    public VM(JFunc function, Map<String, Var> globals) {
+    public VM(JFunc function, Globals globals) {
         this(new JClosure(function), globals);
     }
 
-    public VM(JClosure closure, Map<String, Var> globals) {
+    public VM(JClosure closure, Globals globals) {
         Shell.logger.debug("VM create\n");
 
-        this.ip = 0;
-
         this.stack = new JStack<>(MAX_STACK_SIZE);
         push(new Value(closure));
 
         this.globals = globals;
-        this.tracebacks = new Stack<>();
 
         this.loopCache = new Stack<>();
         this.currentLoop = null;
@@ -104,11 +102,97 @@ public class VM {
         setup();
     }
 
+    // A VM with nothing to run yet, using the given globals and libraries as they are.
+    // The native registry is set up on one, and async calls run on them.
+    VM(Globals globals, Map<String, Namespace> libraries) {
+        this.stack = new JStack<>(MAX_STACK_SIZE);
+        this.globals = globals;
+        this.libraries = libraries;
+
+        this.loopCache = new Stack<>();
+        this.frames = new JStack<>(FRAMES_MAX);
+    }
+
+    // A VM for running calls from other threads, sharing this VM's globals and libraries
+    VM worker() {
+        VM worker = new VM(globals, libraries);
+        worker.sharedLibraries = true;
+        worker.worker = true;
+        return worker;
+    }
+
+    // Runs one call on this worker, left ready for the next one afterwards.
+    // The slots are the callee and its arguments as the call would find them on the stack.
+    NativeResult runCall(JClosure closure, Value binding, Value[] slots, Chunk originChunk, int originOffset, String filename) {
+        resetStack();
+        loopCache.clear();
+        currentLoop = null;
+        nestedCalls = 0;
+        failed = false;
+        lastError = null;
+        res = null;
+
+        this.originChunk = originChunk;
+        this.originOffset = originOffset;
+        this.originFile = filename;
+
+        for (Value slot : slots)
+            push(slot);
+
+        closure.function.calls++;
+        frame = new CallFrame(closure, 0, 0, "void", binding);
+        frame.catchError = closure.function.catcher;
+        frames.push(frame);
+
+        run();
+        if (res != null) return res;
+        if (lastError != null) return NativeResult.Err(lastError.name, lastError.reason);
+        return NativeResult.Ok();
+    }
+
+    // Calls the closure for a native this VM is running, on this VM: its frame goes on top of the
+    // native's caller and runs until it returns. Errors the closure does not catch come back as the
+    // result, for the native to pass on.
+    public NativeResult callback(JClosure closure, Value... args) {
+        int top = stack.count;
+        int depth = frames.count;
+        CallFrame caller = frame;
+        int floor = callbackFloor;
+        NativeResult outer = res;
+
+        callbackFloor = depth;
+        res = null;
+        push(new Value(closure));
+        for (Value arg : args)
+            push(arg);
+
+        NativeResult result;
+        if (call(closure, args, Collections.emptyMap()) && (frames.count == depth || run() != VMResult.ERROR))
+            result = NativeResult.Ok(pop());
+        else if (res != null)
+            result = res;
+        else
+            result = NativeResult.Err(lastError.name, lastError.reason);
+
+        stack.setTop(top);
+        frames.setTop(depth);
+        frame = caller;
+        callbackFloor = floor;
+        res = outer;
+        return result;
+    }
+
+    // Calls the closure on an idle worker sharing this VM's globals and libraries, for natives calling
+    // back from threads of their own, which cannot enter this VM
+    public NativeResult callOnWorker(JClosure closure, Value... args) {
+        return AsyncPool.call(this, closure, args);
+    }
+
     public static NativeResult Run(JClosure function, Value[] args) {
         if (function.function.totarity != args.length) {
             return NativeResult.Err("Argument Count", "Expected " + function.function.totarity + " arguments, got " + args.length);
         }
-        VM vm = new VM(function, new HashMap<>());
+        VM vm = new VM(function, new Globals());
         vm.sim = true;
         for (Value arg : args)
             vm.push(arg);
@@ -117,8 +201,35 @@ public class VM {
     }
 
     void setup() {
-        libraries = new HashMap<>();
-        LibraryManager.Setup(this);
+        NativeRegistry natives = NativeRegistry.get();
+        globals.inherit(natives.globals);
+        libraries = natives.libraries;
+        sharedLibraries = true;
+    }
+
+    // The library being imported, loaded into the registry the first time any VM imports it
+    Namespace library(String name) {
+        Namespace library = libraries.get(name);
+        if (library == null) {
+            library = NativeRegistry.get().library(name);
+            if (library != null && !sharedLibraries) {
+                library = library.copy();
+                libraries.put(name, library);
+            }
+        }
+        return library;
+    }
+
+    // The library natives are being defined in, made this VM's own first
+    private Namespace ownLibrary(String name) {
+        if (sharedLibraries) {
+            Map<String, Namespace> own = new HashMap<>();
+            for (Map.Entry<String, Namespace> entry : libraries.entrySet())
+                own.put(entry.getKey(), entry.getValue().copy());
+            libraries = own;
+            sharedLibraries = false;
+        }
+        return libraries.computeIfAbsent(name, k -> new Namespace(k, new HashMap<>()));
     }
 
     void defineNative(String name, JNative.Method method, int argc) {
@@ -129,17 +240,13 @@ public class VM {
     }
 
     public void defineNative(String library, String name, JNative.Method method, int argc) {
-        if (!libraries.containsKey(library))
-            libraries.put(library, new Namespace(library, new HashMap<>()));
-        libraries.get(library).addField(name, new Value(
+        ownLibrary(library).addField(name, new Value(
                 new JNative(name, method, argc)
         ));
     }
 
     public void defineVar(String lib, String name, Value val) {
-        if (!libraries.containsKey(lib))
-            libraries.put(lib, new Namespace(lib, new HashMap<>()));
-        libraries.get(lib).addField(name, val);
+        ownLibrary(lib).addField(name, val);
     }
 
     void defineNative(String name, JNative.Method method, Type[] types) {
@@ -150,25 +257,37 @@ public class VM {
     }
 
     public void defineNative(String library, String name, JNative.Method method, Type[] types) {
-        if (!libraries.containsKey(library))
-            libraries.put(library, new Namespace(library, new HashMap<>()));
-        libraries.get(library).addField(name, new Value(
+        ownLibrary(library).addField(name, new Value(
+                new JNative(name, method, types.length, types)
+        ));
+    }
+
+    public void defineNative(String library, String name, JNative.VMMethod method, Type[] types) {
+        ownLibrary(library).addField(name, new Value(
                 new JNative(name, method, types.length, types)
         ));
     }
 
     public VM trace(String name) {
-        tracebacks.push(new Traceback(name, name, 0, frame.closure.function.chunk));
+        frame.closure.function.chunk.filename = name;
         return this;
     }
 
-    private void popTraceback() {
-        tracebacks.pop();
+    // The file every traceback line of this VM names, null if it was never traced
+    String filename() {
+        if (originChunk != null) return originFile;
+        return frames.count > 0 ? frames.get(0).closure.function.chunk.filename : null;
+    }
+
+    // What the innermost traceback line is "in", which anonymous functions defined there are named after
+    String context() {
+        if (frames.count > 1 || originChunk != null)
+            return frame.closure.function.name;
+        return frame.closure.function.chunk.filename;
     }
 
     void moveIP(int offset) {
         frame.ip += offset;
-        ip += offset;
     }
 
     public void push(Value value) {
@@ -180,77 +299,30 @@ public class VM {
     }
 
     protected void runtimeError(String message, String reason) {
-        runtimeError(message, reason, currentPos());
-    }
-
-    Stack<Traceback> copyTracebacks() {
-        Stack<Traceback> copy = new Stack<>();
-        for (Traceback traceback : tracebacks)
-            copy.push(traceback);
-        return copy;
-    }
-
-    protected void runtimeError(String message, String reason, FlatPosition position) {
-
-        lastError = new Pair<>(message, reason);
+        lastError = new VMError(this, message, reason);
         if (sim) {
             res = NativeResult.Err(message, reason);
             return;
         }
 
-        int idx = position.index;
-        int len = position.len;
-
-        String output = "";
-
-        Stack<Traceback> copy = copyTracebacks();
-
-        if (!tracebacks.empty()) {
-            String arrow = Shell.fileEncoding.equals("UTF-8") ? "╰──►" : "--->";
-
-            // Generate traceback
-            Traceback last = tracebacks.peek();
-            while (last == null) {
-                tracebacks.pop();
-                last = tracebacks.peek();
-            }
-            while (!tracebacks.empty()) {
-                Traceback top = tracebacks.pop();
-                if (top == null) continue;
-                int line = Constants.indexToLine(top.chunk.source(), top.chunk.getPosition(top.offset).index);
-                output = String.format("  %s  File %s, line %s, in %s\n%s", arrow, top.filename, line + 1, top.context, output);
-            }
-            output = "Traceback (most recent call last):\n" + output;
-
-            // Generate error message
-            int line = Constants.indexToLine(frame.closure.function.chunk.source(), idx);
-            output += String.format("\n%s Error (Runtime): %s\nFile %s, line %s\n%s\n",
-                                    message, reason,
-                                    last.filename, line + 1,
-                                    Constants.highlightFlat(frame.closure.function.chunk.source(), idx, len));
-        }
-        else {
-            output = String.format("%s Error (Runtime): %s\n", message, reason);
-        }
-
-        tracebacks = copy;
-
         if (safe) {
-            Shell.logger.warn(output);
+            Shell.logger.warn(lastError.render());
         }
         else {
-            while (frames.count > 0) {
+            int floor = Math.max(callbackFloor, 0);
+            while (frames.count > floor) {
                 CallFrame frame = frames.pop();
-                Traceback traceback = copy.pop();
                 if (frame.catchError) {
                     frames.push(frame);
-                    copy.push(traceback);
-                    tracebacks = copy;
                     this.frame = frame;
                     return;
                 }
             }
-            Shell.logger.fail(output);
+            if (callbackFloor >= 0) {
+                res = NativeResult.Err(message, reason);
+                return;
+            }
+            Shell.logger.fail(lastError.render());
             resetStack();
         }
         failed = true;
@@ -265,12 +337,15 @@ public class VM {
         return readConstant().asString();
     }
 
+    int readGlobal() {
+        return frame.closure.function.chunk.globalSlots[readByte()];
+    }
+
     Value readConstant() {
         return frame.closure.function.chunk.constants().valuesArray[readByte()];
     }
 
     int readByte() {
-        ip++;
         return frame.closure.function.chunk.codeArray[frame.ip++];
     }
 
@@ -282,10 +357,6 @@ public class VM {
         return !value.asBool() ? 1 : 0;
     }
 
-    FlatPosition currentPos() {
-        return frame.closure.function.chunk.getPosition(frame.ip - 1);
-    }
-
     VMResult runBin(String name, Value arg, Instance instance) {
         return runBin(name, new Value[]{arg}, instance);
     }
@@ -306,19 +377,29 @@ public class VM {
     }
 
     boolean canOverride(Value value, String name) {
-        return value.isInstance && value.asInstance().binMethods.containsKey(name);
+        return value.isInstance() && value.asInstance().binMethods.containsKey(name);
     }
 
     VMResult binary(int op) {
         Value b = pop();
         Value a = pop();
 
+        // Plain numbers never need the overload or collection checks below
+        if (a.isInt() && b.isInt()) {
+            push(intArithmetic(op, a.asInt(), b.asInt()));
+            return VMResult.OK;
+        }
+        else if (a.isNumber() && b.isNumber()) {
+            push(Value.of(arithmetic(op, a.asNumber(), b.asNumber())));
+            return VMResult.OK;
+        }
+
         switch (op) {
             case OpCode.Add:
 
-                if (a.isString)
+                if (a.isString())
                     push(new Value(a.asString() + b.asString()));
-                else if (a.isList) {
+                else if (a.isList()) {
                     List<Value> list = new ArrayList<>(a.asList());
                     list.addAll(b.asList());
                     push(new Value(list));
@@ -326,71 +407,287 @@ public class VM {
                 else if (canOverride(a, "add"))
                     return runBin("add", b, a.asInstance());
                 else
-                    push(new Value(a.asNumber() + b.asNumber()));
+                    push(Value.of(a.asNumber() + b.asNumber()));
                 break;
             case OpCode.Subtract:
                 if (canOverride(a, "sub"))
                     return runBin("sub", b, a.asInstance());
-                push(new Value(a.asNumber() - b.asNumber()));
+                push(Value.of(a.asNumber() - b.asNumber()));
                 break;
             case OpCode.Multiply:
                 if (canOverride(a, "mul"))
                     return runBin("mul", b, a.asInstance());
-                if (a.isString) {
-                    push(new Value(repeat(a.asString(), b.asNumber().intValue())));
+                if (a.isString()) {
+                    push(new Value(repeat(a.asString(), (int) b.asNumber())));
                 }
-                else if (a.isList) {
+                else if (a.isList()) {
                     List<Value> repeated = new ArrayList<>();
                     List<Value> list = a.asList();
-                    for (int i = 0; i < b.asNumber().intValue(); i++)
+                    for (int i = 0; i < (int) b.asNumber(); i++)
                         repeated.addAll(list);
                     push(new Value(repeated));
                 }
                 else {
-                    push(new Value(a.asNumber() * b.asNumber()));
+                    push(Value.of(a.asNumber() * b.asNumber()));
                 }
                 break;
             case OpCode.Divide:
                 if (canOverride(a, "div"))
                     return runBin("div", b, a.asInstance());
-                else if (a.isList) {
+                else if (a.isList()) {
                     List<Value> list = new ArrayList<>(a.asList());
                     list.remove(b);
                     push(new Value(list));
                 }
                 else
-                    push(new Value(a.asNumber() / b.asNumber()));
+                    push(Value.of(a.asNumber() / b.asNumber()));
                 break;
             case OpCode.Modulo:
                 if (canOverride(a, "mod"))
                     return runBin("mod", b, a.asInstance());
-                push(new Value(a.asNumber() % b.asNumber()));
+                push(Value.of(a.asNumber() % b.asNumber()));
                 break;
             case OpCode.Power:
                 if (canOverride(a, "fastpow"))
                     return runBin("fastpow", b, a.asInstance());
-                push(new Value(Math.pow(a.asNumber(), b.asNumber())));
+                push(Value.of(Math.pow(a.asNumber(), b.asNumber())));
                 break;
         }
 
         return VMResult.OK;
     }
 
+    // Ints stay ints as long as the result is exact, otherwise we fall back to floats
+    static Value intArithmetic(int op, long a, long b) {
+        try {
+            switch (op) {
+                case OpCode.Add: return Value.of(Math.addExact(a, b));
+                case OpCode.Subtract: return Value.of(Math.subtractExact(a, b));
+                case OpCode.Multiply: return Value.of(Math.multiplyExact(a, b));
+                case OpCode.Divide:
+                    if (b != 0 && a % b == 0)
+                        return Value.of(b == -1 ? Math.negateExact(a) : a / b);
+                    break;
+                case OpCode.Modulo:
+                    if (b != 0)
+                        return Value.of(a % b);
+                    break;
+                case OpCode.Power:
+                    if (b >= 0)
+                        return Value.of(intPower(a, b));
+                    break;
+            }
+        } catch (ArithmeticException ignored) {}
+        return Value.of(arithmetic(op, a, b));
+    }
+
+    static long intPower(long base, long exponent) {
+        long result = 1;
+        while (exponent > 0) {
+            if ((exponent & 1) == 1)
+                result = Math.multiplyExact(result, base);
+            exponent >>= 1;
+            if (exponent > 0)
+                base = Math.multiplyExact(base, base);
+        }
+        return result;
+    }
+
+    static double arithmetic(int op, double a, double b) {
+        switch (op) {
+            case OpCode.Add: return a + b;
+            case OpCode.Subtract: return a - b;
+            case OpCode.Multiply: return a * b;
+            case OpCode.Divide: return a / b;
+            case OpCode.Modulo: return a % b;
+            case OpCode.Power: return Math.pow(a, b);
+            default: throw new IllegalStateException("Unexpected value: " + op);
+        }
+    }
+
+    // The specialized opcodes only check operand kinds; anything unexpected goes through the generic instruction
+    VMResult numeric(int op) {
+        Value b = peek(0);
+        Value a = peek(1);
+        int generic = genericOp(op);
+        if (a.isInt() && b.isInt()) {
+            stack.setTop(stack.count - 2);
+            push(intArithmetic(generic, a.asInt(), b.asInt()));
+            return VMResult.OK;
+        }
+        else if (a.isNumber() && b.isNumber()) {
+            stack.setTop(stack.count - 2);
+            push(Value.of(arithmetic(generic, a.asNumber(), b.asNumber())));
+            return VMResult.OK;
+        }
+        return binary(generic);
+    }
+
+    VMResult compareNumbers(int op) {
+        Value b = peek(0);
+        Value a = peek(1);
+        if (!a.isNumber() || !b.isNumber())
+            return comparison(genericOp(op));
+
+        stack.setTop(stack.count - 2);
+        push(Value.of(numberComparison(op, a, b)));
+        return VMResult.OK;
+    }
+
+    static boolean numberComparison(int op, Value a, Value b) {
+        if (a.isInt() && b.isInt()) {
+            long x = a.asInt();
+            long y = b.asInt();
+            switch (op) {
+                case OpCode.Equal: case OpCode.EqualNum: return x == y;
+                case OpCode.LessThan: case OpCode.LessThanNum: return x < y;
+                case OpCode.GreaterThan: case OpCode.GreaterThanNum: return x > y;
+                case OpCode.NotEqual: return x != y;
+                case OpCode.GreaterEqual: return x >= y;
+                case OpCode.LessEqual: return x <= y;
+                default: throw new IllegalStateException("Unexpected value: " + op);
+            }
+        }
+
+        // Negated forms stay negations so NaN behaves like the unfused code
+        double x = a.asNumber();
+        double y = b.asNumber();
+        switch (op) {
+            case OpCode.Equal: case OpCode.EqualNum: return x == y;
+            case OpCode.LessThan: case OpCode.LessThanNum: return x < y;
+            case OpCode.GreaterThan: case OpCode.GreaterThanNum: return x > y;
+            case OpCode.NotEqual: return !(x == y);
+            case OpCode.GreaterEqual: return !(x < y);
+            case OpCode.LessEqual: return !(x > y);
+            default: throw new IllegalStateException("Unexpected value: " + op);
+        }
+    }
+
+    // Runs any comparison opcode, fused or not, leaving the result on the stack
+    VMResult compare(int op) {
+        switch (op) {
+            case OpCode.EqualNum:
+            case OpCode.LessThanNum:
+            case OpCode.GreaterThanNum:
+                return compareNumbers(op);
+
+            case OpCode.NotEqual:
+            case OpCode.GreaterEqual:
+            case OpCode.LessEqual: {
+                Value b = peek(0);
+                Value a = peek(1);
+                if (a.isNumber() && b.isNumber()) {
+                    stack.setTop(stack.count - 2);
+                    push(Value.of(numberComparison(op, a, b)));
+                    return VMResult.OK;
+                }
+
+                int base = op == OpCode.NotEqual ? OpCode.Equal : op == OpCode.GreaterEqual ? OpCode.LessThan : OpCode.GreaterThan;
+                VMResult res = comparison(base);
+                if (res == VMResult.OK)
+                    push(Value.of(!pop().asBool()));
+                return res;
+            }
+
+            default:
+                return comparison(op);
+        }
+    }
+
+    VMResult compareJump() {
+        int op = readByte();
+        int offset = readByte();
+
+        Value b = peek(0);
+        Value a = peek(1);
+        boolean result;
+        if (a.isNumber() && b.isNumber()) {
+            stack.setTop(stack.count - 2);
+            result = numberComparison(op, a, b);
+        }
+        else {
+            VMResult res = compare(op);
+            if (res != VMResult.OK) return res;
+            result = pop().asBool();
+        }
+
+        if (!result) moveIP(offset);
+        return VMResult.OK;
+    }
+
+    VMResult localConstArith() {
+        int slot = readByte();
+        Value b = readConstant();
+        int op = genericOp(readByte());
+
+        if (stack.count - slot <= 0) {
+            runtimeError("Scope", "Undefined variable");
+            return VMResult.ERROR;
+        }
+
+        Value a = getLocal(slot);
+        if (a.isInt() && b.isInt()) {
+            push(intArithmetic(op, a.asInt(), b.asInt()));
+            return VMResult.OK;
+        }
+
+        push(a);
+        push(b);
+        return binary(op);
+    }
+
+    VMResult concat() {
+        Value b = peek(0);
+        Value a = peek(1);
+        if (!a.isString() || !b.isString())
+            return binary(OpCode.Add);
+
+        stack.setTop(stack.count - 2);
+        push(new Value(a.asString() + b.asString()));
+        return VMResult.OK;
+    }
+
+    static int genericOp(int op) {
+        switch (op) {
+            case OpCode.AddNum: return OpCode.Add;
+            case OpCode.SubtractNum: return OpCode.Subtract;
+            case OpCode.MultiplyNum: return OpCode.Multiply;
+            case OpCode.DivideNum: return OpCode.Divide;
+            case OpCode.ModuloNum: return OpCode.Modulo;
+            case OpCode.EqualNum: return OpCode.Equal;
+            case OpCode.LessThanNum: return OpCode.LessThan;
+            case OpCode.GreaterThanNum: return OpCode.GreaterThan;
+            default: return op;
+        }
+    }
+
     VMResult unary(int op) {
         Value a = pop();
 
+        if (a.isInt() && op != OpCode.Not) {
+            long x = a.asInt();
+            try {
+                switch (op) {
+                    case OpCode.Increment: push(Value.of(Math.incrementExact(x))); break;
+                    case OpCode.Decrement: push(Value.of(Math.decrementExact(x))); break;
+                    case OpCode.Negate: push(Value.of(Math.negateExact(x))); break;
+                }
+                return VMResult.OK;
+            } catch (ArithmeticException ignored) {}
+        }
+
         switch (op) {
             case OpCode.Increment:
-                push(new Value(a.asNumber() + 1));
+                push(Value.of(a.asNumber() + 1));
                 break;
             case OpCode.Decrement:
-                push(new Value(a.asNumber() - 1));
+                push(Value.of(a.asNumber() - 1));
                 break;
             case OpCode.Negate:
-                push(new Value(-a.asNumber()));
+                push(Value.of(-a.asNumber()));
                 break;
             case OpCode.Not:
-                push(new Value(!a.asBool()));
+                push(Value.of(!a.asBool()));
                 break;
         }
 
@@ -400,7 +697,7 @@ public class VM {
     VMResult globalOps(int op) {
         switch (op) {
             case OpCode.DefineGlobal: {
-                String name = readString();
+                int slot = readGlobal();
                 Value value = peek(0);
 
                 //noinspection DuplicatedCode
@@ -414,15 +711,15 @@ public class VM {
                     max = readByte();
                 }
 
-                globals.put(name, new Var(value, constant, min, max));
+                globals.set(slot, new Var(value, constant, min, max));
                 return VMResult.OK;
             }
             case OpCode.GetGlobal: {
-                String name = readString();
-                Var value = globals.get(name);
+                int slot = readGlobal();
+                Var value = globals.get(slot);
 
                 if (value == null) {
-                    VMResult res = getBound(name, true);
+                    VMResult res = getBound(Globals.name(slot), true);
                     if (res == VMResult.OK)
                         return VMResult.OK;
                     runtimeError("Scope", "Undefined variable");
@@ -433,14 +730,16 @@ public class VM {
                 return VMResult.OK;
             }
             case OpCode.SetGlobal: {
-                String name = readString();
+                int slot = readGlobal();
                 Value value = peek(0);
 
-                VMResult res = setBound(name, value, true);
-                if (res == VMResult.OK)
-                    return VMResult.OK;
+                if (frame.bound != null) {
+                    VMResult res = setBound(Globals.name(slot), value, true);
+                    if (res == VMResult.OK)
+                        return VMResult.OK;
+                }
 
-                Var var = globals.get(name);
+                Var var = globals.get(slot);
                 if (var != null) {
                     return set(var, value);
                 }
@@ -455,7 +754,7 @@ public class VM {
 
     VMResult getBound(String name, boolean suppress) {
         if (frame.bound != null) {
-            if (frame.bound.isInstance) {
+            if (frame.bound.isInstance()) {
                 Instance instance = frame.bound.asInstance();
                 Value field = instance.getField(name, true);
                 if (field != null) {
@@ -468,7 +767,7 @@ public class VM {
                     return VMResult.ERROR;
                 }
             }
-            else if (frame.bound.isClass) {
+            else if (frame.bound.isClass()) {
                 JClass clazz = frame.bound.asClass();
                 Value field = clazz.getField(name, true);
                 if (field != null) {
@@ -481,7 +780,7 @@ public class VM {
                     return VMResult.ERROR;
                 }
             }
-            else if (frame.bound.isNamespace) {
+            else if (frame.bound.isNamespace()) {
                 Namespace ns = frame.bound.asNamespace();
                 Value field = ns.getField(name, true);
                 if (field != null) {
@@ -505,11 +804,11 @@ public class VM {
 
     VMResult setBound(String name, Value value, boolean suppress) {
         if (frame.bound != null) {
-            if (frame.bound.isInstance) {
+            if (frame.bound.isInstance()) {
                 Instance instance = frame.bound.asInstance();
                 return boundNeutral(suppress, instance.setField(name, value));
             }
-            else if (frame.bound.isClass) {
+            else if (frame.bound.isClass()) {
                 JClass clazz = frame.bound.asClass();
                 return boundNeutral(suppress, clazz.setField(name, value));
             }
@@ -534,7 +833,23 @@ public class VM {
             case OpCode.GetAttr: return getBound(readString(), false);
             case OpCode.SetAttr:
                 setBound(readString(), pop(), false);
-                push(new Value());
+                push(Value.NULL);
+                return VMResult.OK;
+            default: return VMResult.OK;
+        }
+    }
+
+    // Attribute accesses the compiler resolved to a slot of the enclosing class. run() takes the
+    // slot when the bound instance's shape has the attribute there; anything else (a static
+    // method's class, a subclass that moved it) ends up here and goes the usual way by name.
+    VMResult slotOps(int op) {
+        readByte();
+        String name = readString();
+        switch (op) {
+            case OpCode.GetSlot: return getBound(name, false);
+            case OpCode.SetSlot:
+                setBound(name, pop(), false);
+                push(Value.NULL);
                 return VMResult.OK;
             default: return VMResult.OK;
         }
@@ -544,9 +859,30 @@ public class VM {
         Value b = pop();
         Value a = pop();
 
+        if (a.isInt() && b.isInt()) {
+            long x = a.asInt();
+            long y = b.asInt();
+            switch (op) {
+                case OpCode.Equal: push(Value.of(x == y)); break;
+                case OpCode.GreaterThan: push(Value.of(x > y)); break;
+                case OpCode.LessThan: push(Value.of(x < y)); break;
+            }
+            return VMResult.OK;
+        }
+        else if (a.isNumber() && b.isNumber()) {
+            double x = a.asNumber();
+            double y = b.asNumber();
+            switch (op) {
+                case OpCode.Equal: push(Value.of(x == y)); break;
+                case OpCode.GreaterThan: push(Value.of(x > y)); break;
+                case OpCode.LessThan: push(Value.of(x < y)); break;
+            }
+            return VMResult.OK;
+        }
+
         switch (op) {
             case OpCode.Equal:
-                if (b.isPattern) {
+                if (b.isPattern()) {
                     return matchPattern(a, b.asPattern());
                 }
 
@@ -556,21 +892,21 @@ public class VM {
                 else if (canOverride(b, "eq")) {
                     return runBin("eq", a, b.asInstance());
                 }
-                push(new Value(a.equals(b)));
+                push(Value.of(a.equals(b)));
                 break;
 
             case OpCode.GreaterThan:
                 if (canOverride(b, "lte")) {
                     return runBin("lte", a, b.asInstance());
                 }
-                push(new Value(a.asNumber() > b.asNumber()));
+                push(Value.of(a.asNumber() > b.asNumber()));
                 break;
 
             case OpCode.LessThan:
                 if (canOverride(a, "lt")) {
                     return runBin("lt", b, a.asInstance());
                 }
-                push(new Value(a.asNumber() < b.asNumber()));
+                push(Value.of(a.asNumber() < b.asNumber()));
                 break;
         }
 
@@ -578,25 +914,25 @@ public class VM {
     }
 
     private VMResult matchPattern(Value a, Pattern asPattern) {
-        if (!a.isInstance) {
-            push(new Value(false));
+        if (!a.isInstance()) {
+            push(Value.FALSE);
             return VMResult.OK;
         }
 
         Instance instance = a.asInstance();
         if (!instance.instanceOf(asPattern.value)) {
-            push(new Value(false));
+            push(Value.FALSE);
             return VMResult.OK;
         }
 
         for (Map.Entry<String, Value> entry : asPattern.cases.entrySet()) {
             Value val = instance.getField(entry.getKey(), false);
             if (val == null) {
-                push(new Value(false));
+                push(Value.FALSE);
                 return VMResult.OK;
             }
             else if (!val.equals(entry.getValue())) {
-                push(new Value(false));
+                push(Value.FALSE);
                 return VMResult.OK;
             }
         }
@@ -608,10 +944,10 @@ public class VM {
                 return VMResult.ERROR;
             }
             else {
-                push(new Value(new Var(val, true)));
+                push(val);
             }
         }
-        push(new Value(true));
+        push(Value.TRUE);
         return VMResult.OK;
     }
 
@@ -619,15 +955,48 @@ public class VM {
         return stack.get(index + frame.slots);
     }
 
+    // Locals hold their value directly, or the Var they were hoisted into once a closure captured them
+    Value getLocal(int slot) {
+        Value value = get(slot);
+        return value.isVar() ? value.asVar().val : value;
+    }
+
+    void setLocal(int slot, Value val) {
+        int index = slot + frame.slots;
+        Value value = stack.get(index);
+        if (value.isVar())
+            value.asVar().val(val);
+        else
+            stack.set(index, val);
+    }
+
     VMResult set(Var var, Value val) {
-        if (var.constant) {
+        VMResult res = check(var.constant, var.min, var.max, val);
+        if (res == VMResult.OK)
+            var.val(val);
+        return res;
+    }
+
+    VMResult checkAssign() {
+        boolean constant = readByte() == 1;
+        int min = Integer.MIN_VALUE;
+        int max = Integer.MAX_VALUE;
+        if (readByte() == 1) {
+            min = readByte();
+            max = readByte();
+        }
+        return check(constant, min, max, peek(0));
+    }
+
+    VMResult check(boolean constant, int min, int max, Value val) {
+        if (constant) {
             runtimeError("Scope", "Cannot reassign constant");
             return VMResult.ERROR;
         }
-        if (var.min != Integer.MIN_VALUE || var.max != Integer.MAX_VALUE) {
-            if (val.isNumber) {
+        if (min != Integer.MIN_VALUE || max != Integer.MAX_VALUE) {
+            if (val.isNumber()) {
                 double d = val.asNumber();
-                if (d < var.min || d > var.max) {
+                if (d < min || d > max) {
                     runtimeError("Range", "Value out of range");
                     return VMResult.ERROR;
                 }
@@ -637,7 +1006,6 @@ public class VM {
                 return VMResult.ERROR;
             }
         }
-        var.val(val);
         return VMResult.OK;
     }
 
@@ -650,36 +1018,20 @@ public class VM {
                     return VMResult.ERROR;
                 }
 
-                Value val = get(slot);
-                push(val.asVar().val);
+                push(getLocal(slot));
                 return VMResult.OK;
             }
-            case OpCode.SetLocal: {
-                int slot = readByte();
-
-                Value var = get(slot);
-                Value val = peek(0);
-                return set(var.asVar(), val);
-            }
+            case OpCode.SetLocal:
+                setLocal(readByte(), peek(0));
+                return VMResult.OK;
             case OpCode.DefineLocal: {
-                Value val = pop();
-                //noinspection DuplicatedCode
-                boolean constant = readByte() == 1;
-
-                boolean usesRange = readByte() == 1;
-                int min = Integer.MIN_VALUE;
-                int max = Integer.MAX_VALUE;
-                if (usesRange) {
-                    min = readByte();
-                    max = readByte();
-                }
-
-                Var var = new Var(val, constant, min, max);
-                push(new Value(var));
-                push(val);
-
+                // The value stays where it is as the new slot, and is pushed again as the result
+                Value val = peek(0);
+                push(val.isVar() ? val.asVar().val : val);
                 return VMResult.OK;
             }
+            case OpCode.CheckAssign:
+                return checkAssign();
 
             default: return VMResult.OK;
         }
@@ -736,23 +1088,6 @@ public class VM {
         return VMResult.OK;
     }
 
-    VMResult forLoop() {
-        double step = pop().asNumber();
-        double end = pop().asNumber();
-
-        int slot = readByte();
-        int jump = readByte();
-
-        get(slot).asVar().val(
-                new Value(get(slot).asVar().val.asNumber() + step)
-        );
-
-        double i = get(slot).asVar().val.asNumber();
-        moveIP(jump * (((i >= end && step >= 0) || (i <= end && step < 0)) ? 1 : 0));
-
-        return VMResult.OK;
-    }
-
     VMResult upvalueOps(int op) {
         switch (op) {
             case OpCode.GetUpvalue: {
@@ -780,7 +1115,7 @@ public class VM {
                 return VMResult.OK;
 
             case OpCode.FromBytes:
-                if (!peek(0).isBytes) {
+                if (!peek(0).isBytes()) {
                     runtimeError("Type", "Expected bytes");
                     return VMResult.ERROR;
                 }
@@ -800,22 +1135,32 @@ public class VM {
 
     VMResult access() {
         String name = readString();
-        Value val = pop();
+        return access(pop(), name);
+    }
 
+    // this::name inside a method, when run() could not take the attribute straight from its slot
+    // (an access operator, a private attribute or method, another shape)
+    VMResult accessSlot() {
+        readByte();
+        String name = readString();
+        return access(pop(), name);
+    }
+
+    VMResult access(Value val, String name) {
         if (canOverride(val,  "access")) {
             return runBin("access", new Value(name), val.asInstance());
         }
 
-        if (val.isInstance) {
+        if (val.isInstance()) {
             return access(val, val.asInstance(), name);
         }
-        else if (val.isClass) {
+        else if (val.isClass()) {
             return access(val, val.asClass(), name);
         }
-        else if (val.isNamespace) {
+        else if (val.isNamespace()) {
             return access(val, val.asNamespace(), name);
         }
-        else if (val.isEnumParent) {
+        else if (val.isEnumParent()) {
             return access(val.asEnum(), name);
         }
         return VMResult.ERROR;
@@ -845,9 +1190,9 @@ public class VM {
                 Value index = pop();
                 Value collection = pop();
 
-                if (collection.isList || collection.isString) {
+                if (collection.isList() || collection.isString()) {
                     List<Value> list = collection.asList();
-                    int idx = index.asNumber().intValue();
+                    int idx = (int) index.asNumber();
                     if (idx >= list.size()) {
                         runtimeError("Index", "Index out of bounds");
                         return VMResult.ERROR;
@@ -864,7 +1209,7 @@ public class VM {
                 else if (canOverride(collection, op == OpCode.Get ? "get" : "bracket")) {
                     return runBin(op == OpCode.Get ? "get" : "bracket", index, collection.asInstance());
                 }
-                else if (collection.isMap) {
+                else if (collection.isMap()) {
                     push(collection.get(index));
                 }
                 return VMResult.OK;
@@ -879,70 +1224,57 @@ public class VM {
     }
 
     public static double bitOp(double left, double right, BitCall call) {
-        long power = 0;
-        while (left % 1 != 0 || right % 1 != 0) {
-            left *= 10;
-            right *= 10;
-            power++;
+        // Fractional operands are scaled to whole numbers first, using the shortest
+        // decimal form of each side so the scale is found without a loop
+        int power = Math.max(0, Math.max(decimalPlaces(left), decimalPlaces(right)));
+        if (power == 0) {
+            return call.call((long) left, (long) right);
         }
-        return call.call((long) left, (long) right) / Math.pow(10, power);
+        double scale = Math.pow(10, power);
+        return call.call(Math.round(left * scale), Math.round(right * scale)) / scale;
+    }
+
+    static int decimalPlaces(double value) {
+        if (value % 1 == 0 || Double.isNaN(value) || Double.isInfinite(value))
+            return 0;
+        return BigDecimal.valueOf(value).stripTrailingZeros().scale();
+    }
+
+    void bitOp(BitCall call) {
+        Value b = pop();
+        Value a = pop();
+        if (a.isInt() && b.isInt())
+            push(Value.of(call.call(a.asInt(), b.asInt())));
+        else
+            push(Value.of(bitOp(a.asNumber(), b.asNumber(), call)));
     }
 
     VMResult bitOps(int instruction) {
         switch (instruction) {
-            case OpCode.BitAnd: {
-                Value b = pop();
-                Value a = pop();
-                push(new Value(
-                        bitOp(a.asNumber(), b.asNumber(), (left, right) -> left & right)
-                ));
+            case OpCode.BitAnd:
+                bitOp((left, right) -> left & right);
                 break;
-            }
-            case OpCode.BitOr: {
-                Value b = pop();
-                Value a = pop();
-                push(new Value(
-                        bitOp(a.asNumber(), b.asNumber(), (left, right) -> left | right)
-                ));
+            case OpCode.BitOr:
+                bitOp((left, right) -> left | right);
                 break;
-            }
-            case OpCode.BitXor: {
-                Value b = pop();
-                Value a = pop();
-                push(new Value(
-                        bitOp(a.asNumber(), b.asNumber(), (left, right) -> left ^ right)
-                ));
+            case OpCode.BitXor:
+                bitOp((left, right) -> left ^ right);
                 break;
-            }
-            case OpCode.LeftShift: {
-                Value b = pop();
-                Value a = pop();
-                push(new Value(
-                        bitOp(a.asNumber(), b.asNumber(), (left, right) -> left << right)
-                ));
+            case OpCode.LeftShift:
+                bitOp((left, right) -> left << right);
                 break;
-            }
-            case OpCode.RightShift: {
-                Value b = pop();
-                Value a = pop();
-                push(new Value(
-                        bitOp(a.asNumber(), b.asNumber(), (left, right) -> left >>> right)
-                ));
+            case OpCode.RightShift:
+                bitOp((left, right) -> left >>> right);
                 break;
-            }
-            case OpCode.SignRightShift: {
-                Value b = pop();
-                Value a = pop();
-                push(new Value(
-                        bitOp(a.asNumber(), b.asNumber(), (left, right) -> left >> right)
-                ));
+            case OpCode.SignRightShift:
+                bitOp((left, right) -> left >> right);
                 break;
-            }
             case OpCode.BitCompl: {
                 Value a = pop();
-                push(new Value(
-                        bitOp(a.asNumber(), 0, (left, right) -> ~left)
-                ));
+                if (a.isInt())
+                    push(Value.of(~a.asInt()));
+                else
+                    push(Value.of(bitOp(a.asNumber(), 0, (left, right) -> ~left)));
                 break;
             }
         }
@@ -954,70 +1286,162 @@ public class VM {
             runtimeError("Scope", "No member named " + name);
             return VMResult.ERROR;
         }
-        if (member.isClosure) {
+        if (member.isClosure()) {
             member = new Value(new BoundMethod(member.asClosure(), val));
         }
         push(member);
         return VMResult.OK;
     }
 
+    // The callee is on top of the arguments, which are all positional
+    VMResult defaultArgs() {
+        int argc = readByte();
+        int count = readByte();
+
+        Value callee = peek(0);
+        JClosure closure = null;
+        if (callee.isClosure())
+            closure = callee.asClosure();
+        else if (callee.isBoundMethod())
+            closure = callee.asBoundMethod().closure;
+        else if (callee.isClass() && callee.asClass().constructor != null)
+            closure = callee.asClass().constructor.asClosure();
+
+        if (closure == null || closure.function.defaults == null) {
+            runtimeError("Type", "Can only call functions and classes");
+            return VMResult.ERROR;
+        }
+
+        int base = stack.count - 1 - argc;
+        for (int i = 0; i < count; i++) {
+            int slot = readByte();
+            Value value = slot < closure.function.defaults.size() ? closure.function.defaults.get(slot) : null;
+            if (value == null) {
+                runtimeError("Argument Count", "No default for argument " + slot);
+                return VMResult.ERROR;
+            }
+            stack.set(base + slot, value);
+        }
+        return VMResult.OK;
+    }
+
     VMResult call() {
         int argc = readByte();
         int kwargc = readByte();
+        if (kwargc == 0 && callDirect(argc))
+            return VMResult.OK;
 
         Value callee = pop();
 
-        Map<String, Value> kwargs = new HashMap<>();
+        Map<String, Value> kwargs = kwargc > 0 ? new HashMap<>() : Collections.emptyMap();
         for (int i = 0; i < kwargc; i++)
             kwargs.put(readString(), pop());
 
+        int base = stack.count - argc;
         Value[] args = new Value[argc];
-        List<Value> argList = new ArrayList<>();
-        for (int i = argc - 1; i >= 0; i--)
-            args[i] = pop();
-
-        push(callee);
-
-        for (Value arg : args) {
-            if (arg.isSpread) {
-                Spread spread = arg.asSpread();
-                for (Value val : spread.values) {
-                    push(val);
-                    argList.add(val);
+        boolean spreads = false;
+        for (int i = 0; i < argc; i++) {
+            args[i] = stack.get(base + i);
+            spreads |= args[i].isSpread();
+        }
+
+        if (spreads) {
+            stack.setTop(base);
+            push(callee);
+
+            List<Value> argList = new ArrayList<>();
+            for (Value arg : args) {
+                if (arg.isSpread()) {
+                    Spread spread = arg.asSpread();
+                    for (Value val : spread.values) {
+                        push(val);
+                        argList.add(val);
+                    }
+                }
+                else {
+                    push(arg);
+                    argList.add(arg);
                 }
             }
-            else {
-                push(arg);
-                argList.add(arg);
-            }
+            args = argList.toArray(new Value[0]);
+        }
+        else {
+            push(callee);
+            for (int i = stack.count - 1; i > base; i--)
+                stack.set(i, stack.get(i - 1));
+            stack.set(base, callee);
         }
 
         // Stack:
         // [CALLEE] [GENERICS] [ARGUMENTS] [KWARGS]
 
-        if (!callValue(callee, argList.toArray(new Value[0]), kwargs)) {
+        if (!callValue(callee, args, kwargs)) {
             return VMResult.ERROR;
         }
         frame = frames.peek();
         return VMResult.OK;
     }
 
+    // The common call: a plain function or method given exactly its positional arguments, none of
+    // them spread. The arguments stay on the stack as the new frame's slots, only moved up one to
+    // make room for the callee below them, so nothing but the frame is created. Returns false
+    // without touching the stack when the call needs callValue().
+    boolean callDirect(int argc) {
+        if (frame.memoize > 0) return false;
+
+        Value callee = peek(0);
+        JClosure closure;
+        Value binding;
+        Value receiver;
+        if (callee.isClosure()) {
+            closure = callee.asClosure();
+            binding = frame.bound;
+            receiver = callee;
+        }
+        else if (callee.isBoundMethod()) {
+            BoundMethod bound = callee.asBoundMethod();
+            closure = bound.closure;
+            binding = bound.receiver;
+            receiver = bound.receiver;
+        }
+        else {
+            return false;
+        }
+
+        JFunc function = closure.function;
+        if (function.totarity != argc || function.varargs || function.kwargs || function.async ||
+                function.registers != null || function.closures != null)
+            return false;
+
+        int base = stack.count - argc - 1;
+        for (int i = base; i < stack.count - 1; i++)
+            if (stack.get(i).isSpread()) return false;
+
+        for (int i = stack.count - 1; i > base; i--)
+            stack.set(i, stack.get(i - 1));
+        stack.set(base, receiver);
+
+        function.calls++;
+        addFrame(closure, base, binding);
+        return true;
+    }
+
     public boolean callValue(Value callee, Value[] args, Map<String, Value> kwargs) {
-        if (callee.isNativeFunc) {
+        if (callee.isNativeFunc()) {
             return call(callee.asNative(), args);
         }
-        else if (callee.isClosure) {
+        else if (callee.isClosure()) {
             return call(callee.asClosure(), args, kwargs);
         }
-        else if (callee.isClass) {
+        else if (callee.isClass()) {
             return call(callee.asClass(), args, kwargs);
         }
-        else if (callee.isBoundMethod) {
+        else if (callee.isBoundMethod()) {
             BoundMethod bound = callee.asBoundMethod();
-            stack.set(stack.count - args.length - 1, new Value(new Var(bound.receiver, true)));
+            stack.set(stack.count - args.length - 1, bound.receiver);
             return call(bound.closure, bound.receiver, args, kwargs);
         }
-        else if (callee.isEnumChild) {
+        else if (callee.isEnumChild()) {
             return call(callee.asEnumChild(), args.length);
         }
         runtimeError("Type", "Can only call functions and classes");
@@ -1058,18 +1482,18 @@ public class VM {
     }
 
     public boolean call(JClosure closure, Value binding, Value[] args, Map<String, Value> kwargs) {
+        Memo.Key memoKey = null;
         if (frame.memoize > 0) {
-            Value val = memo.get(closure.function.name, args);
+            memoKey = new Memo.Key(closure.function, args);
+            Value val = memo.get(memoKey);
             if (val != null) {
                 for (int i = 0; i <= args.length + kwargs.size(); i++)
                     pop();
                 push(val);
                 return true;
             }
-            memo.stackCache(closure.function.name, args);
         }
 
-        List<Value> extraArgs = new ArrayList<>();
         if (args.length < closure.function.arity) {
             if (args.length + closure.function.defaultCount < closure.function.arity) {
                 runtimeError("Argument Count", "Expected " + closure.function.arity + " but got " + args.length);
@@ -1080,6 +1504,7 @@ public class VM {
         }
         else if (args.length > closure.function.arity) {
             if (closure.function.varargs) {
+                List<Value> extraArgs = new ArrayList<>();
                 List<Value> argsList = new ArrayList<>();
                 for (int i = closure.function.arity; i < args.length; i++)
                     argsList.add(pop());
@@ -1093,8 +1518,8 @@ public class VM {
             }
         }
 
-        Map<Value, Value> keywordArgs = new HashMap<>();
         if (closure.function.kwargs) {
+            Map<Value, Value> keywordArgs = new HashMap<>();
             for (Map.Entry<String, Value> entry : kwargs.entrySet()) {
                 String name = entry.getKey();
                 keywordArgs.put(new Value(name), entry.getValue());
@@ -1102,21 +1527,41 @@ public class VM {
             push(new Value(keywordArgs));
         }
 
-        Traceback traceback = new Traceback(tracebacks.peek().filename, closure.function.name, frame.ip - 1, frame.closure.function.chunk);
+        // Async calls take the callee and arguments off the stack for their worker and leave a future
         if (closure.function.async) {
-            VM thread = new VM(closure.function.copy());
-            thread.tracebacks.push(traceback);
-            Thread t = new Thread(thread::run);
-            t.start();
+            Value[] slots = new Value[closure.function.totarity + 1];
+            for (int i = slots.length - 1; i >= 0; i--)
+                slots[i] = pop();
+            push(new Value(AsyncPool.submit(this, closure, binding, slots)));
         }
         else {
-            tracebacks.push(traceback);
-
+            closure.function.calls++;
             addFrame(closure, stack.count - closure.function.totarity - 1, binding);
+            frame.memoKey = memoKey;
+
+            // Functions with a register chunk or closure tree run to completion here, leaving their result like a native would
+            if ((closure.function.registers != null || closure.function.closures != null) && frame.memoize == 0) {
+                Value result = closure.function.closures != null
+                        ? ClosureNodes.execute(this, closure, args)
+                        : RegisterVM.execute(this, closure, args);
+                if (result == null) return false;
+                leave();
+                push(result);
+            }
         }
         return true;
     }
 
+    void enter(JClosure closure, Value binding) {
+        addFrame(closure, stack.count, binding);
+    }
+
+    void leave() {
+        CallFrame frame = frames.pop();
+        stack.setTop(frame.slots);
+        this.frame = frames.peek();
+    }
+
     void addFrame(JClosure closure, int slots, Value binding) {
         CallFrame newFrame = new CallFrame(closure, 0, slots, null, binding);
 
@@ -1132,7 +1577,7 @@ public class VM {
     }
 
     boolean call(JNative nativeFunc, Value[] args) {
-        NativeResult result = nativeFunc.call(args);
+        NativeResult result = nativeFunc.call(this, args);
 
         if (!result.ok()) {
             runtimeError(result.name(), result.reason());
@@ -1144,8 +1589,15 @@ public class VM {
         return true;
     }
 
+    // Hoists the slot into a Var the first time a closure captures it, so both share it from then on
     Var captureUpvalue(int slot) {
-        return stack.get(slot).asVar();
+        Value value = stack.get(slot);
+        if (value == null) return null;
+        if (value.isVar()) return value.asVar();
+
+        Var var = new Var(value, false);
+        stack.set(slot, new Value(var));
+        return var;
     }
 
     void defineMethod(String name) {
@@ -1170,7 +1622,7 @@ public class VM {
                 return VMResult.OK;
 
             case OpCode.Deref:
-                if (!peek(0).isRef) {
+                if (!peek(0).isRef()) {
                     runtimeError("Type", "Can't dereference non-ref");
                     return VMResult.ERROR;
                 }
@@ -1178,7 +1630,7 @@ public class VM {
                 return VMResult.OK;
 
             case OpCode.SetRef:
-                if (!peek(0).isRef) {
+                if (!peek(0).isRef()) {
                     runtimeError("Type", "Can't set non-ref");
                     return VMResult.ERROR;
                 }
@@ -1238,7 +1690,7 @@ public class VM {
                     String name = readString();
                     Value val = pop();
 
-                    if (val.isPatternBinding) {
+                    if (val.isPatternBinding()) {
                         matches.put(name, val.asPatternBinding());
                         keys.add(0, name);
                     }
@@ -1261,6 +1713,30 @@ public class VM {
         frame = frames.peek();
         int exitLevel = frames.count - 1;
 
+        // The running frame's code, constants, global slots and ip are kept in locals. The common
+        // cases of hot instructions run straight off them; everything else goes through readByte(),
+        // so the ip is written back to the frame first and all of them are reloaded afterwards,
+        // which also picks up calls, returns and caught errors.
+        int[] code = frame.closure.function.chunk.codeArray;
+        Value[] constants = frame.closure.function.chunk.constants().valuesArray;
+        int[] globalSlots = frame.closure.function.chunk.globalSlots;
+        int ip = frame.ip;
+
+        // Frames of hot functions start out on compiled code
+        JitCode entry = JitCompiler.tier(frame.closure.function);
+        if (entry != null) {
+            ip = entry.run(this, frame, ip);
+            if (ip == JitCode.ERROR) {
+                VMResult caught = caught(exitLevel);
+                if (caught != null) return caught;
+
+                code = frame.closure.function.chunk.codeArray;
+                constants = frame.closure.function.chunk.constants().valuesArray;
+                globalSlots = frame.closure.function.chunk.globalSlots;
+                ip = frame.ip;
+            }
+        }
+
         while (true) {
             if (Shell.logger.debug) {
                 Shell.logger.debug("          ");
@@ -1271,10 +1747,224 @@ public class VM {
                 }
                 Shell.logger.debug("\n");
 
-                Disassembler.disassembleInstruction(frame.closure.function.chunk, frame.ip);
+                Disassembler.disassembleInstruction(frame.closure.function.chunk, ip);
             }
 
-            int instruction = readByte();
+            int start = ip;
+            int instruction = code[ip++];
+            switch (instruction) {
+                case OpCode.Constant:
+                    push(constants[code[ip++]]);
+                    continue;
+
+                case OpCode.Null:
+                    push(Value.NULL);
+                    continue;
+
+                case OpCode.Pop:
+                    pop();
+                    continue;
+
+                case OpCode.GetLocal: {
+                    int slot = code[ip++];
+                    if (stack.count - slot <= 0) break;
+                    Value value = stack.get(frame.slots + slot);
+                    push(value.isVar() ? value.asVar().val : value);
+                    continue;
+                }
+
+                case OpCode.SetLocal: {
+                    int index = frame.slots + code[ip++];
+                    Value value = stack.get(index);
+                    if (value.isVar())
+                        value.asVar().val(peek(0));
+                    else
+                        stack.set(index, peek(0));
+                    continue;
+                }
+
+                case OpCode.GetUpvalue: {
+                    Var var = frame.closure.upvalues[code[ip++]];
+                    if (var == null) break;
+                    push(var.val);
+                    continue;
+                }
+
+                case OpCode.GetGlobal: {
+                    Var var = globals.get(globalSlots[code[ip++]]);
+                    if (var == null) break;
+                    push(var.val);
+                    continue;
+                }
+
+                case OpCode.SetGlobal: {
+                    Var var = globals.get(globalSlots[code[ip++]]);
+                    if (var == null || frame.bound != null || !var.plain()) break;
+                    var.val(peek(0));
+                    continue;
+                }
+
+                case OpCode.Jump: {
+                    int offset = code[ip++];
+                    ip += offset;
+                    continue;
+                }
+
+                case OpCode.JumpIfFalse: {
+                    int offset = code[ip++];
+                    if (!peek(0).asBool()) ip += offset;
+                    continue;
+                }
+
+                case OpCode.JumpIfTrue: {
+                    int offset = code[ip++];
+                    if (peek(0).asBool()) ip += offset;
+                    continue;
+                }
+
+                case OpCode.Loop: {
+                    int offset = code[ip++];
+                    ip -= offset;
+                    // Hot loops take the slow path, which moves them onto compiled code
+                    JFunc function = frame.closure.function;
+                    if (++function.backEdges >= JitCompiler.LOOP_THRESHOLD && JitCompiler.enabled && !function.uncompilable)
+                        break;
+                    continue;
+                }
+
+                case OpCode.For: {
+                    Value stepValue = pop();
+                    double step = stepValue.asNumber();
+                    double end = pop().asNumber();
+
+                    int slot = code[ip++];
+                    int jump = code[ip++];
+                    Value current = getLocal(slot);
+
+                    double i;
+                    if (current.isInt() && stepValue.isInt()) {
+                        long next = current.asInt() + stepValue.asInt();
+                        setLocal(slot, Value.of(next));
+                        i = next;
+                    }
+                    else {
+                        i = current.asNumber() + step;
+                        setLocal(slot, Value.of(i));
+                    }
+
+                    if ((i >= end && step >= 0) || (i <= end && step < 0))
+                        ip += jump;
+                    continue;
+                }
+
+                case OpCode.Add:
+                case OpCode.Subtract:
+                case OpCode.Multiply:
+                case OpCode.Divide:
+                case OpCode.Modulo:
+                case OpCode.Power:
+                case OpCode.AddNum:
+                case OpCode.SubtractNum:
+                case OpCode.MultiplyNum:
+                case OpCode.DivideNum:
+                case OpCode.ModuloNum: {
+                    Value b = peek(0);
+                    Value a = peek(1);
+                    if (a.isInt() && b.isInt()) {
+                        stack.setTop(stack.count - 2);
+                        push(intArithmetic(genericOp(instruction), a.asInt(), b.asInt()));
+                        continue;
+                    }
+                    if (a.isNumber() && b.isNumber()) {
+                        stack.setTop(stack.count - 2);
+                        push(Value.of(arithmetic(genericOp(instruction), a.asNumber(), b.asNumber())));
+                        continue;
+                    }
+                    break;
+                }
+
+                case OpCode.Equal:
+                case OpCode.LessThan:
+                case OpCode.GreaterThan:
+                case OpCode.EqualNum:
+                case OpCode.LessThanNum:
+                case OpCode.GreaterThanNum:
+                case OpCode.NotEqual:
+                case OpCode.GreaterEqual:
+                case OpCode.LessEqual: {
+                    Value b = peek(0);
+                    Value a = peek(1);
+                    if (!a.isNumber() || !b.isNumber()) break;
+                    stack.setTop(stack.count - 2);
+                    push(Value.of(numberComparison(instruction, a, b)));
+                    continue;
+                }
+
+                case OpCode.CompareJump: {
+                    int op = code[ip++];
+                    int offset = code[ip++];
+                    Value b = peek(0);
+                    Value a = peek(1);
+                    if (!a.isNumber() || !b.isNumber()) break;
+                    stack.setTop(stack.count - 2);
+                    if (!numberComparison(op, a, b)) ip += offset;
+                    continue;
+                }
+
+                case OpCode.LocalConstArith: {
+                    int slot = code[ip++];
+                    Value b = constants[code[ip++]];
+                    int op = code[ip++];
+                    if (stack.count - slot <= 0) break;
+                    Value a = getLocal(slot);
+                    if (!a.isInt() || !b.isInt()) break;
+                    push(intArithmetic(genericOp(op), a.asInt(), b.asInt()));
+                    continue;
+                }
+
+                case OpCode.ConcatStr: {
+                    Value b = peek(0);
+                    Value a = peek(1);
+                    if (!a.isString() || !b.isString()) break;
+                    stack.setTop(stack.count - 2);
+                    push(new Value(a.asString() + b.asString()));
+                    continue;
+                }
+
+                case OpCode.GetSlot:
+                case OpCode.SetSlot: {
+                    int slot = code[ip++];
+                    String name = constants[code[ip++]].asString();
+                    Value bound = frame.bound;
+                    if (bound == null || !bound.isInstance()) break;
+                    Instance instance = bound.asInstance();
+                    if (!instance.clazz.shape.has(slot, name)) break;
+                    if (instruction == OpCode.GetSlot) {
+                        push(instance.fields[slot]);
+                    }
+                    else {
+                        instance.fields[slot] = pop();
+                        push(Value.NULL);
+                    }
+                    continue;
+                }
+
+                case OpCode.AccessSlot: {
+                    int slot = code[ip++];
+                    String name = constants[code[ip++]].asString();
+                    Value val = peek(0);
+                    if (!val.isInstance()) break;
+                    Instance instance = val.asInstance();
+                    Shape shape = instance.clazz.shape;
+                    if (!shape.has(slot, name) || shape.isPrivate(slot) || instance.fields[slot].isClosure()
+                            || instance.binMethods.containsKey("access")) break;
+                    stack.set(stack.count - 1, instance.fields[slot]);
+                    continue;
+                }
+            }
+
+            // Not handled above: rewind to just past the opcode and let the instruction read its own operands
+            frame.ip = start + 1;
             VMResult res;
             switch (instruction) {
                 case OpCode.Return: {
@@ -1282,7 +1972,7 @@ public class VM {
                     if (frame.catchError) result = new Value(new Result(result));
                     CallFrame frame = frames.pop();
                     if (frames.count == 0) {
-                        if (sim)
+                        if (sim || worker)
                             this.res = NativeResult.Ok(result);
                         res = VMResult.EXIT;
                         break;
@@ -1293,15 +1983,14 @@ public class VM {
 
                     stack.setTop(frame.slots);
                     this.frame = frames.peek();
-                    popTraceback();
 
                     if (isConstructor) {
                         push(bound);
                     }
                     else {
                         push(result);
-                        if (frame.memoize == 2) {
-                            memo.storeCache(result);
+                        if (frame.memoKey != null) {
+                            memo.store(frame.memoKey, result);
                         }
                     }
 
@@ -1352,13 +2041,14 @@ public class VM {
                     String varName = readString();
 
                     Value f = pop();
-                    if (!f.isFunc) {
-                        if (!libraries.containsKey(name)) {
+                    if (!f.isFunc()) {
+                        Namespace library = library(name);
+                        if (library == null) {
                             runtimeError("Import", "Library '" + name + "' not found");
                             res = VMResult.ERROR;
                             break;
                         }
-                        Value lib = new Value(libraries.get(name));
+                        Value lib = new Value(library);
                         globals.put(varName, new Var(
                                 lib,
                                 true
@@ -1446,6 +2136,38 @@ public class VM {
                     res = binary(instruction);
                     break;
 
+                case OpCode.AddNum:
+                case OpCode.SubtractNum:
+                case OpCode.MultiplyNum:
+                case OpCode.DivideNum:
+                case OpCode.ModuloNum:
+                    res = numeric(instruction);
+                    break;
+
+                case OpCode.EqualNum:
+                case OpCode.LessThanNum:
+                case OpCode.GreaterThanNum:
+                    res = compareNumbers(instruction);
+                    break;
+
+                case OpCode.ConcatStr:
+                    res = concat();
+                    break;
+
+                case OpCode.NotEqual:
+                case OpCode.GreaterEqual:
+                case OpCode.LessEqual:
+                    res = compare(instruction);
+                    break;
+
+                case OpCode.CompareJump:
+                    res = compareJump();
+                    break;
+
+                case OpCode.LocalConstArith:
+                    res = localConstArith();
+                    break;
+
                 case OpCode.Increment:
                 case OpCode.Decrement:
                 case OpCode.Negate:
@@ -1465,7 +2187,7 @@ public class VM {
                     break;
 
                 case OpCode.Null:
-                    push(new Value());
+                    push(Value.NULL);
                     res = VMResult.OK;
                     break;
 
@@ -1488,6 +2210,7 @@ public class VM {
                 case OpCode.GetLocal:
                 case OpCode.SetLocal:
                 case OpCode.DefineLocal:
+                case OpCode.CheckAssign:
                     res = localOps(instruction);
                     break;
 
@@ -1504,19 +2227,18 @@ public class VM {
                     res = loopOps(instruction);
                     break;
 
-                case OpCode.For:
-                    res = forLoop();
-                    break;
-
                 case OpCode.Call:
                     res = call();
                     break;
+                case OpCode.DefaultArgs:
+                    res = defaultArgs();
+                    break;
                 case OpCode.Closure: {
                     JFunc func = readConstant().asFunc();
                     int defaultCount = readByte();
                     JClosure closure = new JClosure(func);
 
-                    if (func.name == null) func.name = tracebacks.peek().context;
+                    if (func.name == null) func.name = context();
 
                     Value[] defaults = new Value[func.arity];
                     for (int i = func.arity - 1; i >= func.arity - defaultCount; i--) {
@@ -1560,6 +2282,11 @@ public class VM {
                     res = attrOps(instruction);
                     break;
 
+                case OpCode.GetSlot:
+                case OpCode.SetSlot:
+                    res = slotOps(instruction);
+                    break;
+
                 case OpCode.GetUpvalue:
                 case OpCode.SetUpvalue:
                     res = upvalueOps(instruction);
@@ -1578,7 +2305,7 @@ public class VM {
                 case OpCode.Chain: {
                     Value b = pop();
                     Value a = pop();
-                    if (a.isNull) {
+                    if (a.isNull()) {
                         push(b);
                     }
                     else {
@@ -1617,7 +2344,7 @@ public class VM {
                     JClass superClass = hasSuper ? pop().asClass() : null;
 
                     int attributeCount = readByte();
-                    Map<String, ClassAttr> attributes = new HashMap<>();
+                    Map<String, ClassAttr> attributes = new LinkedHashMap<>();
                     for (int i = 0; i < attributeCount; i++) {
                         String attrname = readString();
                         boolean isprivate = readByte() == 1;
@@ -1641,21 +2368,14 @@ public class VM {
                     res = VMResult.OK;
                     break;
 
-                case OpCode.MakeVar: {
-                    int slot = readByte();
-                    boolean constant = readByte() == 1;
-
-                    Value at = get(slot);
-
-                    stack.set(frame.slots + slot, new Value(new Var(at, constant)));
-                    res = VMResult.OK;
-                    break;
-                }
-
                 case OpCode.Access:
                     res = access();
                     break;
 
+                case OpCode.AccessSlot:
+                    res = accessSlot();
+                    break;
+
                 case OpCode.DropGlobal:
                 case OpCode.DropLocal:
                 case OpCode.DropUpvalue:
@@ -1674,56 +2394,90 @@ public class VM {
                     throw new RuntimeException("Unknown opcode: " + instruction);
             }
 
+            code = frame.closure.function.chunk.codeArray;
+            constants = frame.closure.function.chunk.constants().valuesArray;
+            globalSlots = frame.closure.function.chunk.globalSlots;
+            ip = frame.ip;
+
+            if (res == VMResult.OK) {
+                JitCode compiled = JitCompiler.tier(frame.closure.function);
+                if (compiled != null) {
+                    ip = compiled.run(this, frame, ip);
+                    if (ip == JitCode.ERROR) res = VMResult.ERROR;
+                }
+            }
+
             if (res == VMResult.EXIT) {
                 Shell.logger.debug("Exiting\n");
                 return VMResult.OK;
             }
             else if (res == VMResult.ERROR) {
-                if (frame.catchError) {
-                    frames.pop();
-                    if (frames.count == 0) {
-                        return VMResult.OK;
-                    }
-
-                    stack.setTop(frame.slots);
-                    frame = frames.peek();
-                    popTraceback();
+                VMResult caught = caught(exitLevel);
+                if (caught != null) return caught;
 
-                    Value result = new Value(new Result(lastError.a, lastError.b));
-                    push(result);
-                    if (frame.memoize == 2) {
-                        memo.storeCache(result);
-                    }
+                code = frame.closure.function.chunk.codeArray;
+                constants = frame.closure.function.chunk.constants().valuesArray;
+                globalSlots = frame.closure.function.chunk.globalSlots;
+                ip = frame.ip;
+            }
+        }
+    }
 
-                    if (exitLevel == frames.count) {
-                        return VMResult.OK;
-                    }
-                    continue;
-                }
-                if (safe) {
-                    while (frames.count > exitLevel) {
-                        tracebacks.pop();
-                        frames.pop();
-                    }
-                    frame = frames.peek();
-                    stack.setTop(frames.peek(-1).slots);
-                }
+    // Handles a runtime error inside run(): returns what run() should return, or null if a
+    // catcher turned the error into a Result and execution continues in the current frame
+    private VMResult caught(int exitLevel) {
+        if (frame.catchError) {
+            // A catcher below the frame this run was entered with belongs to an outer run
+            if (frames.count <= exitLevel) {
                 return VMResult.ERROR;
             }
+
+            CallFrame catcher = frames.pop();
+            if (frames.count == 0) {
+                // A worker's call that catches gives the error back like a return would
+                if (worker)
+                    res = NativeResult.Ok(new Value(new Result(lastError.name, lastError.reason)));
+                return VMResult.OK;
+            }
+
+            stack.setTop(catcher.slots);
+            frame = frames.peek();
+
+            Value result = new Value(new Result(lastError.name, lastError.reason));
+            push(result);
+            if (catcher.memoKey != null) {
+                memo.store(catcher.memoKey, result);
+            }
+
+            if (exitLevel == frames.count) {
+                return VMResult.OK;
+            }
+            return null;
+        }
+        if (safe) {
+            while (frames.count > exitLevel) {
+                frames.pop();
+            }
+            frame = frames.peek();
+            stack.setTop(frames.peek(-1).slots);
         }
+        return VMResult.ERROR;
     }
 
     VMResult destruct() {
         Namespace v = pop().asNamespace();
-        push(new Value());
+        push(Value.NULL);
         int args = readByte();
         String[] names = new String[args];
         for (int i = 0; i < args; i++)
             names[i] = readString();
         Map<String, Var> values = v.values();
+        // Library fields are shared by every VM, so each gets a variable of its own
+        boolean library = libraries.get(v.name()) == v;
         for (String name : names) {
             if (values.containsKey(name)) {
-                globals.put(name, values.get(name));
+                Var var = values.get(name);
+                globals.put(name, library ? new Var(var.val, var.constant) : var);
             }
             else {
                 runtimeError("Scope", "Undefined field: " + name);
@@ -1777,7 +2531,7 @@ public class VM {
                 break;
         }
 
-        push(new Value());
+        push(Value.NULL);
         return VMResult.OK;
     }
 
@@ -1790,7 +2544,7 @@ public class VM {
 
         if (mainFunction != null) {
             Var var = globals.get(mainFunction);
-            if (var == null || !var.val.isClosure) {
+            if (var == null || !var.val.isClosure()) {
                 runtimeError("Scope", "Main function not found");
             }
 
@@ -1807,13 +2561,13 @@ public class VM {
         }
         else if (mainClass != null) {
             Var var = globals.get(mainClass);
-            if (var == null || !var.val.isClass) {
+            if (var == null || !var.val.isClass()) {
                 runtimeError("Scope", "Main class not found");
             }
 
             JClass clazz = var.val.asClass();
             Value method = clazz.getField("main", true);
-            if (method == null || !method.isClosure) {
+            if (method == null || !method.isClosure()) {
                 runtimeError("Scope", "Main method not found");
             }
             JClosure closure = method.asClosure();
@@ -1834,17 +2588,54 @@ public class VM {
         int variable = readByte();
         int jump = readByte();
 
-        List<Value> vals = get(iterated).asVar().val.asList();
-        if (vals.size() == 0) {
-            moveIP(jump);
-            return VMResult.OK;
+        // The slot starts out holding the iterable itself and is replaced by its iterator on the first step
+        Value state = getLocal(iterated);
+        if (!state.isIterator()) {
+            JIterator iterator = iterator(state);
+            if (iterator == null) return VMResult.ERROR;
+            state = new Value(iterator);
+            setLocal(iterated, state);
+        }
+        JIterator iterator = state.asIterator();
+
+        Value next;
+        if (iterator.instance != null) {
+            if (runBin("next", new Value[0], iterator.instance) == VMResult.ERROR) return VMResult.ERROR;
+            next = pop();
+            if (next.isNull()) {
+                moveIP(jump);
+                return VMResult.OK;
+            }
+        }
+        else {
+            try {
+                if (!iterator.hasNext()) {
+                    moveIP(jump);
+                    return VMResult.OK;
+                }
+                next = iterator.next();
+            } catch (ConcurrentModificationException e) {
+                runtimeError("Iteration", e.getMessage() != null ? e.getMessage() : "Dict changed size during iteration");
+                return VMResult.ERROR;
+            }
         }
 
-        get(variable).asVar().val(vals.get(0));
-        vals.remove(0);
+        setLocal(variable, next);
         return VMResult.OK;
     }
 
+    // Instances can hand out something else to iterate with a bin iter method, or produce the
+    // elements themselves with a bin next method that returns null once they run out
+    JIterator iterator(Value iterable) {
+        if (canOverride(iterable, "iter")) {
+            if (runBin("iter", new Value[0], iterable.asInstance()) == VMResult.ERROR) return null;
+            iterable = pop();
+        }
+        if (canOverride(iterable, "next"))
+            return new JIterator(iterable.asInstance());
+        return new JIterator(iterable);
+    }
+
     public Namespace asNamespace(String name) {
         return new Namespace(name, globals, exports == null ? new ArrayList<>(globals.keySet()) : exports);
     }
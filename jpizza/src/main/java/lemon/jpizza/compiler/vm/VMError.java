@@ -0,0 +1,95 @@
+package lemon.jpizza.compiler.vm;
+
+import lemon.jpizza.Constants;
+import lemon.jpizza.Shell;
+import lemon.jpizza.compiler.Chunk;
+import lemon.jpizza.compiler.FlatPosition;
+import lemon.jpizza.compiler.JStack;
+
+// A runtime error as it was raised: its name and reason, the instruction that raised it and
+// where each frame on the stack was at the time.
+// Catchers only ever look at the name and reason, so the traceback text (which has to scan the
+// source for line numbers) is only rendered once the error is reported.
+final class VMError {
+    final String name;
+    final String reason;
+
+    final Chunk chunk;
+    final int offset;
+
+    // Traceback lines, outermost first; null when the VM has no file to report against
+    private final String filename;
+    private final Chunk[] chunks;
+    private final int[] offsets;
+    private final String[] contexts;
+
+    VMError(VM vm, String name, String reason) {
+        this.name = name;
+        this.reason = reason;
+        this.chunk = vm.frame.closure.function.chunk;
+        this.offset = vm.frame.ip - 1;
+
+        filename = vm.filename();
+        if (filename == null) {
+            chunks = null;
+            offsets = null;
+            contexts = null;
+            return;
+        }
+
+        // Each frame was entered at the call its caller is still on
+        JStack<CallFrame> frames = vm.frames;
+        int count = frames.count;
+        chunks = new Chunk[count];
+        offsets = new int[count];
+        contexts = new String[count];
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                CallFrame caller = frames.get(i - 1);
+                chunks[i] = caller.closure.function.chunk;
+                offsets[i] = caller.ip - 1;
+                contexts[i] = frames.get(i).closure.function.name;
+            }
+            else if (vm.originChunk != null) {
+                chunks[i] = vm.originChunk;
+                offsets[i] = vm.originOffset;
+                contexts[i] = frames.get(0).closure.function.name;
+            }
+            else {
+                chunks[i] = frames.get(0).closure.function.chunk;
+                offsets[i] = 0;
+                contexts[i] = filename;
+            }
+        }
+    }
+
+    FlatPosition position() {
+        return chunk.getPosition(offset);
+    }
+
+    String render() {
+        if (filename == null)
+            return String.format("%s Error (Runtime): %s\n", name, reason);
+
+        String arrow = Shell.fileEncoding.equals("UTF-8") ? "╰──►" : "--->";
+
+        StringBuilder output = new StringBuilder("Traceback (most recent call last):\n");
+        for (int i = 0; i < chunks.length; i++) {
+            int line = chunks[i].indexToLine(chunks[i].getPosition(offsets[i]).index);
+            output.append(String.format("  %s  File %s, line %s, in %s\n", arrow, filename, line + 1, contexts[i]));
+        }
+
+        FlatPosition position = position();
+        int line = chunk.indexToLine(position.index);
+        output.append(String.format("\n%s Error (Runtime): %s\nFile %s, line %s\n%s\n",
+                                    name, reason,
+                                    filename, line + 1,
+                                    Constants.highlightFlat(chunk.source(), position.index, position.len)));
+        return output.toString();
+    }
+
+    @Override
+    public String toString() {
+        return render();
+    }
+}